@@ -0,0 +1,696 @@
+package com.stealthcopter.networktools;
+
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+import com.stealthcopter.networktools.concurrency.NetworkToolsRuntime;
+import com.stealthcopter.networktools.concurrency.RateLimiter;
+import com.stealthcopter.networktools.concurrency.ResultDispatcher;
+import com.stealthcopter.networktools.portscanning.AdaptiveTimeout;
+import com.stealthcopter.networktools.portscanning.ConcurrentPortSet;
+import com.stealthcopter.networktools.portscanning.FilteredHostPolicy;
+import com.stealthcopter.networktools.portscanning.HostPortScheduler;
+import com.stealthcopter.networktools.portscanning.PortProfile;
+import com.stealthcopter.networktools.portscanning.ProbeSockets;
+import com.stealthcopter.networktools.portscanning.PortScanCheckpoint;
+import com.stealthcopter.networktools.portscanning.PortScanTCP;
+import com.stealthcopter.networktools.portscanning.PortScanTCPNio;
+import com.stealthcopter.networktools.portscanning.PortResult;
+import com.stealthcopter.networktools.portscanning.PortScanUDP;
+import com.stealthcopter.networktools.portscanning.PortScanUDPNio;
+import com.stealthcopter.networktools.portscanning.UDPPayloads;
+import com.stealthcopter.networktools.portscanning.PortSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans the same set of ports on many hosts at once.
+ *
+ * Probes are interleaved across the hosts so that no single target is flooded, and every probe
+ * shares one global limit on the number in flight (threads for the blocking methods, or
+ * {@link #setMaxInFlight(int)} for {@link #setMethodTCPNio()}).
+ */
+public class MultiPortScan {
+
+    private static final int DEFAULT_THREADS = 50;
+    private static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = 50;
+
+    private static final int METHOD_TCP = 0;
+    private static final int METHOD_UDP = 1;
+    private static final int METHOD_TCP_NIO = 2;
+    private static final int METHOD_UDP_NIO = 3;
+
+    private int method = METHOD_TCP;
+    private int noThreads = DEFAULT_THREADS;
+    private int maxInFlight = PortScan.DEFAULT_MAX_IN_FLIGHT;
+    private int maxInFlightPerHost = DEFAULT_MAX_IN_FLIGHT_PER_HOST;
+    private int timeOutMillis;
+    private boolean adaptiveTimeout = false;
+    private RateLimiter rateLimiter;
+    private DescriptorBudget descriptorBudget = DescriptorBudget.getDefault();
+    private NetworkToolsRuntime runtime = NetworkToolsRuntime.getDefault();
+    private UDPPayloads udpPayloads = UDPPayloads.defaults();
+    private volatile boolean cancelled = false;
+    private volatile Cancellation cancellation = new Cancellation();
+    private volatile ExecutorService executor;
+    private volatile PortScanTCPNio nioScanner;
+    private volatile PortScanUDPNio udpNioScanner;
+
+    private ArrayList<InetAddress> addresses;
+    private PortSet ports = new PortSet();
+    // Order to scan the ports in, or null for ascending
+    private int[] portOrder;
+    private volatile HashMap<InetAddress, ConcurrentPortSet> openPortsFound = new HashMap<>();
+    private FilteredHostPolicy filteredHostPolicy;
+    private boolean randomOrder = false;
+    private ProbeSockets probeSockets = new ProbeSockets();
+    private volatile ArrayList<InetAddress> abandonedHosts = new ArrayList<>();
+
+    private File checkpointFile;
+    private long checkpointIntervalMillis = PortScanCheckpoint.DEFAULT_SAVE_INTERVAL_MILLIS;
+    private volatile PortScanCheckpoint checkpoint;
+
+    private MultiPortListener portListener;
+    private volatile ResultDispatcher<PortResult> resultDispatcher;
+
+    // This class is not to be instantiated
+    private MultiPortScan() {
+    }
+
+    public interface MultiPortListener {
+        void onResult(InetAddress address, int portNo, boolean open);
+
+        void onFinished(HashMap<InetAddress, PortSet> openPorts);
+    }
+
+    /**
+     * Set the addresses to scan
+     *
+     * @param addresses - Addresses to be scanned
+     * @return this object to allow chaining
+     */
+    public static MultiPortScan onAddresses(List<InetAddress> addresses) {
+        if (addresses == null || addresses.isEmpty()) {
+            throw new IllegalArgumentException("Addresses cannot be empty");
+        }
+        MultiPortScan multiPortScan = new MultiPortScan();
+        multiPortScan.addresses = new ArrayList<>(addresses);
+        multiPortScan.setDefaultTimeout();
+        return multiPortScan;
+    }
+
+    /**
+     * Set the addresses to scan, note that this will perform a lookup on each address
+     *
+     * @param addresses - Addresses to be scanned
+     * @return this object to allow chaining
+     * @throws UnknownHostException - if no IP address for one of the addresses could be found
+     */
+    public static MultiPortScan onAddressStrings(List<String> addresses) throws UnknownHostException {
+        ArrayList<InetAddress> inetAddresses = new ArrayList<>();
+        for (String address : addresses) {
+            inetAddresses.add(InetAddress.getByName(address));
+        }
+        return onAddresses(inetAddresses);
+    }
+
+    /**
+     * Pick a timeout that will suit the furthest away host in the list
+     */
+    private void setDefaultTimeout() {
+        timeOutMillis = PortScan.TIMEOUT_LOCALHOST;
+        for (InetAddress address : addresses) {
+            if (IPTools.isIpAddressLocalhost(address)) continue;
+            if (IPTools.isIpAddressLocalNetwork(address)) {
+                timeOutMillis = Math.max(timeOutMillis, PortScan.TIMEOUT_LOCALNETWORK);
+            } else {
+                timeOutMillis = PortScan.TIMEOUT_REMOTE;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sets the timeout for each port scanned
+     *
+     * @param timeOutMillis - the timeout for each port in milliseconds
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setTimeOutMillis(int timeOutMillis) {
+        if (timeOutMillis < 0) throw new IllegalArgumentException("Timeout cannot be less than 0");
+        this.timeOutMillis = timeOutMillis;
+        return this;
+    }
+
+    /**
+     * Adapt the timeout for each host during a TCP scan from the round trip times measured to it,
+     * see {@link PortScan#setAdaptiveTimeout(boolean)}
+     *
+     * @param adaptiveTimeout - true to enable adaptive timeouts
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setAdaptiveTimeout(boolean adaptiveTimeout) {
+        this.adaptiveTimeout = adaptiveTimeout;
+        return this;
+    }
+
+    /**
+     * Limit the number of probes sent per second across all hosts, see
+     * {@link PortScan#setRateLimiter(RateLimiter)}
+     *
+     * @param rateLimiter - the limiter to use, or null for no limit
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Stop scanning, or only sample, each host once it has dropped a run of probes in a row, see
+     * {@link PortScan#setFilteredHostPolicy(FilteredHostPolicy)} and {@link #getAbandonedHosts()}
+     *
+     * @param filteredHostPolicy - the policy to use, or null to scan every port of every host
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setFilteredHostPolicy(FilteredHostPolicy filteredHostPolicy) {
+        this.filteredHostPolicy = filteredHostPolicy;
+        return this;
+    }
+
+    /**
+     * Scan every (host, port) pair in a pseudo-random order instead of round robin through each
+     * host's ports in turn. This spreads probes evenly over the hosts and any rate limiting
+     * firewalls in between, using constant memory however many hosts and ports there are, see
+     * {@link com.stealthcopter.networktools.portscanning.RandomPermutation}.
+     *
+     * @param randomOrder - true to scan in a random order
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setRandomOrder(boolean randomOrder) {
+        this.randomOrder = randomOrder;
+        return this;
+    }
+
+    /**
+     * Control how the TCP probe sockets are created and closed, see
+     * {@link PortScan#setProbeSockets(ProbeSockets)}
+     *
+     * @param probeSockets - the probe sockets to use, see {@link ProbeSockets}
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setProbeSockets(ProbeSockets probeSockets) {
+        if (probeSockets == null) throw new IllegalArgumentException("Probe sockets cannot be null");
+        this.probeSockets = probeSockets;
+        return this;
+    }
+
+    /**
+     * @return the probe sockets in use, e.g. to watch {@link ProbeSockets#getOutstanding()} while
+     * the scan runs
+     */
+    public ProbeSockets getProbeSockets() {
+        return probeSockets;
+    }
+
+    /**
+     * Share a budget of file descriptors with other scans, see
+     * {@link PortScan#setDescriptorBudget(DescriptorBudget)}
+     *
+     * @param descriptorBudget - the budget to use, or null for no limit
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setDescriptorBudget(DescriptorBudget descriptorBudget) {
+        this.descriptorBudget = descriptorBudget;
+        return this;
+    }
+
+    /**
+     * Run the scan on the threads of the given runtime rather than the shared default one, see
+     * {@link PortScan#setRuntime(NetworkToolsRuntime)}
+     *
+     * @param runtime - the runtime to use
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setRuntime(NetworkToolsRuntime runtime) {
+        if (runtime == null) throw new IllegalArgumentException("Runtime cannot be null");
+        this.runtime = runtime;
+        return this;
+    }
+
+    /**
+     * Scan the ports to scan on every host
+     *
+     * @param ports - the ports to scan
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setPorts(PortSet ports) {
+        if (ports == null) throw new IllegalArgumentException("Ports cannot be null");
+        this.ports = new PortSet(ports);
+        this.portOrder = null;
+        return this;
+    }
+
+    /**
+     * Scan the ports in a profile on every host, most likely to be open first,
+     * see {@link PortScan#setPorts(PortProfile)}
+     *
+     * @param profile - the ranked ports to scan
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setPorts(PortProfile profile) {
+        if (profile == null) throw new IllegalArgumentException("Profile cannot be null");
+        this.ports = profile.toPortSet();
+        this.portOrder = profile.getPorts();
+        return this;
+    }
+
+    /**
+     * Scan the ports to scan on every host
+     *
+     * @param portString - the ports to scan (comma separated, hyphen denotes a range). For example:
+     *                   "21-23,25,45,53,80"
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setPorts(String portString) {
+        this.ports = PortSet.parse(portString);
+        this.portOrder = null;
+        return this;
+    }
+
+    /**
+     * @param noThreads set the number of threads shared by all hosts for the blocking methods. The
+     *                  threads are taken from the runtime's workers, so this is capped at
+     *                  {@link NetworkToolsRuntime#getMaxWorkers()}, see {@link #setRuntime(NetworkToolsRuntime)}
+     * @return this object to allow chaining
+     * @throws IllegalArgumentException - if no threads is less than 1
+     */
+    public MultiPortScan setNoThreads(int noThreads) throws IllegalArgumentException {
+        if (noThreads < 1) throw new IllegalArgumentException("Cannot have less than 1 thread");
+        this.noThreads = noThreads;
+        return this;
+    }
+
+    /**
+     * @param maxInFlight - maximum number of simultaneous connects across all hosts when using
+     *                    {@link #setMethodTCPNio()}
+     * @return this object to allow chaining
+     * @throws IllegalArgumentException - if max in flight is less than 1
+     */
+    public MultiPortScan setMaxInFlight(int maxInFlight) throws IllegalArgumentException {
+        if (maxInFlight < 1) throw new IllegalArgumentException("Cannot have less than 1 connect in flight");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param maxInFlightPerHost - maximum number of simultaneous probes against any one host
+     * @return this object to allow chaining
+     * @throws IllegalArgumentException - if max in flight per host is less than 1
+     */
+    public MultiPortScan setMaxInFlightPerHost(int maxInFlightPerHost) throws IllegalArgumentException {
+        if (maxInFlightPerHost < 1) throw new IllegalArgumentException("Cannot have less than 1 probe in flight per host");
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        return this;
+    }
+
+    /**
+     * Set scan method to TCP
+     *
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setMethodTCP() {
+        this.method = METHOD_TCP;
+        return this;
+    }
+
+    /**
+     * Set scan method to UDP
+     *
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setMethodUDP() {
+        this.method = METHOD_UDP;
+        return this;
+    }
+
+    /**
+     * Set scan method to non-blocking TCP, see {@link PortScan#setMethodTCPNio()}
+     *
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setMethodTCPNio() {
+        this.method = METHOD_TCP_NIO;
+        return this;
+    }
+
+    /**
+     * Set scan method to non-blocking UDP, see {@link PortScan#setMethodUDPNio()}. Only ports that
+     * reply are reported as open.
+     *
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setMethodUDPNio() {
+        this.method = METHOD_UDP_NIO;
+        return this;
+    }
+
+    /**
+     * Set the datagrams sent to each port by a UDP scan. By default well known services such as
+     * DNS, NTP and SNMP are sent a valid request so that they answer straight away.
+     *
+     * @param udpPayloads - payloads to send, see {@link UDPPayloads#defaults()}
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setUDPPayloads(UDPPayloads udpPayloads) {
+        this.udpPayloads = udpPayloads != null ? udpPayloads : new UDPPayloads();
+        return this;
+    }
+
+    /**
+     * Save the progress of the scan to a file so that it can be resumed if interrupted, see
+     * {@link PortScan#setCheckpoint(File)}. Hosts that were finished are skipped entirely when
+     * resuming.
+     *
+     * @param checkpointFile - file to save progress to, or null to not save progress
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setCheckpoint(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        return this;
+    }
+
+    /**
+     * Save the progress of the scan to a file, see {@link #setCheckpoint(File)}
+     *
+     * @param checkpointFile     - file to save progress to
+     * @param saveIntervalMillis - minimum time between saves while scanning
+     * @return this object to allow chaining
+     */
+    public MultiPortScan setCheckpoint(File checkpointFile, long saveIntervalMillis) {
+        if (saveIntervalMillis < 0) throw new IllegalArgumentException("Save interval cannot be less than 0");
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalMillis = saveIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Cancel a running scan. Connects in progress are aborted rather than left to time out, so
+     * the scan returns straight away.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        cancellation.cancel();
+        PortScanTCPNio scanner = nioScanner;
+        if (scanner != null) scanner.cancel();
+        PortScanUDPNio udpScanner = udpNioScanner;
+        if (udpScanner != null) udpScanner.cancel();
+        ExecutorService executor = this.executor;
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * Perform a synchronous (blocking) port scan of all hosts
+     *
+     * @return - the open ports found for each host
+     */
+    public HashMap<InetAddress, PortSet> doScan() {
+        portListener = null;
+        resultDispatcher = null;
+        cancelled = false;
+        cancellation = new Cancellation();
+
+        runScan();
+
+        return getOpenPorts();
+    }
+
+    /**
+     * @return the open ports found for each host by the last scan
+     */
+    public HashMap<InetAddress, PortSet> getOpenPorts() {
+        HashMap<InetAddress, PortSet> openPorts = new HashMap<>();
+        for (InetAddress address : openPortsFound.keySet()) {
+            openPorts.put(address, openPortsFound.get(address).snapshot());
+        }
+        return openPorts;
+    }
+
+    /**
+     * @return the hosts the last scan gave up on before scanning every port, see
+     * {@link #setFilteredHostPolicy(FilteredHostPolicy)}
+     */
+    public ArrayList<InetAddress> getAbandonedHosts() {
+        return new ArrayList<>(abandonedHosts);
+    }
+
+    /**
+     * Perform an asynchronous (non-blocking) port scan of all hosts
+     *
+     * @param portListener - the listener to fire (host, port) results to.
+     * @return - this object so we can cancel the scan if needed
+     */
+    public MultiPortScan doScan(final MultiPortListener portListener) {
+
+        this.portListener = portListener;
+        resultDispatcher = portListener == null ? null : new ResultDispatcher<>(new ResultDispatcher.Handler<PortResult>() {
+            @Override
+            public void onResult(PortResult result) {
+                portListener.onResult(result.address, result.portNo, result.open);
+            }
+        });
+        cancelled = false;
+        cancellation = new Cancellation();
+
+        runtime.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                runScan();
+
+                if (portListener != null) {
+                    resultDispatcher.drain();
+                    portListener.onFinished(getOpenPorts());
+                }
+
+            }
+        });
+
+        return this;
+    }
+
+    private void runScan() {
+        // Filled before the scan starts and only read during it, so safe to share between workers
+        HashMap<InetAddress, ConcurrentPortSet> openPortsFound = new HashMap<>();
+        for (InetAddress address : addresses) {
+            openPortsFound.put(address, new ConcurrentPortSet());
+        }
+        this.openPortsFound = openPortsFound;
+
+        final HostPortScheduler scheduler = portOrder != null
+                ? new HostPortScheduler(addresses, portOrder, maxInFlightPerHost)
+                : new HostPortScheduler(addresses, ports, maxInFlightPerHost);
+        scheduler.setFilteredHostPolicy(filteredHostPolicy);
+        if (randomOrder) scheduler.setRandomOrder(new Random().nextLong());
+        abandonedHosts = new ArrayList<>();
+
+        PortScanCheckpoint checkpoint = loadCheckpoint(scheduler, openPortsFound);
+        this.checkpoint = checkpoint;
+        try {
+            runScan(scheduler);
+        } finally {
+            ArrayList<InetAddress> abandonedHosts = new ArrayList<>();
+            for (int i = 0; i < addresses.size(); i++) {
+                if (scheduler.isAbandoned(i)) abandonedHosts.add(addresses.get(i));
+            }
+            this.abandonedHosts = abandonedHosts;
+            if (checkpoint != null) finishCheckpoint(checkpoint);
+            this.checkpoint = null;
+        }
+    }
+
+    /**
+     * Load the checkpoint file, skipping the ports it records as scanned and adding the open
+     * ports it records to the results
+     *
+     * @return the checkpoint to record progress in, or null if there is no checkpoint file
+     */
+    private PortScanCheckpoint loadCheckpoint(HostPortScheduler scheduler, HashMap<InetAddress, ConcurrentPortSet> openPortsFound) {
+        if (checkpointFile == null) return null;
+        PortScanCheckpoint checkpoint;
+        try {
+            checkpoint = PortScanCheckpoint.load(checkpointFile);
+        } catch (IOException e) {
+            // Unreadable, so start the scan from the beginning
+            e.printStackTrace();
+            checkpoint = new PortScanCheckpoint(checkpointFile);
+        }
+        checkpoint.setSaveIntervalMillis(checkpointIntervalMillis);
+
+        for (int i = 0; i < addresses.size(); i++) {
+            InetAddress address = addresses.get(i);
+            scheduler.skip(i, checkpoint.getScanned(address));
+            scheduler.restoreConsecutiveFiltered(i, checkpoint.getConsecutiveFiltered(address));
+            PortSet open = checkpoint.getOpen(address);
+            for (int port = open.nextPort(0); port != -1; port = open.nextPort(port + 1)) {
+                if (ports.contains(port)) openPortsFound.get(address).add(port);
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Delete the checkpoint if every port was scanned, otherwise save it so the scan can be resumed
+     */
+    private void finishCheckpoint(PortScanCheckpoint checkpoint) {
+        boolean complete = !cancelled;
+        for (int i = 0; complete && i < addresses.size(); i++) {
+            complete = checkpoint.isScanned(addresses.get(i), ports);
+        }
+        if (complete) {
+            checkpoint.delete();
+            return;
+        }
+        try {
+            checkpoint.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runScan(final HostPortScheduler scheduler) {
+        if (method == METHOD_TCP_NIO) {
+            nioScanner = new PortScanTCPNio(timeOutMillis, maxInFlight);
+            nioScanner.setProbeSockets(probeSockets);
+            nioScanner.setDescriptorBudget(descriptorBudget);
+            nioScanner.setAdaptiveTimeouts(adaptiveTimeout);
+            nioScanner.setRateLimiter(rateLimiter);
+            if (cancelled) nioScanner.cancel();
+            try {
+                nioScanner.scan(scheduler, new PortScanTCPNio.PortResultListener() {
+                    @Override
+                    public void onResult(InetAddress ia, int portNo, int state) {
+                        portScanned(ia, portNo, state);
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                nioScanner = null;
+            }
+            return;
+        }
+
+        if (method == METHOD_UDP_NIO) {
+            udpNioScanner = new PortScanUDPNio(timeOutMillis, maxInFlight);
+            udpNioScanner.setRateLimiter(rateLimiter);
+            udpNioScanner.setDescriptorBudget(descriptorBudget);
+            udpNioScanner.setPayloads(udpPayloads);
+            if (cancelled) udpNioScanner.cancel();
+            try {
+                udpNioScanner.scan(scheduler, new PortScanUDPNio.PortResultListener() {
+                    @Override
+                    public void onResult(InetAddress ia, int portNo, int state) {
+                        portScanned(ia, portNo, state);
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                udpNioScanner = null;
+            }
+            return;
+        }
+
+        final AdaptiveTimeout[] hostTimeouts = new AdaptiveTimeout[addresses.size()];
+        if (adaptiveTimeout && method == METHOD_TCP) {
+            for (int i = 0; i < hostTimeouts.length; i++) {
+                hostTimeouts[i] = new AdaptiveTimeout(timeOutMillis);
+            }
+        }
+
+        // Each worker pulls probes from the shared scheduler until none are left
+        final Cancellation cancellation = this.cancellation;
+        final DescriptorBudget budget = descriptorBudget;
+        ExecutorService executor = runtime.newExecutor(noThreads);
+        this.executor = executor;
+        for (int i = 0; i < noThreads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long probe;
+                        while (!cancelled && (probe = scheduler.take()) != HostPortScheduler.NONE) {
+                            if (rateLimiter != null) rateLimiter.acquire();
+                            // Wait for a free descriptor rather than have the probe fail with too many open files
+                            if (budget != null && !budget.acquire(1, cancellation)) {
+                                scheduler.complete(probe);
+                                break;
+                            }
+                            int hostIndex = HostPortScheduler.getHostIndex(probe);
+                            InetAddress ia = scheduler.getHost(hostIndex);
+                            int portNo = HostPortScheduler.getPort(probe);
+                            int state;
+                            if (method == METHOD_UDP) {
+                                state = PortScanUDP.scanPort(ia, portNo, timeOutMillis, udpPayloads.get(portNo), cancellation);
+                            } else if (hostTimeouts[hostIndex] != null) {
+                                state = PortScanTCP.scanPort(ia, portNo, hostTimeouts[hostIndex], cancellation, probeSockets);
+                            } else {
+                                state = PortScanTCP.scanPort(ia, portNo, timeOutMillis, cancellation, probeSockets);
+                            }
+                            if (budget != null) budget.release();
+                            if (!cancelled) scheduler.report(hostIndex, state);
+                            scheduler.complete(probe);
+                            portScanned(ia, portNo, state);
+                        }
+                    } catch (InterruptedException e) {
+                        // Expected when cancelled while waiting for a probe
+                        if (!cancelled) e.printStackTrace();
+                    }
+                }
+            });
+        }
+        // Cancelled before the executor was visible to cancel()
+        if (cancelled) executor.shutdownNow();
+
+        // This will make the executor accept no new threads
+        // and finish all existing threads in the queue
+        executor.shutdown();
+        // Wait until all threads are finish
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        this.executor = null;
+    }
+
+    private void portScanned(InetAddress address, int port, int state) {
+        // Ports aborted by a cancel were never really scanned
+        if (cancelled) return;
+
+        boolean open = state == PortResult.STATE_OPEN;
+        if (open) {
+            openPortsFound.get(address).add(port);
+        }
+        PortScanCheckpoint checkpoint = this.checkpoint;
+        // Left unmarked so a resumed scan tries a port that failed on this device again
+        if (checkpoint != null && state != PortResult.STATE_ERROR) {
+            checkpoint.markScanned(address, port, state);
+            checkpoint.saveIfDue();
+        }
+        ResultDispatcher<PortResult> dispatcher = resultDispatcher;
+        if (dispatcher != null) {
+            dispatcher.dispatch(new PortResult(address, port, state));
+        }
+    }
+
+}
@@ -1,12 +1,20 @@
 package com.stealthcopter.networktools;
 
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.NetworkToolsRuntime;
+import com.stealthcopter.networktools.concurrency.RateLimiter;
+import com.stealthcopter.networktools.ping.PingCapabilities;
+import com.stealthcopter.networktools.ping.PingNativeSession;
 import com.stealthcopter.networktools.ping.PingOptions;
 import com.stealthcopter.networktools.ping.PingResult;
 import com.stealthcopter.networktools.ping.PingStats;
 import com.stealthcopter.networktools.ping.PingTools;
+import com.stealthcopter.networktools.ping.SocketPing;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ScheduledFuture;
 
 public class Ping {
 
@@ -17,9 +25,15 @@ public class Ping {
     public static final int PING_NATIVE = 1;
 
     // Use a hybrid ping that will attempt to use native binary but fallback to using java method
-    // if it's not found.
+    // if it's not found, or to TCP if the java method doesn't work either.
     public static final int PING_HYBRID = 2;
 
+    // Time a TCP connection to a port, refused or not, without ICMP, see SocketPing
+    public static final int PING_TCP = 3;
+
+    // Time a UDP round trip to a port, answered or port unreachable, without ICMP, see SocketPing
+    public static final int PING_UDP = 4;
+
     // This class is not to be instantiated
     private Ping() {
     }
@@ -35,7 +49,13 @@ public class Ping {
     private final PingOptions pingOptions = new PingOptions();
     private int delayBetweenScansMillis = 0;
     private int times = 1;
-    private boolean cancelled = false;
+    private boolean streaming = false;
+    private int pingMethod = PING_HYBRID;
+    private volatile boolean cancelled = false;
+    private volatile Cancellation cancellation = new Cancellation();
+    private volatile PingSession session;
+    private RateLimiter rateLimiter;
+    private NetworkToolsRuntime runtime = NetworkToolsRuntime.getDefault();
 
     /**
      * Set the address to ping
@@ -101,6 +121,19 @@ public class Ping {
         return this;
     }
 
+    /**
+     * Whether to keep the output of the native ping binary in PingResult.fullString. Turning this
+     * off saves building a string for every ping when pinging often. PingResult.result still
+     * holds the min/avg/max/mdev times.
+     *
+     * @param keepFullString - false to not keep the output, default true
+     * @return this object to allow chaining
+     */
+    public Ping setKeepFullString(boolean keepFullString) {
+        pingOptions.setKeepFullString(keepFullString);
+        return this;
+    }
+
     /**
      * Set number of times to ping the address
      *
@@ -113,6 +146,75 @@ public class Ping {
         return this;
     }
 
+    /**
+     * Choose how to ping, which backends work is only checked once, see {@link PingCapabilities}
+     *
+     * @param pingMethod - PING_JAVA, PING_NATIVE, PING_TCP, PING_UDP or PING_HYBRID (the default)
+     *                   to use the native ping binary if it works and java if not
+     * @return this object to allow chaining
+     */
+    public Ping setPingMethod(int pingMethod) {
+        if (pingMethod < PING_JAVA || pingMethod > PING_UDP) {
+            throw new IllegalArgumentException("Invalid ping method " + pingMethod);
+        }
+        this.pingMethod = pingMethod;
+        return this;
+    }
+
+    /**
+     * Set the port pinged by PING_TCP and PING_UDP
+     *
+     * @param port - the port, or 0 for the default, see {@link SocketPing}
+     * @return this object to allow chaining
+     */
+    public Ping setPort(int port) {
+        if (port < 0 || port > 65535) throw new IllegalArgumentException("Invalid port " + port);
+        pingOptions.setPort(port);
+        return this;
+    }
+
+    /**
+     * Send a series of asynchronous pings from one long running native ping process, reading each
+     * reply as it arrives, instead of starting a new process for every ping. This makes continuous
+     * pinging far cheaper and allows pings less than a second apart.
+     *
+     * The delay is then the interval between pings being sent, no less than
+     * {@link PingNativeSession#MIN_INTERVAL_MILLIS}. If the native ping binary isn't used or can't
+     * be run, or a rate limiter is set, a process is started for each ping as normal.
+     *
+     * @param streaming - true to use a single ping process for the series
+     * @return this object to allow chaining
+     */
+    public Ping setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * Limit the number of pings sent per second. The same limiter can be shared between many
+     * pings and scans to keep their combined rate within budget.
+     *
+     * @param rateLimiter - the limiter to use, or null for no limit
+     * @return this object to allow chaining
+     */
+    public Ping setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Run asynchronous pings on the threads of the given runtime rather than the shared default
+     * one, see {@link NetworkToolsRuntime}
+     *
+     * @param runtime - the runtime to use
+     * @return this object to allow chaining
+     */
+    public Ping setRuntime(NetworkToolsRuntime runtime) {
+        if (runtime == null) throw new IllegalArgumentException("Runtime cannot be null");
+        this.runtime = runtime;
+        return this;
+    }
+
     private void setAddress(InetAddress address) {
         this.address = address;
     }
@@ -138,10 +240,13 @@ public class Ping {
     }
 
     /**
-     * Cancel a running ping
+     * Cancel a running ping, a native ping in progress is killed rather than left to time out
      */
     public void cancel() {
         this.cancelled = true;
+        cancellation.cancel();
+        PingSession session = this.session;
+        if (session != null) session.cancel();
     }
 
     /**
@@ -154,80 +259,243 @@ public class Ping {
      * @throws UnknownHostException - if the host cannot be resolved
      */
     public PingResult doPing() throws UnknownHostException {
+        return doPing(new Cancellation());
+    }
+
+    /**
+     * Perform a synchronous ping that can be aborted by the caller's own cancellation, e.g. one
+     * shared by all the pings of a subnet scan
+     *
+     * @param cancellation - if cancelled the ping is aborted straight away
+     * @return - ping result
+     * @throws UnknownHostException - if the host cannot be resolved
+     */
+    PingResult doPing(Cancellation cancellation) throws UnknownHostException {
         cancelled = false;
+        this.cancellation = cancellation;
         resolveAddressString();
-        return PingTools.doPing(address, pingOptions);
+        if (rateLimiter != null) {
+            try {
+                rateLimiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                PingResult pingResult = new PingResult(address);
+                pingResult.isReachable = false;
+                pingResult.error = "Interrupted";
+                return pingResult;
+            }
+        }
+        return PingTools.doPing(address, pingOptions, cancellation, pingMethod);
     }
 
     /**
-     * Perform an asynchronous ping
+     * Perform an asynchronous ping. Each ping runs on one of the runtime's task threads and the
+     * delay between pings is waited out on its timer, so no thread is held while waiting.
      *
      * @param pingListener - the listener to fire PingResults to.
      * @return - this so we can cancel if needed
      */
     public Ping doPing(final PingListener pingListener) {
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
+        // Reset before starting so a cancel straight after this returns is not lost
+        cancelled = false;
+        final Cancellation cancellation = new Cancellation();
+        this.cancellation = cancellation;
 
-                try {
-                    resolveAddressString();
-                } catch (UnknownHostException e) {
-                    pingListener.onError(e);
-                    return;
+        PingSession session = new PingSession(pingListener, cancellation);
+        this.session = session;
+        runtime.execute(session);
+        return this;
+    }
+
+    /**
+     * The state of an asynchronous series of pings, run once for each ping
+     */
+    private class PingSession implements Runnable {
+        private final PingListener pingListener;
+        private final Cancellation cancellation;
+
+        private boolean started = false;
+        private int noPings = times;
+        private long pingsCompleted = 0;
+        private long noLostPackets = 0;
+        private float totalPingTime = 0;
+        private float minPingTime = -1;
+        private float maxPingTime = -1;
+
+        // Guarded by this, the thread running a ping or the wait for the next one
+        private Thread thread;
+        private ScheduledFuture<?> nextPing;
+        private boolean finished = false;
+
+        PingSession(PingListener pingListener, Cancellation cancellation) {
+            this.pingListener = pingListener;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (finished) return;
+                thread = Thread.currentThread();
+                nextPing = null;
+            }
+
+            boolean more;
+            try {
+                if (!started) {
+                    started = true;
+                    if (!resolve()) {
+                        synchronized (this) {
+                            finished = true;
+                        }
+                        return;
+                    }
+                    more = !(streaming && rateLimiter == null && pingStream()) && pingOnce();
+                } else {
+                    more = pingOnce();
+                }
+            } finally {
+                synchronized (this) {
+                    thread = null;
                 }
+                // The thread is shared, so don't leave the interrupt from a cancel set
+                Thread.interrupted();
+            }
 
-                if (address == null) {
-                    pingListener.onError(new NullPointerException("Address is null"));
-                    return;
+            if (more) {
+                synchronized (this) {
+                    if (!cancelled) {
+                        nextPing = runtime.schedule(this, delayBetweenScansMillis);
+                        return;
+                    }
                 }
+            }
+            finish();
+        }
 
-                long pingsCompleted = 0;
-                long noLostPackets = 0;
-                float totalPingTime = 0;
-                float minPingTime = -1;
-                float maxPingTime = -1;
+        /**
+         * @return true if the address was resolved, otherwise the listener has been told why not
+         */
+        private boolean resolve() {
+            try {
+                resolveAddressString();
+            } catch (UnknownHostException e) {
+                pingListener.onError(e);
+                return false;
+            }
 
-                cancelled = false;
-                int noPings = times;
+            if (address == null) {
+                pingListener.onError(new NullPointerException("Address is null"));
+                return false;
+            }
+            return true;
+        }
 
-                // times == 0 is the case that we can continuous scanning
-                while (noPings > 0 || times == 0) {
-                    PingResult pingResult = PingTools.doPing(address, pingOptions);
+        /**
+         * @return true if there are more pings to send
+         */
+        private boolean pingOnce() {
+            if (cancelled) return false;
 
-                    if (pingListener != null) {
-                        pingListener.onResult(pingResult);
-                    }
+            if (rateLimiter != null) {
+                try {
+                    rateLimiter.acquire();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
 
-                    // Update ping stats
-                    pingsCompleted++;
+            return record(PingTools.doPing(address, pingOptions, cancellation, pingMethod));
+        }
 
-                    if (pingResult.hasError()) {
-                        noLostPackets++;
-                    } else {
-                        float timeTaken = pingResult.getTimeTaken();
-                        totalPingTime += timeTaken;
-                        if (maxPingTime == -1 || timeTaken > maxPingTime) maxPingTime = timeTaken;
-                        if (minPingTime == -1 || timeTaken < minPingTime) minPingTime = timeTaken;
-                    }
+        /**
+         * Send the series from a single native ping process, holding this thread until it ends
+         *
+         * @return true if the series was sent, false if the ping process could not be used and
+         * the pings should be sent one at a time instead
+         */
+        private boolean pingStream() {
+            if (cancelled) return true;
+            if ((pingMethod != PING_NATIVE && pingMethod != PING_HYBRID) || !PingTools.hasNativePing(address)) {
+                return false;
+            }
 
-                    noPings--;
-                    if (cancelled) break;
+            PingNativeSession nativeSession = new PingNativeSession(address, pingOptions, delayBetweenScansMillis, times);
+            try {
+                nativeSession.start(cancellation);
+            } catch (IOException e) {
+                return false;
+            }
 
-                    try {
-                        Thread.sleep(delayBetweenScansMillis);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+            try {
+                PingResult pingResult;
+                while ((pingResult = nativeSession.next()) != null) {
+                    if (!record(pingResult)) break;
                 }
+            } catch (InterruptedException e) {
+                // Cancelled
+            } finally {
+                nativeSession.close();
+            }
+            // Nothing came back from the process at all, e.g. no permission to use it
+            return nativeSession.getNoResults() > 0 || cancelled;
+        }
+
+        /**
+         * Report a ping's result and add it to the stats
+         *
+         * @return true if there are more pings to send
+         */
+        private boolean record(PingResult pingResult) {
+            if (pingListener != null) {
+                pingListener.onResult(pingResult);
+            }
+
+            // Update ping stats
+            pingsCompleted++;
+
+            if (pingResult.hasError()) {
+                noLostPackets++;
+            } else {
+                float timeTaken = pingResult.getTimeTaken();
+                totalPingTime += timeTaken;
+                if (maxPingTime == -1 || timeTaken > maxPingTime) maxPingTime = timeTaken;
+                if (minPingTime == -1 || timeTaken < minPingTime) minPingTime = timeTaken;
+            }
+
+            noPings--;
+            // times == 0 is the case that we can continuous scanning
+            return (noPings > 0 || times == 0) && !cancelled;
+        }
 
-                if (pingListener != null) {
-                    pingListener.onFinished(new PingStats(address, pingsCompleted, noLostPackets, totalPingTime, minPingTime, maxPingTime));
+        /**
+         * Stop the series, interrupting a ping in progress or finishing straight away if waiting
+         * for the next one
+         */
+        void cancel() {
+            synchronized (this) {
+                if (thread != null) thread.interrupt();
+                if (nextPing == null || !nextPing.cancel(false)) return;
+                nextPing = null;
+            }
+            runtime.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish();
                 }
+            });
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
             }
-        }).start();
-        return this;
+            if (pingListener != null) {
+                pingListener.onFinished(new PingStats(address, pingsCompleted, noLostPackets, totalPingTime, minPingTime, maxPingTime));
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -1,39 +1,105 @@
 package com.stealthcopter.networktools;
 
+import com.stealthcopter.networktools.concurrency.AIMDController;
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+import com.stealthcopter.networktools.concurrency.NetworkToolsRuntime;
+import com.stealthcopter.networktools.concurrency.RateLimiter;
+import com.stealthcopter.networktools.concurrency.ResultDispatcher;
+import com.stealthcopter.networktools.portscanning.AdaptiveTimeout;
+import com.stealthcopter.networktools.portscanning.ConcurrentPortSet;
+import com.stealthcopter.networktools.portscanning.FilteredHostPolicy;
+import com.stealthcopter.networktools.portscanning.HostPortScheduler;
+import com.stealthcopter.networktools.portscanning.PortResult;
+import com.stealthcopter.networktools.portscanning.PortProfile;
+import com.stealthcopter.networktools.portscanning.ProbeSockets;
+import com.stealthcopter.networktools.portscanning.PortResultIterator;
+import com.stealthcopter.networktools.portscanning.PortScanCheckpoint;
 import com.stealthcopter.networktools.portscanning.PortScanTCP;
+import com.stealthcopter.networktools.portscanning.PortScanTCPNio;
+import com.stealthcopter.networktools.portscanning.PortSet;
 import com.stealthcopter.networktools.portscanning.PortScanUDP;
+import com.stealthcopter.networktools.portscanning.PortScanUDPNio;
+import com.stealthcopter.networktools.portscanning.ServiceDetector;
+import com.stealthcopter.networktools.portscanning.ServiceInfo;
+import com.stealthcopter.networktools.portscanning.UDPPayloads;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 public class PortScan {
 
-    private static final int TIMEOUT_LOCALHOST = 25;
-    private static final int TIMEOUT_LOCALNETWORK = 1000;
-    private static final int TIMEOUT_REMOTE = 2500;
+    static final int TIMEOUT_LOCALHOST = 25;
+    static final int TIMEOUT_LOCALNETWORK = 1000;
+    static final int TIMEOUT_REMOTE = 2500;
 
     private static final int DEFAULT_THREADS_LOCALHOST = 7;
     private static final int DEFAULT_THREADS_LOCALNETWORK = 50;
     private static final int DEFAULT_THREADS_REMOTE = 50;
 
+    static final int DEFAULT_MAX_IN_FLIGHT = 500;
+
     private static final int METHOD_TCP = 0;
     private static final int METHOD_UDP = 1;
+    private static final int METHOD_TCP_NIO = 2;
+    private static final int METHOD_UDP_NIO = 3;
 
     private int method = METHOD_TCP;
     private int noThreads = 50;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
     private InetAddress address;
     private int timeOutMillis = 1000;
-    private boolean cancelled = false;
-
-    private ArrayList<Integer> ports = new ArrayList<>();
-    private ArrayList<Integer> openPortsFound = new ArrayList<>();
+    private boolean adaptiveTimeout = false;
+    private AdaptiveTimeout hostTimeout;
+    private AIMDController concurrencyController;
+    private RateLimiter rateLimiter;
+    private DescriptorBudget descriptorBudget = DescriptorBudget.getDefault();
+    private NetworkToolsRuntime runtime = NetworkToolsRuntime.getDefault();
+    private UDPPayloads udpPayloads = UDPPayloads.defaults();
+    private volatile boolean cancelled = false;
+    private volatile Cancellation cancellation = new Cancellation();
+    private volatile ExecutorService executor;
+    private volatile PortScanTCPNio nioScanner;
+    private volatile PortScanUDPNio udpNioScanner;
+
+    private boolean serviceDetection = false;
+    private int serviceDetectionThreads = ServiceDetector.DEFAULT_NO_THREADS;
+    private int serviceDetectionTimeoutMillis = ServiceDetector.DEFAULT_TIMEOUT_MILLIS;
+    private ServiceDetector.ServiceListener serviceListener;
+    private volatile ServiceDetector serviceDetector;
+    private final ConcurrentLinkedQueue<ServiceInfo> servicesFound = new ConcurrentLinkedQueue<>();
+
+    private PortSet ports = new PortSet();
+    // Order to scan the ports in, or null for ascending
+    private int[] portOrder;
+    private final ConcurrentPortSet openPortsFound = new ConcurrentPortSet();
+    private final ConcurrentPortSet closedPortsFound = new ConcurrentPortSet();
+    private final ConcurrentPortSet filteredPortsFound = new ConcurrentPortSet();
+    private final ConcurrentPortSet failedPortsFound = new ConcurrentPortSet();
+    private FilteredHostPolicy filteredHostPolicy;
+    private boolean randomOrder = false;
+    private ProbeSockets probeSockets = new ProbeSockets();
+    private volatile boolean hostAbandoned = false;
+
+    private File checkpointFile;
+    private long checkpointIntervalMillis = PortScanCheckpoint.DEFAULT_SAVE_INTERVAL_MILLIS;
+    private volatile PortScanCheckpoint checkpoint;
 
     private PortListener portListener;
+    private volatile ResultDispatcher<PortResult> resultDispatcher;
+    private volatile PortResultIterator resultIterator;
 
     // This class is not to be instantiated
     private PortScan() {
@@ -91,6 +157,22 @@ public class PortScan {
         return this;
     }
 
+    /**
+     * Adapt the timeout during a TCP scan from the round trip times measured to the host.
+     * <p>
+     * The timeout set by {@link #setTimeOutMillis(int)} (or the default) is used until the first
+     * port answers, after that the timeout follows the smoothed RTT plus variance in the same way
+     * as TCP's retransmission timeout. This makes sweeps of filtered ports on a nearby host much
+     * faster.
+     *
+     * @param adaptiveTimeout - true to enable adaptive timeouts
+     * @return this object to allow chaining
+     */
+    public PortScan setAdaptiveTimeout(boolean adaptiveTimeout) {
+        this.adaptiveTimeout = adaptiveTimeout;
+        return this;
+    }
+
     /**
      * Scan the ports to scan
      *
@@ -98,6 +180,7 @@ public class PortScan {
      * @return this object to allow chaining
      */
     public PortScan setPort(int port) {
+        portOrder = null;
         ports.clear();
         validatePort(port);
         ports.add(port);
@@ -117,11 +200,40 @@ public class PortScan {
             validatePort(port);
         }
 
-        this.ports = ports;
+        this.ports = PortSet.of(ports);
+        this.portOrder = null;
 
         return this;
     }
 
+    /**
+     * Scan the ports to scan
+     *
+     * @param ports - the ports to scan
+     * @return this object to allow chaining
+     */
+    public PortScan setPorts(PortSet ports) {
+        if (ports == null) throw new IllegalArgumentException("Ports cannot be null");
+        this.ports = new PortSet(ports);
+        this.portOrder = null;
+        return this;
+    }
+
+    /**
+     * Scan the ports in a profile, most likely to be open first. For example
+     * {@code setPorts(PortProfile.topTCP(100))} finds most open ports far quicker than
+     * {@link #setPortsPrivileged()}.
+     *
+     * @param profile - the ranked ports to scan
+     * @return this object to allow chaining
+     */
+    public PortScan setPorts(PortProfile profile) {
+        if (profile == null) throw new IllegalArgumentException("Profile cannot be null");
+        this.ports = profile.toPortSet();
+        this.portOrder = profile.getPorts();
+        return this;
+    }
+
     /**
      * Scan the ports to scan
      *
@@ -133,34 +245,8 @@ public class PortScan {
 
         ports.clear();
 
-        ArrayList<Integer> ports = new ArrayList<>();
-
-        if (portString == null) {
-            throw new IllegalArgumentException("Empty port string not allowed");
-        }
-
-        portString = portString.substring(portString.indexOf(":") + 1, portString.length());
-
-        for (String x : portString.split(",")) {
-            if (x.contains("-")) {
-                int start = Integer.parseInt(x.split("-")[0]);
-                int end = Integer.parseInt(x.split("-")[1]);
-                validatePort(start);
-                validatePort(end);
-                if (end <= start)
-                    throw new IllegalArgumentException("Start port cannot be greater than or equal to the end port");
-
-                for (int j = start; j <= end; j++) {
-                    ports.add(j);
-                }
-            } else {
-                int start = Integer.parseInt(x);
-                validatePort(start);
-                ports.add(start);
-            }
-        }
-
-        this.ports = ports;
+        this.ports = PortSet.parse(portString);
+        this.portOrder = null;
 
         return this;
     }
@@ -181,10 +267,9 @@ public class PortScan {
      * @return this object to allow chaining
      */
     public PortScan setPortsPrivileged() {
+        portOrder = null;
         ports.clear();
-        for (int i = 1; i < 1024; i++) {
-            ports.add(i);
-        }
+        ports.addRange(1, 1023);
         return this;
     }
 
@@ -194,10 +279,9 @@ public class PortScan {
      * @return this object to allow chaining
      */
     public PortScan setPortsAll() {
+        portOrder = null;
         ports.clear();
-        for (int i = 1; i < 65536; i++) {
-            ports.add(i);
-        }
+        ports.addRange(PortSet.MIN_PORT, PortSet.MAX_PORT);
         return this;
     }
 
@@ -226,7 +310,9 @@ public class PortScan {
 
     /**
      * @param noThreads set the number of threads to work with, note we default to a large number
-     *                  as these requests are network heavy not cpu heavy.
+     *                  as these requests are network heavy not cpu heavy. The threads are taken
+     *                  from the runtime's workers, so this is capped at
+     *                  {@link NetworkToolsRuntime#getMaxWorkers()}, see {@link #setRuntime(NetworkToolsRuntime)}
      * @return self
      * @throws IllegalArgumentException - if no threads is less than 1
      */
@@ -236,11 +322,171 @@ public class PortScan {
         return this;
     }
 
+    /**
+     * Let the number of probes in flight adapt to the network instead of using a fixed number.
+     * <p>
+     * The controller raises the number of probes in flight while results come back quickly and
+     * backs off when timeouts spike. The thread count {@link #setNoThreads(int)} and
+     * {@link #setMaxInFlight(int)} are ignored for the blocking methods, the controller's max window
+     * is used instead. The current window can be read from the controller while scanning, and a
+     * controller may be shared between scans.
+     *
+     * @param concurrencyController - the controller to use, or null to use a fixed thread count
+     * @return this object to allow chaining
+     */
+    public PortScan setConcurrencyController(AIMDController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+        return this;
+    }
+
+    /**
+     * Limit the number of probes sent per second. The same limiter can be shared between scans to
+     * keep their combined rate within budget.
+     *
+     * @param rateLimiter - the limiter to use, or null for no limit
+     * @return this object to allow chaining
+     */
+    public PortScan setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Stop scanning, or only sample, a host once it has dropped a run of probes in a row, e.g.
+     * {@code FilteredHostPolicy.abandonAfter(100)}. A host behind a firewall that drops every
+     * probe otherwise costs a full timeout per port. See {@link #isHostAbandoned()}.
+     *
+     * @param filteredHostPolicy - the policy to use, or null to scan every port
+     * @return this object to allow chaining
+     */
+    public PortScan setFilteredHostPolicy(FilteredHostPolicy filteredHostPolicy) {
+        this.filteredHostPolicy = filteredHostPolicy;
+        return this;
+    }
+
+    /**
+     * Scan the ports in a pseudo-random order instead of ascending or profile order, so the scan
+     * doesn't show up as a sweep to anything watching the host. The order is generated as the scan
+     * runs rather than by shuffling a list of the ports.
+     *
+     * @param randomOrder - true to scan in a random order
+     * @return this object to allow chaining
+     */
+    public PortScan setRandomOrder(boolean randomOrder) {
+        this.randomOrder = randomOrder;
+        return this;
+    }
+
+    /**
+     * Control how the TCP probe sockets are created and closed, e.g.
+     * {@code new ProbeSockets().setAbortiveClose(true)} so that connections to open ports don't
+     * pile up in TIME_WAIT on very large scans. Share one between scans to count their sockets
+     * together.
+     *
+     * @param probeSockets - the probe sockets to use, see {@link ProbeSockets}
+     * @return this object to allow chaining
+     */
+    public PortScan setProbeSockets(ProbeSockets probeSockets) {
+        if (probeSockets == null) throw new IllegalArgumentException("Probe sockets cannot be null");
+        this.probeSockets = probeSockets;
+        return this;
+    }
+
+    /**
+     * @return the probe sockets in use, e.g. to watch {@link ProbeSockets#getOutstanding()} while
+     * the scan runs
+     */
+    public ProbeSockets getProbeSockets() {
+        return probeSockets;
+    }
+
+    /**
+     * Share a budget of file descriptors with other scans, see {@link DescriptorBudget}. By
+     * default every scan shares {@link DescriptorBudget#getDefault()}, so a scan waits for
+     * descriptors to be free rather than failing probes with "Too many open files".
+     *
+     * @param descriptorBudget - the budget to use, or null for no limit
+     * @return this object to allow chaining
+     */
+    public PortScan setDescriptorBudget(DescriptorBudget descriptorBudget) {
+        this.descriptorBudget = descriptorBudget;
+        return this;
+    }
+
+    /**
+     * Run the scan on the threads of the given runtime rather than the shared default one, see
+     * {@link NetworkToolsRuntime}
+     *
+     * @param runtime - the runtime to use
+     * @return this object to allow chaining
+     */
+    public PortScan setRuntime(NetworkToolsRuntime runtime) {
+        if (runtime == null) throw new IllegalArgumentException("Runtime cannot be null");
+        this.runtime = runtime;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of connects outstanding at once when using the non-blocking TCP
+     * method {@link #setMethodTCPNio()}. This is limited by the number of file descriptors
+     * available to the process rather than by threads.
+     *
+     * @param maxInFlight - maximum number of simultaneous connects
+     * @return this object to allow chaining
+     * @throws IllegalArgumentException - if max in flight is less than 1
+     */
+    public PortScan setMaxInFlight(int maxInFlight) throws IllegalArgumentException {
+        if (maxInFlight < 1) throw new IllegalArgumentException("Cannot have less than 1 connect in flight");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Identify the service on each open port found by a TCP scan from its banner, using the same
+     * connection as the scan. Banners are read by a separate set of threads so the scan itself is
+     * not slowed down, and the scan finishes once every open port has been identified.
+     *
+     * @param serviceDetection - true to identify services
+     * @return this object to allow chaining
+     */
+    public PortScan setServiceDetection(boolean serviceDetection) {
+        this.serviceDetection = serviceDetection;
+        return this;
+    }
+
+    /**
+     * Identify the service on each open port, see {@link #setServiceDetection(boolean)}
+     *
+     * @param noThreads     - number of banners to read at once
+     * @param timeoutMillis - time to wait for each server's banner
+     * @return this object to allow chaining
+     * @throws IllegalArgumentException - if threads less than 1 or timeout less than 0
+     */
+    public PortScan setServiceDetection(int noThreads, int timeoutMillis) throws IllegalArgumentException {
+        if (noThreads < 1) throw new IllegalArgumentException("Cannot have less than 1 thread");
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Timeout cannot be less than 0");
+        this.serviceDetection = true;
+        this.serviceDetectionThreads = noThreads;
+        this.serviceDetectionTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param serviceListener - listener to fire each service identified to, called from the
+     *                        service detection threads
+     * @return this object to allow chaining
+     */
+    public PortScan setServiceListener(ServiceDetector.ServiceListener serviceListener) {
+        this.serviceListener = serviceListener;
+        return this;
+    }
+
 
     /**
      * Set scan method, either TCP or UDP
      *
-     * @param method - the transport method to use to scan, either PortScan.METHOD_UDP or PortScan.METHOD_TCP
+     * @param method - the transport method to use to scan, PortScan.METHOD_UDP, PortScan.METHOD_TCP,
+     *               PortScan.METHOD_TCP_NIO or PortScan.METHOD_UDP_NIO
      * @return this object to allow chaining
      * @throws IllegalArgumentException - if invalid method
      */
@@ -248,6 +494,8 @@ public class PortScan {
         switch (method) {
             case METHOD_UDP:
             case METHOD_TCP:
+            case METHOD_TCP_NIO:
+            case METHOD_UDP_NIO:
                 this.method = method;
                 break;
             default:
@@ -257,7 +505,8 @@ public class PortScan {
     }
 
     /**
-     * Set scan method to UDP
+     * Set scan method to UDP. A port is only reported as open if it replies, ports that stay
+     * silent could be open or filtered, see {@link #getFilteredPorts()}.
      *
      * @return this object to allow chaining
      */
@@ -276,12 +525,93 @@ public class PortScan {
         return this;
     }
 
+    /**
+     * Set scan method to non-blocking TCP. All ports are connected to from a single thread using
+     * a selector, so the thread count is ignored and concurrency is set by
+     * {@link #setMaxInFlight(int)} instead. This is much faster for large scans of remote hosts.
+     *
+     * @return this object to allow chaining
+     */
+    public PortScan setMethodTCPNio() {
+        setMethod(METHOD_TCP_NIO);
+        return this;
+    }
+
+    /**
+     * Set scan method to non-blocking UDP. As with {@link #setMethodUDP()} a port is only reported
+     * as open if it replies, ports that send back ICMP port unreachable are closed and ports that
+     * stay silent could be open or filtered, see {@link #getFilteredPorts()}. As with
+     * {@link #setMethodTCPNio()} concurrency is set by {@link #setMaxInFlight(int)}.
+     *
+     * @return this object to allow chaining
+     */
+    public PortScan setMethodUDPNio() {
+        setMethod(METHOD_UDP_NIO);
+        return this;
+    }
+
+    /**
+     * Set the datagrams sent to each port by a UDP scan. By default well known services such as
+     * DNS, NTP and SNMP are sent a valid request so that they answer straight away.
+     *
+     * @param udpPayloads - payloads to send, see {@link UDPPayloads#defaults()}
+     * @return this object to allow chaining
+     */
+    public PortScan setUDPPayloads(UDPPayloads udpPayloads) {
+        this.udpPayloads = udpPayloads != null ? udpPayloads : new UDPPayloads();
+        return this;
+    }
+
+    /**
+     * Save the progress of the scan to a file so that it can be resumed if interrupted.
+     * <p>
+     * If the file exists when the scan starts, the ports it records as scanned are skipped and
+     * the open ports it records are included in the results (but not fired to the listener again).
+     * The file is saved periodically while scanning and when the scan is cancelled, and deleted
+     * once every port has been scanned. Use a different file for each host and method.
+     *
+     * @param checkpointFile - file to save progress to, or null to not save progress
+     * @return this object to allow chaining
+     */
+    public PortScan setCheckpoint(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        return this;
+    }
+
+    /**
+     * Save the progress of the scan to a file, see {@link #setCheckpoint(File)}
+     *
+     * @param checkpointFile     - file to save progress to
+     * @param saveIntervalMillis - minimum time between saves while scanning
+     * @return this object to allow chaining
+     */
+    public PortScan setCheckpoint(File checkpointFile, long saveIntervalMillis) {
+        if (saveIntervalMillis < 0) throw new IllegalArgumentException("Save interval cannot be less than 0");
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalMillis = saveIntervalMillis;
+        return this;
+    }
 
     /**
-     * Cancel a running ping
+     * Cancel a running scan. Connects in progress are aborted rather than left to time out, so
+     * the scan returns straight away.
      */
     public void cancel() {
         this.cancelled = true;
+        cancellation.cancel();
+        PortScanTCPNio scanner = nioScanner;
+        if (scanner != null) scanner.cancel();
+        PortScanUDPNio udpScanner = udpNioScanner;
+        if (udpScanner != null) udpScanner.cancel();
+        ServiceDetector detector = serviceDetector;
+        if (detector != null) detector.cancel();
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            List<Runnable> neverRun = executor.shutdownNow();
+            for (Runnable worker : neverRun) {
+                ((PortScanRunnable) worker).skip();
+            }
+        }
     }
 
     /**
@@ -292,28 +622,72 @@ public class PortScan {
     public ArrayList<Integer> doScan() {
 
         cancelled = false;
+        cancellation = new Cancellation();
         openPortsFound.clear();
+        resultIterator = null;
 
-        ExecutorService executor = Executors.newFixedThreadPool(noThreads);
+        runScan();
 
-        for (int portNo : ports) {
-            Runnable worker = new PortScanRunnable(address, portNo, timeOutMillis, method);
-            executor.execute(worker);
-        }
+        return openPortsFound.snapshot().toList();
+    }
 
-        // This will make the executor accept no new threads
-        // and finish all existing threads in the queue
-        executor.shutdown();
-        // Wait until all threads are finish
-        try {
-            executor.awaitTermination(1, TimeUnit.HOURS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Get the open ports found by the last scan, this is much more compact than the list returned
+     * from {@link #doScan()} when holding on to results for many hosts.
+     *
+     * @return - the open ports found
+     */
+    public PortSet getOpenPorts() {
+        return openPortsFound.snapshot();
+    }
 
-        Collections.sort(openPortsFound);
+    /**
+     * Get the ports from the last scan that the host answered were closed, with a TCP reset or
+     * ICMP port unreachable
+     *
+     * @return - the closed ports found
+     */
+    public PortSet getClosedPorts() {
+        return closedPortsFound.snapshot();
+    }
+
+    /**
+     * Get the ports from the last scan that never answered. For TCP these are filtered, most
+     * likely by a firewall, and for UDP they could be open or filtered as UDP services do not have
+     * to reply.
+     *
+     * @return - the filtered and open|filtered ports found
+     */
+    public PortSet getFilteredPorts() {
+        return filteredPortsFound.snapshot();
+    }
 
-        return openPortsFound;
+    /**
+     * Get the ports from the last scan that could not be probed as this device ran out of local
+     * ports or file descriptors, so nothing is known about them. Scan them again once the load
+     * has dropped, a checkpointed scan does this when resumed.
+     *
+     * @return - the ports that failed to be scanned
+     */
+    public PortSet getFailedPorts() {
+        return failedPortsFound.snapshot();
+    }
+
+    /**
+     * @return - true if the last scan gave up on the host before scanning every port, see
+     * {@link #setFilteredHostPolicy(FilteredHostPolicy)}
+     */
+    public boolean isHostAbandoned() {
+        return hostAbandoned;
+    }
+
+    /**
+     * Get the services identified by the last scan, see {@link #setServiceDetection(boolean)}
+     *
+     * @return - the services found, in the order they were identified
+     */
+    public ArrayList<ServiceInfo> getServices() {
+        return new ArrayList<>(servicesFound);
     }
 
     /**
@@ -327,77 +701,451 @@ public class PortScan {
         this.portListener = portListener;
         openPortsFound.clear();
         cancelled = false;
+        cancellation = new Cancellation();
+        resultIterator = null;
+        resultDispatcher = portListener == null ? null : new ResultDispatcher<>(new ResultDispatcher.Handler<PortResult>() {
+            @Override
+            public void onResult(PortResult result) {
+                portListener.onResult(result.portNo, result.open);
+            }
+        });
 
-        new Thread(new Runnable() {
+        runtime.execute(new Runnable() {
             @Override
             public void run() {
 
-                ExecutorService executor = Executors.newFixedThreadPool(noThreads);
+                runScan();
 
-                for (int portNo : ports) {
-                    Runnable worker = new PortScanRunnable(address, portNo, timeOutMillis, method);
-                    executor.execute(worker);
+                if (portListener != null) {
+                    resultDispatcher.drain();
+                    portListener.onFinished(openPortsFound.snapshot().toList());
                 }
 
-                // This will make the executor accept no new threads
-                // and finish all existing threads in the queue
-                executor.shutdown();
-                // Wait until all threads are finish
+            }
+        });
+
+        return this;
+    }
+
+    /**
+     * Perform an asynchronous (non-blocking) port scan where the results are pulled from an
+     * iterator instead of pushed to a listener.
+     * <p>
+     * At most bufferSize results can be in flight or waiting to be read, once the buffer is full
+     * no new ports are scanned until the consumer catches up. This means a slow consumer slows the
+     * scan down rather than blocking the threads doing the scanning. Closing the iterator cancels
+     * the scan.
+     *
+     * @param bufferSize - maximum number of unread results (and ports in flight)
+     * @return - an iterator over the results as they arrive, hasNext() will block until the next
+     * result is available or the scan has finished
+     */
+    public PortResultIterator doScanStream(int bufferSize) {
+
+        this.portListener = null;
+        resultDispatcher = null;
+        openPortsFound.clear();
+        cancelled = false;
+        cancellation = new Cancellation();
+
+        final PortResultIterator iterator = new PortResultIterator(bufferSize, new Runnable() {
+            @Override
+            public void run() {
+                cancel();
+            }
+        });
+        resultIterator = iterator;
+
+        runtime.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    executor.awaitTermination(1, TimeUnit.HOURS);
+                    runScan();
+                } finally {
+                    iterator.finish();
+                }
+            }
+        });
+
+        return iterator;
+    }
+
+    /**
+     * Scan all ports on the current thread, using either the selector or a thread pool depending
+     * on the method chosen
+     */
+    private void runScan() {
+        hostTimeout = adaptiveTimeout ? new AdaptiveTimeout(timeOutMillis) : null;
+        servicesFound.clear();
+        closedPortsFound.clear();
+        filteredPortsFound.clear();
+        failedPortsFound.clear();
+        hostAbandoned = false;
+
+        PortScanCheckpoint checkpoint = loadCheckpoint();
+        this.checkpoint = checkpoint;
+
+        // UDP has no connection to read a banner from
+        ServiceDetector detector = null;
+        if (serviceDetection && (method == METHOD_TCP || method == METHOD_TCP_NIO)) {
+            detector = new ServiceDetector(runtime, serviceDetectionThreads, serviceDetectionTimeoutMillis, cancellation,
+                    new ServiceDetector.ServiceListener() {
+                        @Override
+                        public void onService(ServiceInfo serviceInfo) {
+                            servicesFound.add(serviceInfo);
+                            if (serviceListener != null) serviceListener.onService(serviceInfo);
+                        }
+                    });
+            if (cancelled) detector.cancel();
+        }
+        serviceDetector = detector;
+
+        try {
+            if (method == METHOD_TCP_NIO) {
+                runNioScan();
+            } else if (method == METHOD_UDP_NIO) {
+                runUdpNioScan();
+            } else {
+                runThreadedScan();
+            }
+        } finally {
+            // Wait for the banners still being read
+            if (detector != null) detector.finish();
+            serviceDetector = null;
+            if (checkpoint != null) finishCheckpoint(checkpoint);
+            this.checkpoint = null;
+        }
+    }
+
+    /**
+     * @return the checkpoint to record progress in, with the open, closed and filtered ports it
+     * holds already added to the results, or null if there is no checkpoint file
+     */
+    private PortScanCheckpoint loadCheckpoint() {
+        if (checkpointFile == null) return null;
+        PortScanCheckpoint checkpoint;
+        try {
+            checkpoint = PortScanCheckpoint.load(checkpointFile);
+        } catch (IOException e) {
+            // Unreadable, so start the scan from the beginning
+            e.printStackTrace();
+            checkpoint = new PortScanCheckpoint(checkpointFile);
+        }
+        checkpoint.setSaveIntervalMillis(checkpointIntervalMillis);
+
+        addScanned(openPortsFound, checkpoint.getOpen(address));
+        addScanned(closedPortsFound, checkpoint.getClosed(address));
+        addScanned(filteredPortsFound, checkpoint.getFiltered(address));
+        return checkpoint;
+    }
+
+    /**
+     * Add the ports from a checkpoint that are part of this scan to its results
+     */
+    private void addScanned(ConcurrentPortSet results, PortSet found) {
+        for (int port = found.nextPort(0); port != -1; port = found.nextPort(port + 1)) {
+            if (ports.contains(port)) results.add(port);
+        }
+    }
+
+    /**
+     * Delete the checkpoint if every port was scanned, otherwise save it so the scan can be resumed
+     */
+    private void finishCheckpoint(PortScanCheckpoint checkpoint) {
+        if (!cancelled && checkpoint.isScanned(address, ports)) {
+            checkpoint.delete();
+            return;
+        }
+        try {
+            checkpoint.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Scan all ports from a single thread using a selector
+     */
+    private void runNioScan() {
+        final ServiceDetector detector = serviceDetector;
+        nioScanner = new PortScanTCPNio(timeOutMillis, maxInFlight);
+        nioScanner.setProbeSockets(probeSockets);
+        nioScanner.setDescriptorBudget(descriptorBudget);
+        nioScanner.setAdaptiveTimeouts(adaptiveTimeout);
+        nioScanner.setConcurrencyController(concurrencyController);
+        nioScanner.setRateLimiter(rateLimiter);
+        nioScanner.setResultPermits(resultIterator != null ? resultIterator.getPermits() : null);
+        if (detector != null) {
+            nioScanner.setConnectionHandler(new PortScanTCPNio.ConnectionHandler() {
+                @Override
+                public void onConnected(InetAddress ia, int portNo, SocketChannel channel) {
+                    detector.submit(ia, portNo, channel);
+                }
+            });
+        }
+        if (cancelled) nioScanner.cancel();
+        HostPortScheduler scheduler = createScheduler(maxInFlight);
+        try {
+            nioScanner.scan(scheduler, new PortScanTCPNio.PortResultListener() {
+                @Override
+                public void onResult(InetAddress ia, int portNo, int state) {
+                    portScanned(portNo, state);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            nioScanner = null;
+        }
+        hostAbandoned = scheduler.isAbandoned(0);
+    }
+
+    /**
+     * Scan all ports with UDP from a single thread using a selector
+     */
+    private void runUdpNioScan() {
+        udpNioScanner = new PortScanUDPNio(timeOutMillis, maxInFlight);
+        udpNioScanner.setConcurrencyController(concurrencyController);
+        udpNioScanner.setRateLimiter(rateLimiter);
+        udpNioScanner.setDescriptorBudget(descriptorBudget);
+        udpNioScanner.setPayloads(udpPayloads);
+        udpNioScanner.setResultPermits(resultIterator != null ? resultIterator.getPermits() : null);
+        if (cancelled) udpNioScanner.cancel();
+        HostPortScheduler scheduler = createScheduler(maxInFlight);
+        try {
+            udpNioScanner.scan(scheduler, new PortScanUDPNio.PortResultListener() {
+                @Override
+                public void onResult(InetAddress ia, int portNo, int state) {
+                    portScanned(portNo, state);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            udpNioScanner = null;
+        }
+        hostAbandoned = scheduler.isAbandoned(0);
+    }
+
+    /**
+     * @param maxInFlight - maximum number of ports in flight
+     * @return a scheduler handing out the ports in the order they should be scanned
+     */
+    private HostPortScheduler createScheduler(int maxInFlight) {
+        List<InetAddress> hosts = Collections.singletonList(address);
+        HostPortScheduler scheduler = portOrder != null
+                ? new HostPortScheduler(hosts, portOrder, maxInFlight)
+                : new HostPortScheduler(hosts, ports, maxInFlight);
+        PortScanCheckpoint checkpoint = this.checkpoint;
+        if (checkpoint != null) scheduler.skip(0, checkpoint.getScanned(address));
+        scheduler.setFilteredHostPolicy(filteredHostPolicy);
+        if (checkpoint != null) scheduler.restoreConsecutiveFiltered(0, checkpoint.getConsecutiveFiltered(address));
+        if (randomOrder) scheduler.setRandomOrder(new Random().nextLong());
+        return scheduler;
+    }
+
+    /**
+     * Scan all ports using a thread pool
+     */
+    private void runThreadedScan() {
+        // With a controller we wait for a free slot in its window before queuing each port
+        ExecutorService executor = runtime.newExecutor(concurrencyController != null ? Integer.MAX_VALUE : noThreads);
+        this.executor = executor;
+        // Cancelled before the executor was visible to cancel()
+        if (cancelled) executor.shutdownNow();
+
+        // Only hand out as many ports as there are threads, so a host the filtered host policy gives
+        // up on doesn't leave a queue of ports behind it
+        HostPortScheduler scheduler = createScheduler(concurrencyController != null ? Integer.MAX_VALUE : noThreads);
+        long probe;
+        while (true) {
+            try {
+                probe = scheduler.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                break;
+            }
+            if (probe == HostPortScheduler.NONE || cancelled) break;
+
+            // Don't start any more ports than there is room for in the result buffer
+            PortResultIterator iterator = resultIterator;
+            if (iterator != null) {
+                try {
+                    iterator.getPermits().acquire();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
+                    break;
                 }
+            }
 
-                if (portListener != null) {
-                    Collections.sort(openPortsFound);
-                    portListener.onFinished(openPortsFound);
+            // Wait for a free descriptor rather than have the probe fail with too many open files
+            DescriptorBudget budget = descriptorBudget;
+            if (budget != null) {
+                try {
+                    if (!budget.acquire(1, cancellation)) break;
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
                 }
+            }
 
+            if (concurrencyController != null) {
+                try {
+                    concurrencyController.acquire();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    if (budget != null) budget.release();
+                    break;
+                }
+            }
+            PortScanRunnable worker = new PortScanRunnable(scheduler, probe, timeOutMillis, method, budget);
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // Cancelled while waiting for a slot
+                worker.skip();
+                break;
             }
-        }).start();
+        }
 
-        return this;
+        // This will make the executor accept no new threads
+        // and finish all existing threads in the queue
+        executor.shutdown();
+        // Wait until all threads are finish
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        this.executor = null;
+        hostAbandoned = scheduler.isAbandoned(0);
     }
 
-    private synchronized void portScanned(int port, boolean open) {
+    private void portScanned(int port, int state) {
+        // Ports aborted by a cancel were never really scanned
+        if (cancelled) return;
+
+        boolean open = state == PortResult.STATE_OPEN;
         if (open) {
             openPortsFound.add(port);
+        } else if (state == PortResult.STATE_CLOSED) {
+            closedPortsFound.add(port);
+        } else if (state == PortResult.STATE_ERROR) {
+            failedPortsFound.add(port);
+        } else {
+            filteredPortsFound.add(port);
+        }
+
+        PortScanCheckpoint checkpoint = this.checkpoint;
+        // Left unmarked so a resumed scan tries a port that failed on this device again
+        if (checkpoint != null && state != PortResult.STATE_ERROR) {
+            checkpoint.markScanned(address, port, state);
+            checkpoint.saveIfDue();
+        }
+
+        ResultDispatcher<PortResult> dispatcher = resultDispatcher;
+        PortResultIterator iterator = resultIterator;
+        if (dispatcher == null && iterator == null) return;
+
+        PortResult portResult = new PortResult(address, port, state);
+        if (dispatcher != null) {
+            dispatcher.dispatch(portResult);
         }
-        if (portListener != null) {
-            portListener.onResult(port, open);
+        // Never blocks as a permit was taken for this result before the port was scanned
+        if (iterator != null) {
+            iterator.offer(portResult);
         }
     }
 
     private class PortScanRunnable implements Runnable {
-        private final InetAddress address;
+        private final HostPortScheduler scheduler;
+        private final long probe;
         private final int portNo;
         private final int timeOutMillis;
         private final int method;
+        private final DescriptorBudget budget;
 
-        PortScanRunnable(InetAddress address, int portNo, int timeOutMillis, int method) {
-            this.address = address;
-            this.portNo = portNo;
+        PortScanRunnable(HostPortScheduler scheduler, long probe, int timeOutMillis, int method, DescriptorBudget budget) {
+            this.scheduler = scheduler;
+            this.probe = probe;
+            this.portNo = HostPortScheduler.getPort(probe);
             this.timeOutMillis = timeOutMillis;
             this.method = method;
+            this.budget = budget;
+        }
+
+        /**
+         * Give back the slots taken for a port that will never be scanned
+         */
+        void skip() {
+            if (concurrencyController != null) concurrencyController.release();
+            if (budget != null) budget.release();
+            scheduler.complete(probe);
         }
 
         @Override
         public void run() {
-            if (cancelled) return;
+            if (cancelled) {
+                skip();
+                return;
+            }
+
+            if (rateLimiter != null) {
+                try {
+                    rateLimiter.acquire();
+                } catch (InterruptedException e) {
+                    skip();
+                    return;
+                }
+            }
+
+            int timeout = timeOutMillis;
+            long startNanos = System.nanoTime();
+            int state;
 
             switch (method) {
                 case METHOD_UDP:
-                    portScanned(portNo, PortScanUDP.scanAddress(address, portNo, timeOutMillis));
+                    state = PortScanUDP.scanPort(address, portNo, timeout, udpPayloads.get(portNo), cancellation);
                     break;
                 case METHOD_TCP:
-                    portScanned(portNo, PortScanTCP.scanAddress(address, portNo, timeOutMillis));
+                    if (hostTimeout != null) timeout = hostTimeout.getTimeoutMillis();
+                    ServiceDetector detector = serviceDetector;
+                    if (detector != null) {
+                        // Keep the connection open for the detector to read the banner from
+                        try {
+                            Socket socket = PortScanTCP.open(address, portNo, timeout, cancellation, probeSockets);
+                            state = PortResult.STATE_OPEN;
+                            probeSockets.release();
+                            detector.submit(address, portNo, socket);
+                        } catch (IOException e) {
+                            state = PortScanTCP.getState(e);
+                        }
+                    } else {
+                        state = PortScanTCP.scanPort(address, portNo, timeout, cancellation, probeSockets);
+                    }
                     break;
                 default:
+                    skip();
                     throw new IllegalArgumentException("Invalid method");
             }
+
+            long rttNanos = System.nanoTime() - startNanos;
+            boolean timedOut = rttNanos >= timeout * 1000000L;
+
+            // A closed port that returned before the timeout was refused, so still gives us an RTT
+            if (hostTimeout != null && method == METHOD_TCP && state != PortResult.STATE_ERROR && !timedOut && !cancelled) {
+                hostTimeout.addSample(rttNanos);
+            }
+            if (concurrencyController != null) {
+                concurrencyController.onCompleted(timedOut, rttNanos);
+            }
+
+            if (budget != null) budget.release();
+            if (!cancelled) scheduler.report(0, state);
+            scheduler.complete(probe);
+            portScanned(portNo, state);
         }
     }
 
 
-}
\ No newline at end of file
+}
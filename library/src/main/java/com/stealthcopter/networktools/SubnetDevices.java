@@ -1,25 +1,62 @@
 package com.stealthcopter.networktools;
 
+import com.stealthcopter.networktools.concurrency.AIMDController;
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+import com.stealthcopter.networktools.concurrency.NetworkToolsRuntime;
+import com.stealthcopter.networktools.concurrency.RateLimiter;
+import com.stealthcopter.networktools.concurrency.ResultDispatcher;
 import com.stealthcopter.networktools.ping.PingResult;
+import com.stealthcopter.networktools.portscanning.RandomPermutation;
 import com.stealthcopter.networktools.subnet.Device;
+import com.stealthcopter.networktools.subnet.SubnetDevicesCheckpoint;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class SubnetDevices {
+    // A ping process has pipes for its input, output and error
+    private static final int DESCRIPTORS_PER_PING = 3;
+    // A TCP or UDP ping has just its socket
+    private static final int DESCRIPTORS_PER_SOCKET_PING = 1;
+
     private int noThreads = 100;
 
+    // Addresses to scan first, followed by a range of IPv4 addresses that are generated as the
+    // scan runs so that large subnets don't need a string per address
     private ArrayList<String> addresses;
-    private ArrayList<Device> devicesFound;
+    private int rangeStart;
+    private int rangeSize = 0;
+    private boolean randomOrder = false;
+    private ConcurrentLinkedQueue<Device> devicesFound;
+    private ResultDispatcher<Device> deviceDispatcher;
     private OnSubnetDeviceFound listener;
     private int timeOutMillis = 2500;
-    private boolean cancelled = false;
+    private int pingMethod = Ping.PING_HYBRID;
+    private volatile boolean cancelled = false;
+    private volatile Cancellation cancellation = new Cancellation();
+    private volatile ExecutorService executor;
+    // Limits the pings queued without a controller, so a large range isn't queued all at once
+    private volatile Semaphore queueSlots;
+    private AIMDController concurrencyController;
+    private RateLimiter rateLimiter;
+    private DescriptorBudget descriptorBudget = DescriptorBudget.getDefault();
+    private NetworkToolsRuntime runtime = NetworkToolsRuntime.getDefault();
+
+    private File checkpointFile;
+    private long checkpointIntervalMillis = SubnetDevicesCheckpoint.DEFAULT_SAVE_INTERVAL_MILLIS;
+    private volatile SubnetDevicesCheckpoint checkpoint;
 
     private boolean disableProcNetMethod = false;
     private HashMap<String, String> ipMacHashMap = null;
@@ -70,25 +107,74 @@ public class SubnetDevices {
             throw new IllegalArgumentException("Invalid IP Address");
         }
 
-        String segment = ipAddress.substring(0, ipAddress.lastIndexOf(".") + 1);
+        // Every address from x.x.x.0 to x.x.x.254
+        return fromRange(toInt(ipAddress) & 0xFFFFFF00, 255, 24);
+
+    }
+
+    /**
+     * Find devices on a subnet of any size, e.g. a /16. The addresses are generated as the scan
+     * runs, so even large subnets take next to no memory.
+     *
+     * @param ipAddress    - the ipAddress string of any device in the subnet i.e. "10.1.2.3"
+     * @param prefixLength - the length of the subnet's network prefix, from 8 to 32
+     *
+     * @return - this for chaining
+     */
+    public static SubnetDevices fromIPAddress(final String ipAddress, int prefixLength) {
+
+        if (!IPTools.isIPv4Address(ipAddress)) {
+            throw new IllegalArgumentException("Invalid IP Address");
+        }
+        if (prefixLength < 8 || prefixLength > 32) {
+            throw new IllegalArgumentException("Prefix length must be from 8 to 32");
+        }
+
+        int size = 1 << (32 - prefixLength);
+        int network = toInt(ipAddress) & -size;
+
+        // Leave out the network and broadcast addresses when there are any
+        if (size > 2) {
+            return fromRange(network + 1, size - 2, prefixLength);
+        }
+        return fromRange(network, size, prefixLength);
+
+    }
+
+    /**
+     * @param inetAddress  - an ip address in the subnet
+     * @param prefixLength - the length of the subnet's network prefix, from 8 to 32
+     *
+     * @return - this for chaining
+     */
+    public static SubnetDevices fromIPAddress(InetAddress inetAddress, int prefixLength) {
+        return fromIPAddress(inetAddress.getHostAddress(), prefixLength);
+    }
+
+    /**
+     * @param start        - first address to scan
+     * @param size         - number of addresses to scan
+     * @param prefixLength - prefix length of the subnet they are in
+     *
+     * @return - this for chaining
+     */
+    private static SubnetDevices fromRange(int start, int size, int prefixLength) {
 
         SubnetDevices subnetDevice = new SubnetDevices();
 
         subnetDevice.addresses = new ArrayList<>();
 
         // Get addresses from ARP Info first as they are likely to be reachable
-        for(String ip : ARPInfo.getAllIPAddressesInARPCache()) {
-            if (ip.startsWith(segment)) {
+        int mask = -(1 << (32 - prefixLength));
+        for (String ip : ARPInfo.getAllIPAddressesInARPCache()) {
+            if (IPTools.isIPv4Address(ip) && (toInt(ip) & mask) == (start & mask)) {
                 subnetDevice.addresses.add(ip);
             }
         }
 
-        // Add all missing addresses in subnet
-        for (int j = 0; j < 255; j++) {
-            if (!subnetDevice.addresses.contains(segment + j)) {
-                subnetDevice.addresses.add(segment + j);
-            }
-        }
+        // Followed by all the other addresses in the subnet
+        subnetDevice.rangeStart = start;
+        subnetDevice.rangeSize = size;
 
         return subnetDevice;
 
@@ -114,7 +200,9 @@ public class SubnetDevices {
 
     /**
      * @param noThreads set the number of threads to work with, note we default to a large number
-     *                  as these requests are network heavy not cpu heavy.
+     *                  as these requests are network heavy not cpu heavy. The threads are taken
+     *                  from the runtime's workers, so this is capped at
+     *                  {@link NetworkToolsRuntime#getMaxWorkers()}, see {@link #setRuntime(NetworkToolsRuntime)}
      *
      * @throws IllegalArgumentException - if invalid number of threads requested
      *
@@ -126,6 +214,76 @@ public class SubnetDevices {
         return this;
     }
 
+    /**
+     * Let the number of pings in flight adapt to the network instead of using a fixed number of
+     * threads. The controller raises the number in flight while replies come back quickly and backs
+     * off when timeouts spike, see {@link AIMDController}. The thread count is ignored while a
+     * controller is set.
+     *
+     * @param concurrencyController - the controller to use, or null to use a fixed thread count
+     *
+     * @return this object to allow chaining
+     */
+    public SubnetDevices setConcurrencyController(AIMDController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+        return this;
+    }
+
+    /**
+     * Limit the number of pings sent per second. The same limiter can be shared with other scans
+     * to keep their combined rate within budget.
+     *
+     * @param rateLimiter - the limiter to use, or null for no limit
+     *
+     * @return this object to allow chaining
+     */
+    public SubnetDevices setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Ping the addresses in a pseudo-random order instead of in sequence, which spreads the load
+     * over the subnet rather than sweeping through it. Addresses found in the ARP cache are still
+     * pinged first. The order is generated as the scan runs, see {@link RandomPermutation}.
+     *
+     * @param randomOrder - true to ping in a random order
+     *
+     * @return this object to allow chaining
+     */
+    public SubnetDevices setRandomOrder(boolean randomOrder) {
+        this.randomOrder = randomOrder;
+        return this;
+    }
+
+    /**
+     * Share a budget of file descriptors with other scans, see {@link DescriptorBudget}. By
+     * default every scan shares {@link DescriptorBudget#getDefault()}, so pings wait for
+     * descriptors to be free rather than failing and the device being missed.
+     *
+     * @param descriptorBudget - the budget to use, or null for no limit
+     *
+     * @return this object to allow chaining
+     */
+    public SubnetDevices setDescriptorBudget(DescriptorBudget descriptorBudget) {
+        this.descriptorBudget = descriptorBudget;
+        return this;
+    }
+
+    /**
+     * Run the scan on the threads of the given runtime rather than the shared default one, see
+     * {@link NetworkToolsRuntime}
+     *
+     * @param runtime - the runtime to use
+     *
+     * @return this object to allow chaining
+     */
+    public SubnetDevices setRuntime(NetworkToolsRuntime runtime) {
+        if (runtime == null) throw new IllegalArgumentException("Runtime cannot be null");
+        this.runtime = runtime;
+        return this;
+    }
+
     /**
      * Sets the timeout for each address we try to ping
      *
@@ -141,6 +299,23 @@ public class SubnetDevices {
         return this;
     }
 
+    /**
+     * Choose how each address is pinged, e.g. Ping.PING_TCP where ICMP isn't allowed
+     *
+     * @param pingMethod - one of the Ping.PING_ methods, default PING_HYBRID
+     *
+     * @return this object to allow chaining
+     *
+     * @throws IllegalArgumentException - if the method is not valid
+     */
+    public SubnetDevices setPingMethod(int pingMethod) throws IllegalArgumentException {
+        if (pingMethod < Ping.PING_JAVA || pingMethod > Ping.PING_UDP) {
+            throw new IllegalArgumentException("Invalid ping method " + pingMethod);
+        }
+        this.pingMethod = pingMethod;
+        return this;
+    }
+
     /**
      *
      * @param disable if set to true we will not attempt to read from /proc/net/arp
@@ -151,10 +326,50 @@ public class SubnetDevices {
     }
 
     /**
-     * Cancel a running scan
+     * Save the progress of the scan to a file so that it can be resumed if interrupted.
+     *
+     * If the file exists when the scan starts, the addresses it records are not pinged again and
+     * the devices it records are included in the devices found (but not passed to
+     * onDeviceFound again). The file is saved periodically while scanning and when the scan is
+     * cancelled, and deleted once the scan finishes.
+     *
+     * @param checkpointFile - file to save progress to, or null to not save progress
+     *
+     * @return this object to allow chaining
+     */
+    public SubnetDevices setCheckpoint(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        return this;
+    }
+
+    /**
+     * Save the progress of the scan to a file, see {@link #setCheckpoint(File)}
+     *
+     * @param checkpointFile     - file to save progress to
+     * @param saveIntervalMillis - minimum time between saves while scanning
+     *
+     * @return this object to allow chaining
+     */
+    public SubnetDevices setCheckpoint(File checkpointFile, long saveIntervalMillis) {
+        if (saveIntervalMillis < 0) throw new IllegalArgumentException("Save interval cannot be less than 0");
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalMillis = saveIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Cancel a running scan, pings in progress are aborted rather than left to time out
      */
     public void cancel() {
         this.cancelled = true;
+        cancellation.cancel();
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            List<Runnable> neverRun = executor.shutdownNow();
+            for (Runnable worker : neverRun) {
+                ((SubnetDeviceFinderRunnable) worker).skip();
+            }
+        }
     }
 
     /**
@@ -168,9 +383,16 @@ public class SubnetDevices {
         this.listener = listener;
 
         cancelled = false;
-        devicesFound = new ArrayList<>();
+        cancellation = new Cancellation();
+        devicesFound = new ConcurrentLinkedQueue<>();
+        deviceDispatcher = new ResultDispatcher<>(new ResultDispatcher.Handler<Device>() {
+            @Override
+            public void onResult(Device device) {
+                listener.onDeviceFound(device);
+            }
+        });
 
-        new Thread(new Runnable() {
+        runtime.execute(new Runnable() {
             @Override
             public void run() {
 
@@ -178,11 +400,64 @@ public class SubnetDevices {
                 // lots of devices are found on the network.
                 ipMacHashMap = disableProcNetMethod ? ARPInfo.getAllIPandMACAddressesFromIPSleigh() : ARPInfo.getAllIPAndMACAddressesInARPCache();
 
-                ExecutorService executor = Executors.newFixedThreadPool(noThreads);
+                SubnetDevicesCheckpoint checkpoint = loadCheckpoint();
+                SubnetDevices.this.checkpoint = checkpoint;
+
+                // With a controller we wait for a free slot in its window before queuing each address
+                ExecutorService executor = runtime.newExecutor(concurrencyController != null ? Integer.MAX_VALUE : noThreads);
+                SubnetDevices.this.executor = executor;
+                // Cancelled before the executor was visible to cancel()
+                if (cancelled) executor.shutdownNow();
+
+                Semaphore queueSlots = concurrencyController != null ? null : new Semaphore(noThreads);
+                SubnetDevices.this.queueSlots = queueSlots;
+
+                // The addresses listed are pinged first, then the range, each in sequence or at random
+                ArrayList<String> addresses = SubnetDevices.this.addresses;
+                int listed = addresses.size();
+                RandomPermutation listOrder = randomOrder ? new RandomPermutation(listed) : null;
+                RandomPermutation rangeOrder = randomOrder ? new RandomPermutation(rangeSize) : null;
+                HashSet<Integer> listedInRange = rangeSize > 0 ? getListedIPv4Addresses() : null;
+
+                long total = listed + (long) rangeSize;
+                for (long i = 0; i < total; i++) {
+                    if (cancelled) break;
+
+                    SubnetDeviceFinderRunnable worker;
+                    if (i < listed) {
+                        String add = addresses.get((int) (listOrder != null ? listOrder.get(i) : i));
+                        if (checkpoint != null && checkpoint.isScanned(add)) continue;
+                        worker = new SubnetDeviceFinderRunnable(add);
+                    } else {
+                        long offset = rangeOrder != null ? rangeOrder.get(i - listed) : i - listed;
+                        int ip = rangeStart + (int) offset;
+                        if (listedInRange.contains(ip)) continue;
+                        if (checkpoint != null && checkpoint.isScanned((int) offset)) continue;
+                        worker = new SubnetDeviceFinderRunnable(toInetAddress(ip), (int) offset);
+                    }
 
-                for (final String add : addresses) {
-                    Runnable worker = new SubnetDeviceFinderRunnable(add);
-                    executor.execute(worker);
+                    try {
+                        if (concurrencyController != null) {
+                            concurrencyController.acquire();
+                        } else {
+                            queueSlots.acquire();
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        break;
+                    }
+                    // Wait for free descriptors rather than have the ping fail with too many open files
+                    if (!worker.acquireDescriptors()) {
+                        worker.skip();
+                        break;
+                    }
+                    try {
+                        executor.execute(worker);
+                    } catch (RejectedExecutionException e) {
+                        // Cancelled while waiting for a slot
+                        worker.skip();
+                        break;
+                    }
                 }
 
                 // This will make the executor accept no new threads
@@ -194,6 +469,12 @@ public class SubnetDevices {
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
+                SubnetDevices.this.executor = null;
+
+                if (checkpoint != null) {
+                    finishCheckpoint(checkpoint);
+                    SubnetDevices.this.checkpoint = null;
+                }
 
                 // Loop over devices found and add in the MAC addresses if missing.
                 // We do this after scanning for all devices as /proc/net/arp may add info
@@ -206,36 +487,168 @@ public class SubnetDevices {
                 }
 
 
-                listener.onFinished(devicesFound);
+                deviceDispatcher.drain();
+                listener.onFinished(new ArrayList<>(devicesFound));
 
             }
-        }).start();
+        });
 
         return this;
     }
 
-    private synchronized void subnetDeviceFound(Device device) {
+    /**
+     * @return the checkpoint to record progress in, with the devices it holds already added to
+     * the devices found, or null if there is no checkpoint file
+     */
+    private SubnetDevicesCheckpoint loadCheckpoint() {
+        if (checkpointFile == null) return null;
+        SubnetDevicesCheckpoint checkpoint;
+        try {
+            checkpoint = SubnetDevicesCheckpoint.load(checkpointFile);
+            // Saved by a scan of another range, so its progress doesn't apply
+            if (!checkpoint.isForRange(rangeStart, rangeSize)) checkpoint = null;
+        } catch (IOException e) {
+            // Unreadable, so start the scan from the beginning
+            e.printStackTrace();
+            checkpoint = null;
+        }
+        if (checkpoint == null) checkpoint = new SubnetDevicesCheckpoint(checkpointFile, rangeStart, rangeSize);
+        checkpoint.setSaveIntervalMillis(checkpointIntervalMillis);
+        devicesFound.addAll(checkpoint.getDevices());
+        return checkpoint;
+    }
+
+    /**
+     * Delete the checkpoint if the scan finished, otherwise save it so the scan can be resumed
+     */
+    private void finishCheckpoint(SubnetDevicesCheckpoint checkpoint) {
+        if (!cancelled) {
+            checkpoint.delete();
+            return;
+        }
+        try {
+            checkpoint.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the IPv4 addresses in the list of addresses, so they aren't pinged again as part of
+     * the range
+     */
+    private HashSet<Integer> getListedIPv4Addresses() {
+        HashSet<Integer> listed = new HashSet<>();
+        for (String address : addresses) {
+            if (IPTools.isIPv4Address(address)) listed.add(toInt(address));
+        }
+        return listed;
+    }
+
+    /**
+     * @param ipAddress - an IPv4 address string i.e. "192.168.0.1"
+     * @return the address as an int, most significant byte first
+     */
+    private static int toInt(String ipAddress) {
+        String[] parts = ipAddress.split("\\.");
+        int ip = 0;
+        for (String part : parts) {
+            ip = (ip << 8) | Integer.parseInt(part);
+        }
+        return ip;
+    }
+
+    private static InetAddress toInetAddress(int ip) {
+        byte[] bytes = new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of the wrong length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void subnetDeviceFound(Device device) {
         devicesFound.add(device);
-        listener.onDeviceFound(device);
+        deviceDispatcher.dispatch(device);
     }
 
     public class SubnetDeviceFinderRunnable implements Runnable {
         private final String address;
+        private final InetAddress inetAddress;
+        // Offset of the address from the start of the range, or -1 for a listed address
+        private final int rangeOffset;
+
+        private final DescriptorBudget budget = descriptorBudget;
+        private final int descriptors = pingMethod == Ping.PING_TCP || pingMethod == Ping.PING_UDP ? DESCRIPTORS_PER_SOCKET_PING : DESCRIPTORS_PER_PING;
+        private boolean descriptorsTaken = false;
 
         SubnetDeviceFinderRunnable(String address) {
             this.address = address;
+            this.inetAddress = null;
+            this.rangeOffset = -1;
+        }
+
+        SubnetDeviceFinderRunnable(InetAddress inetAddress, int rangeOffset) {
+            this.address = null;
+            this.inetAddress = inetAddress;
+            this.rangeOffset = rangeOffset;
+        }
+
+        /**
+         * @return false if the scan was cancelled while waiting for descriptors
+         */
+        boolean acquireDescriptors() {
+            if (budget == null) return true;
+            try {
+                descriptorsTaken = budget.acquire(descriptors, cancellation);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            return descriptorsTaken;
+        }
+
+        /**
+         * Give back the slots taken for an address that will never be pinged
+         */
+        void skip() {
+            if (concurrencyController != null) concurrencyController.release();
+            finished();
+        }
+
+        private void finished() {
+            Semaphore queueSlots = SubnetDevices.this.queueSlots;
+            if (queueSlots != null) queueSlots.release();
+            if (descriptorsTaken) budget.release(descriptors);
         }
 
         @Override
         public void run() {
+            try {
+                ping();
+            } finally {
+                finished();
+            }
+        }
 
-            if (cancelled) return;
+        private void ping() {
+
+            if (cancelled) {
+                if (concurrencyController != null) concurrencyController.release();
+                return;
+            }
 
             try {
-                InetAddress ia = InetAddress.getByName(address);
-                PingResult pingResult = Ping.onAddress(ia).setTimeOutMillis(timeOutMillis).doPing();
+                InetAddress ia = inetAddress != null ? inetAddress : InetAddress.getByName(address);
+                PingResult pingResult = Ping.onAddress(ia).setTimeOutMillis(timeOutMillis).setKeepFullString(false).setPingMethod(pingMethod).setRateLimiter(rateLimiter).doPing(cancellation);
+                if (concurrencyController != null) {
+                    concurrencyController.onCompleted(!pingResult.isReachable, (long) (pingResult.timeTaken * 1e6));
+                }
+                if (cancelled) return;
+
+                Device device = null;
                 if (pingResult.isReachable) {
-                    Device device = new Device(ia);
+                    device = new Device(ia);
 
                     // Add the device MAC address if it is in the cache
                     if (ipMacHashMap.containsKey(ia.getHostAddress())) {
@@ -245,7 +658,18 @@ public class SubnetDevices {
                     device.time = pingResult.timeTaken;
                     subnetDeviceFound(device);
                 }
+
+                SubnetDevicesCheckpoint checkpoint = SubnetDevices.this.checkpoint;
+                if (checkpoint != null) {
+                    if (rangeOffset >= 0) {
+                        checkpoint.markScanned(rangeOffset, device);
+                    } else {
+                        checkpoint.markScanned(address, device);
+                    }
+                    checkpoint.saveIfDue();
+                }
             } catch (UnknownHostException e) {
+                if (concurrencyController != null) concurrencyController.release();
                 e.printStackTrace();
             }
         }
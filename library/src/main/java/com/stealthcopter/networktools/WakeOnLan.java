@@ -1,5 +1,7 @@
 package com.stealthcopter.networktools;
 
+import com.stealthcopter.networktools.concurrency.NetworkToolsRuntime;
+
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -23,6 +25,7 @@ public class WakeOnLan {
     private int port = DEFAULT_PORT;
     private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
     private int noPackets = DEFAULT_NO_PACKETS;
+    private NetworkToolsRuntime runtime = NetworkToolsRuntime.getDefault();
 
     public interface WakeOnLanListener {
         void onSuccess();
@@ -113,6 +116,20 @@ public class WakeOnLan {
     }
 
 
+    /**
+     * Run the asynchronous wake on the threads of the given runtime rather than the shared
+     * default one, see {@link NetworkToolsRuntime}
+     *
+     * @param runtime - the runtime to use
+     * @return this object to allow chaining
+     */
+    public WakeOnLan setRuntime(NetworkToolsRuntime runtime) {
+        if (runtime == null) throw new IllegalArgumentException("Runtime cannot be null");
+        this.runtime = runtime;
+        return this;
+    }
+
+
     /**
      * Synchronous call of the wake method. Note that this is a network request and should not be
      * performed on the UI thread
@@ -145,7 +162,7 @@ public class WakeOnLan {
      */
     public void wake(final WakeOnLanListener wakeOnLanListener) {
 
-        Thread thread = new Thread(new Runnable() {
+        runtime.execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -157,8 +174,6 @@ public class WakeOnLan {
 
             }
         });
-
-        thread.start();
     }
 
     /**
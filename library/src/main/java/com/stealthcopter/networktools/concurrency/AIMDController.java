@@ -0,0 +1,172 @@
+package com.stealthcopter.networktools.concurrency;
+
+/**
+ * Controls how many probes can be in flight at once using additive increase / multiplicative
+ * decrease, in the same way as TCP congestion control.
+ * <p>
+ * Completions are counted in epochs of one window's worth of probes. If an epoch stays loss free
+ * and fast the window grows, doubling while in slow start and then by one per epoch. If the
+ * timeout rate spikes above the usual rate for the targets being scanned, or answers start taking
+ * much longer than the fastest seen, the window is halved.
+ * <p>
+ * Timeouts are compared with a baseline rather than counted as loss outright, as most closed hosts
+ * and filtered ports time out whatever the network conditions are.
+ * <p>
+ * This class is thread safe and may be shared between scans so they back off together.
+ */
+public class AIMDController {
+
+    public static final int DEFAULT_MIN_WINDOW = 4;
+    public static final int DEFAULT_MAX_WINDOW = 1000;
+
+    // A timeout rate this much higher than the baseline counts as congestion
+    private static final float TIMEOUT_SPIKE = 0.1f;
+
+    // Answers this many times slower than the fastest seen (and at least 10ms slower) count as congestion
+    private static final int RTT_INFLATION = 3;
+    private static final long MIN_RTT_INFLATION_NANOS = 10000000L;
+
+    private final int minWindow;
+    private final int maxWindow;
+
+    private int window;
+    private int inFlight = 0;
+    private boolean slowStart = true;
+
+    private int epochCompleted = 0;
+    private int epochTimeouts = 0;
+    private int epochAnswered = 0;
+    private long epochRttTotalNanos = 0;
+
+    private float baselineTimeoutRate = -1;
+    private long minRttNanos = -1;
+
+    /**
+     * @param initialWindow - number of probes allowed in flight at the start
+     */
+    public AIMDController(int initialWindow) {
+        this(initialWindow, Math.min(DEFAULT_MIN_WINDOW, initialWindow), Math.max(DEFAULT_MAX_WINDOW, initialWindow));
+    }
+
+    /**
+     * @param initialWindow - number of probes allowed in flight at the start
+     * @param minWindow     - the window will never shrink below this
+     * @param maxWindow     - the window will never grow above this
+     */
+    public AIMDController(int initialWindow, int minWindow, int maxWindow) {
+        if (minWindow < 1) throw new IllegalArgumentException("Cannot have a window less than 1");
+        if (maxWindow < minWindow) throw new IllegalArgumentException("Max window cannot be less than min window");
+        if (initialWindow < minWindow || initialWindow > maxWindow) {
+            throw new IllegalArgumentException("Initial window must be between min and max window");
+        }
+        this.window = initialWindow;
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Wait until the window allows another probe to be sent
+     *
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= window) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * @return true if a probe may be sent now, in which case it must be followed by a call to
+     * {@link #onCompleted(boolean, long)} or {@link #release()}
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= window) return false;
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Give back a slot without recording a result, e.g. when a probe was never sent
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Record the outcome of a probe and give back its slot
+     *
+     * @param timedOut - true if the probe got no answer before its timeout
+     * @param rttNanos - time taken to get an answer, ignored if timed out
+     */
+    public synchronized void onCompleted(boolean timedOut, long rttNanos) {
+        inFlight--;
+        epochCompleted++;
+        if (timedOut) {
+            epochTimeouts++;
+        } else {
+            epochAnswered++;
+            epochRttTotalNanos += rttNanos;
+            if (minRttNanos == -1 || rttNanos < minRttNanos) minRttNanos = rttNanos;
+        }
+
+        if (epochCompleted >= window) {
+            endEpoch();
+        }
+        notifyAll();
+    }
+
+    private void endEpoch() {
+        float timeoutRate = epochTimeouts / (float) epochCompleted;
+
+        boolean congested = baselineTimeoutRate >= 0 && timeoutRate > baselineTimeoutRate + TIMEOUT_SPIKE;
+
+        if (epochAnswered > 0 && minRttNanos > 0) {
+            long averageRttNanos = epochRttTotalNanos / epochAnswered;
+            if (averageRttNanos > RTT_INFLATION * minRttNanos
+                    && averageRttNanos - minRttNanos > MIN_RTT_INFLATION_NANOS) {
+                congested = true;
+            }
+        }
+
+        if (congested) {
+            window = Math.max(minWindow, window / 2);
+            slowStart = false;
+        } else {
+            window = Math.min(maxWindow, slowStart ? window * 2 : window + 1);
+            baselineTimeoutRate = baselineTimeoutRate < 0
+                    ? timeoutRate
+                    : 0.75f * baselineTimeoutRate + 0.25f * timeoutRate;
+        }
+
+        epochCompleted = 0;
+        epochTimeouts = 0;
+        epochAnswered = 0;
+        epochRttTotalNanos = 0;
+    }
+
+    /**
+     * @return the number of probes currently allowed in flight
+     */
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the number of probes currently in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AIMDController{" +
+                "window=" + window +
+                ", inFlight=" + inFlight +
+                ", slowStart=" + slowStart +
+                ", baselineTimeoutRate=" + baselineTimeoutRate +
+                '}';
+    }
+}
@@ -0,0 +1,204 @@
+package com.stealthcopter.networktools.concurrency;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor for one operation that runs its tasks on a shared set of workers, with at most a
+ * fixed number running at once.
+ * <p>
+ * It behaves like a fixed thread pool of that size, except that shutting it down only affects
+ * this operation's tasks. Each task is handed to the shared workers separately, so operations
+ * sharing them take turns rather than one holding a worker for its whole queue. With
+ * {@link WorkerShares} it also never runs more than its fair share of the workers while other
+ * operations are using them.
+ * <p>
+ * {@link #shutdownNow()} returns the tasks that were still waiting here and interrupts the ones
+ * running. Tasks already handed to the shared workers are still run, as with a thread pool they
+ * should check for cancellation when they start.
+ */
+class BoundedExecutor extends AbstractExecutorService {
+
+    private final Executor workers;
+    private final int maxConcurrent;
+    private final WorkerShares shares;
+
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+    private final HashSet<Thread> running = new HashSet<>();
+    // Tasks handed to the workers and not yet finished
+    private int active = 0;
+    // Joined the shares, from the first task handed to the workers until none are active
+    private boolean joined = false;
+    private boolean shutdown = false;
+
+    BoundedExecutor(Executor workers, int maxConcurrent) {
+        this(workers, maxConcurrent, null);
+    }
+
+    /**
+     * @param workers       - the shared workers to run tasks on
+     * @param maxConcurrent - maximum number of tasks running at once
+     * @param shares        - splits the workers between operations, or null to only be limited by
+     *                      maxConcurrent
+     */
+    BoundedExecutor(Executor workers, int maxConcurrent, WorkerShares shares) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("Cannot have less than 1 task running");
+        this.workers = workers;
+        this.maxConcurrent = maxConcurrent;
+        this.shares = shares;
+    }
+
+    /**
+     * @return the number of tasks that may be running right now
+     */
+    private int getLimit() {
+        return shares != null ? Math.min(maxConcurrent, shares.getFairShare()) : maxConcurrent;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) throw new NullPointerException("Task cannot be null");
+        boolean join;
+        synchronized (this) {
+            if (shutdown) throw new RejectedExecutionException("Executor has been shut down");
+            if (active >= getLimit()) {
+                waiting.add(task);
+                return;
+            }
+            active++;
+            join = !joined && shares != null;
+            if (join) joined = true;
+        }
+        if (join) shares.join(this);
+        try {
+            hand(task);
+        } catch (RejectedExecutionException e) {
+            taskFinished(false);
+            throw e;
+        }
+    }
+
+    private void hand(final Runnable task) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                runTask(task);
+            }
+        });
+    }
+
+    private void runTask(Runnable task) {
+        Thread thread = Thread.currentThread();
+        synchronized (this) {
+            running.add(thread);
+        }
+        try {
+            task.run();
+        } finally {
+            synchronized (this) {
+                running.remove(thread);
+            }
+            // The worker is shared, so don't leave an interrupt from shutdownNow() for the next task
+            Thread.interrupted();
+            taskFinished(true);
+        }
+    }
+
+    /**
+     * Hand the next waiting task to the workers in place of one that finished, unless this
+     * operation's share has shrunk below the tasks it has running
+     */
+    private void taskFinished(boolean startNext) {
+        boolean leave = false;
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = startNext && active <= getLimit() ? waiting.poll() : null;
+                if (next == null) {
+                    active--;
+                    if (active == 0) {
+                        notifyAll();
+                        leave = joined;
+                        joined = false;
+                    }
+                    break;
+                }
+            }
+            try {
+                hand(next);
+                return;
+            } catch (RejectedExecutionException e) {
+                // The shared workers have been shut down, so nothing waiting can run
+                e.printStackTrace();
+                startNext = false;
+            }
+        }
+        if (leave) shares.leave(this);
+    }
+
+    /**
+     * Hand waiting tasks to the workers until this operation has its share running, called when
+     * the share grows
+     */
+    void topUp() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (active == 0 || active >= getLimit()) return;
+                next = waiting.poll();
+                if (next == null) return;
+                active++;
+            }
+            try {
+                hand(next);
+            } catch (RejectedExecutionException e) {
+                e.printStackTrace();
+                taskFinished(false);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        ArrayList<Runnable> neverRun = new ArrayList<>(waiting);
+        waiting.clear();
+        for (Thread thread : running) {
+            thread.interrupt();
+        }
+        return neverRun;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && active == 0;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return true;
+    }
+}
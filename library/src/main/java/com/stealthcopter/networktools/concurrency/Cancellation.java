@@ -0,0 +1,81 @@
+package com.stealthcopter.networktools.concurrency;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the sockets, channels and processes a running operation has open so that cancelling it
+ * can abort them straight away instead of waiting for their timeouts.
+ * <p>
+ * Register anything blocking before using it and unregister it once finished with. Cancelling
+ * closes everything registered, and anything registered afterwards is closed immediately.
+ * <p>
+ * This class is thread safe.
+ */
+public class Cancellation {
+
+    private final Set<Closeable> open = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+    private volatile boolean cancelled = false;
+
+    /**
+     * Wrap a process so it can be registered, closing it destroys the process
+     *
+     * @param process - the process to wrap
+     * @return a closeable that destroys the process
+     */
+    public static Closeable forProcess(final Process process) {
+        return new Closeable() {
+            @Override
+            public void close() {
+                process.destroy();
+            }
+        };
+    }
+
+    /**
+     * @param closeable - socket, channel or process to close if cancelled
+     * @return false if already cancelled, in which case the closeable has already been closed
+     */
+    public boolean register(Closeable closeable) {
+        open.add(closeable);
+        if (cancelled) {
+            open.remove(closeable);
+            closeQuietly(closeable);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param closeable - a previously registered closeable that has finished
+     */
+    public void unregister(Closeable closeable) {
+        open.remove(closeable);
+    }
+
+    /**
+     * Cancel, closing everything currently registered
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Closeable closeable : open) {
+            open.remove(closeable);
+            closeQuietly(closeable);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // We are aborting, so errors closing are expected
+        }
+    }
+}
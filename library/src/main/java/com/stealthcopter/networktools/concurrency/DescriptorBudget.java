@@ -0,0 +1,230 @@
+package com.stealthcopter.networktools.concurrency;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The number of file descriptors scans may have open at once, shared between every scan.
+ * <p>
+ * Each socket, and each ping process, uses a file descriptor and a process can only have a
+ * limited number open. Past that, opening a socket fails with "Too many open files", which would
+ * otherwise be reported as a closed port or unreachable device. Scans take descriptors from the
+ * budget before each probe and wait for one to be given back when there are none left, so running
+ * many scans at once or at high concurrency only slows them down.
+ * <p>
+ * By default every tool shares {@link #getDefault()}, sized from the process's open file limit
+ * less the descriptors already open and some headroom for the rest of the app.
+ * <p>
+ * This class is thread safe.
+ */
+public class DescriptorBudget {
+
+    // Assumed limit when it can't be read, the usual default soft limit
+    public static final int DEFAULT_LIMIT = 1024;
+    private static final int MIN_DESCRIPTORS = 16;
+    // Left for the rest of the app, at least this many and at least an eighth of the limit
+    private static final int MIN_HEADROOM = 64;
+    // How long to wait for descriptors to be closed when the process runs out anyway, and how often
+    private static final int OUT_OF_DESCRIPTORS_WAIT_MILLIS = 50;
+    private static final int MAX_OUT_OF_DESCRIPTORS_WAITS = 100;
+    // How often a cancellable wait checks whether it was cancelled
+    private static final long CANCEL_CHECK_MILLIS = 100;
+
+    private static DescriptorBudget defaultBudget;
+
+    private final int descriptors;
+    private final Semaphore available;
+
+    /**
+     * @param descriptors - the number of descriptors scans may have open at once
+     */
+    public DescriptorBudget(int descriptors) {
+        if (descriptors < 1) throw new IllegalArgumentException("Cannot have less than 1 descriptor");
+        this.descriptors = descriptors;
+        this.available = new Semaphore(descriptors, true);
+    }
+
+    /**
+     * @return a budget of the descriptors this process can still open, less headroom for the
+     * rest of the app
+     */
+    public static DescriptorBudget fromProcessLimit() {
+        long limit = readOpenFileLimit();
+        if (limit <= 0 || limit > Integer.MAX_VALUE) limit = DEFAULT_LIMIT;
+        long open = Math.max(countOpenFiles(), 0);
+        long headroom = Math.max(MIN_HEADROOM, limit / 8);
+        return new DescriptorBudget((int) Math.max(limit - open - headroom, MIN_DESCRIPTORS));
+    }
+
+    /**
+     * @return the budget shared by every tool that has not been given one of its own, created
+     * from the process limit the first time it is needed
+     */
+    public static synchronized DescriptorBudget getDefault() {
+        if (defaultBudget == null) defaultBudget = fromProcessLimit();
+        return defaultBudget;
+    }
+
+    /**
+     * Set the budget used by tools created from now on that are not given one of their own
+     *
+     * @param budget - the new default budget
+     */
+    public static synchronized void setDefault(DescriptorBudget budget) {
+        if (budget == null) throw new IllegalArgumentException("Budget cannot be null");
+        defaultBudget = budget;
+    }
+
+    /**
+     * @return the soft limit on open files, or -1 if it could not be found
+     */
+    private static long readOpenFileLimit() {
+        // Linux and Android
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/limits"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("Max open files")) continue;
+                String[] parts = line.substring("Max open files".length()).trim().split("\\s+");
+                return parts[0].equals("unlimited") ? Integer.MAX_VALUE : Long.parseLong(parts[0]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available here, try the JVM instead
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return readUnixBeanCount("getMaxFileDescriptorCount");
+    }
+
+    /**
+     * @return the number of files this process has open, or -1 if it could not be found
+     */
+    private static long countOpenFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        if (fds != null) return fds.length;
+        return readUnixBeanCount("getOpenFileDescriptorCount");
+    }
+
+    /**
+     * The JVM's own count from com.sun.management.UnixOperatingSystemMXBean, looked up by
+     * reflection as java.lang.management doesn't exist on Android
+     */
+    private static long readUnixBeanCount(String methodName) {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getOperatingSystemMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.UnixOperatingSystemMXBean").getMethod(methodName);
+            if (!method.getDeclaringClass().isInstance(bean)) return -1;
+            method.setAccessible(true);
+            return (Long) method.invoke(bean);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param e - an exception from opening or connecting a socket
+     * @return true if it failed because the process or system is out of file descriptors, rather
+     * than anything to do with the address it was for
+     */
+    public static boolean isOutOfDescriptors(Exception e) {
+        String message = e.getMessage();
+        return message != null && message.contains("Too many open files");
+    }
+
+    /**
+     * Wait a little for descriptors to be closed after a probe failed with
+     * {@link #isOutOfDescriptors(Exception)}, e.g. because another part of the app is using them
+     *
+     * @param waits - number of times already waited for this probe
+     * @return true to try the probe again, false if it has waited too long or was interrupted
+     */
+    public static boolean waitForDescriptors(int waits) {
+        if (waits >= MAX_OUT_OF_DESCRIPTORS_WAITS) return false;
+        try {
+            Thread.sleep(OUT_OF_DESCRIPTORS_WAIT_MILLIS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public int getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * @return the number of descriptors not in use by scans right now
+     */
+    public int getAvailable() {
+        return available.availablePermits();
+    }
+
+    /**
+     * Wait until a descriptor is free and take it
+     *
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        available.acquire();
+    }
+
+    /**
+     * Wait until a number of descriptors are free and take them, giving up if the operation waiting
+     * is cancelled
+     *
+     * @param count        - number of descriptors needed
+     * @param cancellation - the waiting operation's cancellation
+     * @return true if the descriptors were taken, false if cancelled first
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public boolean acquire(int count, Cancellation cancellation) throws InterruptedException {
+        while (!cancellation.isCancelled()) {
+            if (available.tryAcquire(Math.min(count, descriptors), CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a descriptor was free and has been taken
+     */
+    public boolean tryAcquire() {
+        return available.tryAcquire();
+    }
+
+    /**
+     * Give back a descriptor once its socket is closed
+     */
+    public void release() {
+        available.release();
+    }
+
+    /**
+     * Give back descriptors taken with {@link #acquire(int, Cancellation)}
+     *
+     * @param count - number of descriptors taken
+     */
+    public void release(int count) {
+        available.release(Math.min(count, descriptors));
+    }
+
+    @Override
+    public String toString() {
+        return "DescriptorBudget{" +
+                "descriptors=" + descriptors +
+                ", available=" + getAvailable() +
+                '}';
+    }
+}
@@ -0,0 +1,230 @@
+package com.stealthcopter.networktools.concurrency;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by every scan, ping and wake on lan so that starting one costs next to
+ * nothing.
+ * <p>
+ * A runtime has three parts:
+ * <ul>
+ * <li>workers - a bounded set of threads that run the individual probes of every operation, each
+ * operation gets its own limited view of them from {@link #newExecutor(int)}. While several
+ * operations are running each gets an equal share of the workers, so one large scan can't hold
+ * every worker while the others wait</li>
+ * <li>tasks - threads that run the operations themselves, e.g. the loop of an asynchronous scan.
+ * These are not bounded as they wait on workers, so limiting them could leave every worker waiting
+ * on a task that can't start</li>
+ * <li>a timer - a single thread that hands delayed tasks, such as the next of a series of pings,
+ * to the task threads</li>
+ * </ul>
+ * Idle threads are kept for a while for the next operation to reuse and then stop, and all the
+ * threads are daemon threads so a runtime never keeps the process alive.
+ * <p>
+ * Every tool uses {@link #getDefault()} unless given a runtime of its own.
+ * <p>
+ * On JDK 21 and later {@link #newVirtualThreadRuntime()} runs every probe on its own virtual
+ * thread instead, so the thread counts of the tools can be raised to tens of thousands of
+ * blocking probes without using any more platform threads.
+ */
+public class NetworkToolsRuntime {
+
+    public static final int DEFAULT_MAX_WORKERS = 256;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static NetworkToolsRuntime defaultRuntime;
+
+    private final int maxWorkers;
+    private final ExecutorService workers;
+    private final WorkerShares shares;
+    private final ExecutorService tasks;
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * @param maxWorkers - maximum number of probes running at once across every operation
+     */
+    public NetworkToolsRuntime(int maxWorkers) {
+        if (maxWorkers < 1) throw new IllegalArgumentException("Cannot have less than 1 worker");
+        this.maxWorkers = maxWorkers;
+
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("worker"));
+        workers.allowCoreThreadTimeOut(true);
+        this.workers = workers;
+        this.shares = new WorkerShares(maxWorkers);
+
+        this.tasks = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("task"));
+        this.timer = createTimer();
+    }
+
+    /**
+     * Run the workers and tasks on executors of your own, e.g. ones that create threads of a
+     * particular kind. Neither may be bounded in a way that rejects tasks, and the tasks executor
+     * must not queue tasks behind each other, see the class description. Both are shut down by
+     * {@link #shutdown()}.
+     *
+     * @param workers - executor to run the probes of every operation on
+     * @param tasks   - executor to run the operations themselves on
+     */
+    public NetworkToolsRuntime(ExecutorService workers, ExecutorService tasks) {
+        if (workers == null || tasks == null) throw new IllegalArgumentException("Executors cannot be null");
+        this.maxWorkers = Integer.MAX_VALUE;
+        this.workers = workers;
+        this.shares = null;
+        this.tasks = tasks;
+        this.timer = createTimer();
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("timer"));
+        timer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        return timer;
+    }
+
+    /**
+     * @return true if this JVM can run probes on virtual threads (JDK 21 and later)
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return findVirtualThreadExecutorFactory() != null;
+    }
+
+    /**
+     * Create a runtime that runs every probe and operation on a new virtual thread. Blocking
+     * sockets and pings then only hold a platform thread while they are actually running, so
+     * raise the tool's thread count (e.g. {@link com.stealthcopter.networktools.PortScan#setNoThreads(int)})
+     * to the number of probes you want in flight.
+     *
+     * @return the runtime
+     * @throws UnsupportedOperationException - if virtual threads are not available, see
+     *                                       {@link #isVirtualThreadsSupported()}
+     */
+    public static NetworkToolsRuntime newVirtualThreadRuntime() {
+        Method factory = findVirtualThreadExecutorFactory();
+        if (factory == null) throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+        try {
+            return new NetworkToolsRuntime((ExecutorService) factory.invoke(null), (ExecutorService) factory.invoke(null));
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Virtual threads are looked up by reflection so the library still builds and runs on Java 7
+     *
+     * @return Executors.newVirtualThreadPerTaskExecutor() or null if there isn't one
+     */
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the runtime shared by every tool that has not been given one of its own, created
+     * with {@link #DEFAULT_MAX_WORKERS} workers the first time it is needed
+     */
+    public static synchronized NetworkToolsRuntime getDefault() {
+        if (defaultRuntime == null) defaultRuntime = new NetworkToolsRuntime(DEFAULT_MAX_WORKERS);
+        return defaultRuntime;
+    }
+
+    /**
+     * Set the runtime used by tools created from now on that are not given one of their own, e.g.
+     * {@code setDefault(newVirtualThreadRuntime())} to run every probe on a virtual thread
+     *
+     * @param runtime - the new default runtime
+     */
+    public static synchronized void setDefault(NetworkToolsRuntime runtime) {
+        if (runtime == null) throw new IllegalArgumentException("Runtime cannot be null");
+        defaultRuntime = runtime;
+    }
+
+    /**
+     * @return the maximum number of workers, or Integer.MAX_VALUE if the workers are not limited
+     * by the runtime
+     */
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * Run an operation in the background, e.g. an asynchronous scan
+     *
+     * @param task - the task to run
+     */
+    public void execute(Runnable task) {
+        tasks.execute(task);
+    }
+
+    /**
+     * Run an operation in the background after a delay
+     *
+     * @param task        - the task to run
+     * @param delayMillis - time to wait before running it
+     * @return a future that can be cancelled before the task starts
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, long delayMillis) {
+        return timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tasks.execute(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create an executor for the probes of one operation. It behaves like a fixed thread pool
+     * that can be shut down without affecting anything else, but its tasks run on this runtime's
+     * workers.
+     * <p>
+     * More tasks than {@link #getMaxWorkers()} can never run at once, so maxConcurrent is capped
+     * at it. While other operations are running the executor is limited further to its share of
+     * the workers.
+     *
+     * @param maxConcurrent - maximum number of the operation's tasks running at once
+     * @return the executor
+     */
+    public ExecutorService newExecutor(int maxConcurrent) {
+        return new BoundedExecutor(workers, Math.min(maxConcurrent, maxWorkers), shares);
+    }
+
+    /**
+     * Stop the runtime's threads once they are idle, operations can't be started on it afterwards
+     */
+    public void shutdown() {
+        timer.shutdown();
+        tasks.shutdown();
+        workers.shutdown();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NetworkTools-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.stealthcopter.networktools.concurrency;
+
+/**
+ * Token bucket limiting how many probes are sent per second.
+ * <p>
+ * Tokens are added at the configured rate up to a small burst, and each probe takes one token.
+ * A single limiter can be set on any number of scans ({@link com.stealthcopter.networktools.PortScan},
+ * {@link com.stealthcopter.networktools.MultiPortScan},
+ * {@link com.stealthcopter.networktools.SubnetDevices} and {@link com.stealthcopter.networktools.Ping})
+ * so that together they never go over the budget a network tolerates.
+ * <p>
+ * This class is thread safe.
+ */
+public class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private double packetsPerSecond;
+    private double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param packetsPerSecond - the number of probes allowed per second, bursts of up to one tenth
+     *                         of a second's worth (and at least one) are allowed
+     */
+    public RateLimiter(double packetsPerSecond) {
+        this(packetsPerSecond, Math.max(1, packetsPerSecond / 10));
+    }
+
+    /**
+     * @param packetsPerSecond - the number of probes allowed per second
+     * @param burst            - the number of probes that can be sent back to back after idling
+     */
+    public RateLimiter(double packetsPerSecond, double burst) {
+        if (packetsPerSecond <= 0) throw new IllegalArgumentException("Packets per second must be greater than 0");
+        if (burst < 1) throw new IllegalArgumentException("Burst cannot be less than 1");
+        this.packetsPerSecond = packetsPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Change the rate, this takes effect for the next probe
+     *
+     * @param packetsPerSecond - the number of probes allowed per second
+     */
+    public synchronized void setRate(double packetsPerSecond) {
+        if (packetsPerSecond <= 0) throw new IllegalArgumentException("Packets per second must be greater than 0");
+        refill();
+        this.packetsPerSecond = packetsPerSecond;
+    }
+
+    public synchronized double getRate() {
+        return packetsPerSecond;
+    }
+
+    /**
+     * Wait until a probe may be sent
+     *
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        }
+    }
+
+    /**
+     * Take a token if one is available without waiting. This is for callers, such as a selector
+     * loop, that have other work to do while waiting.
+     *
+     * @return 0 if a probe may be sent now, otherwise the number of nanoseconds until one can be
+     */
+    public synchronized long tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, nanosFor(1 - tokens));
+    }
+
+    /**
+     * Take a token, borrowing against the future if none are available so that waiting callers
+     * are served in order.
+     *
+     * @return the number of nanoseconds the caller must wait before sending
+     */
+    private synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : nanosFor(-tokens);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * packetsPerSecond / NANOS_PER_SECOND);
+        lastRefillNanos = now;
+    }
+
+    private long nanosFor(double noTokens) {
+        return (long) Math.ceil(noTokens * NANOS_PER_SECOND / packetsPerSecond);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter{" +
+                "packetsPerSecond=" + packetsPerSecond +
+                ", burst=" + burst +
+                ", tokens=" + tokens +
+                '}';
+    }
+}
@@ -0,0 +1,62 @@
+package com.stealthcopter.networktools.concurrency;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers results to a listener one at a time without making the threads producing them wait.
+ * <p>
+ * Results are added to a lock free queue. Whichever producer finds nobody else delivering drains
+ * the queue to the handler, any other producer just leaves its result queued and carries on. The
+ * handler is therefore never called concurrently, but a slow handler only ever holds up the one
+ * thread that happens to be draining, never the rest.
+ *
+ * @param <T> - the type of result
+ */
+public class ResultDispatcher<T> {
+
+    public interface Handler<T> {
+        void onResult(T result);
+    }
+
+    private final ConcurrentLinkedQueue<T> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final Handler<T> handler;
+
+    /**
+     * @param handler - the handler to deliver results to
+     */
+    public ResultDispatcher(Handler<T> handler) {
+        if (handler == null) throw new IllegalArgumentException("Handler cannot be null");
+        this.handler = handler;
+    }
+
+    /**
+     * Queue a result for delivery, delivering it (and any others queued) on this thread if no
+     * other thread is already doing so
+     *
+     * @param result - the result to deliver
+     */
+    public void dispatch(T result) {
+        pending.offer(result);
+        drain();
+    }
+
+    /**
+     * Deliver anything still queued, call this once all producers have finished to be sure every
+     * result has been delivered before reporting completion
+     */
+    public void drain() {
+        // Re-check after letting go in case a result was queued just as we finished
+        while (!pending.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                T result;
+                while ((result = pending.poll()) != null) {
+                    handler.onResult(result);
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.stealthcopter.networktools.concurrency;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Splits a runtime's workers fairly between the operations using them at the same time.
+ * <p>
+ * An operation joins while it has tasks running and leaves once it has none. Each one may then
+ * have at most an equal share of the workers running, so a large sweep holding workers for full
+ * timeouts can't leave another operation waiting behind it. When an operation leaves the others
+ * are topped up to their larger share.
+ */
+class WorkerShares {
+
+    private final int maxWorkers;
+    // Joins less leaves for each operation, see join()
+    private final HashMap<BoundedExecutor, Integer> operations = new HashMap<>();
+    private volatile int fairShare;
+
+    /**
+     * @param maxWorkers - the number of workers to share
+     */
+    WorkerShares(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+        this.fairShare = maxWorkers;
+    }
+
+    /**
+     * @return the number of tasks each operation may have running right now
+     */
+    int getFairShare() {
+        return fairShare;
+    }
+
+    /**
+     * Called when an operation starts running tasks. A join and its leave may be reported out of
+     * order by different threads, so they are counted rather than just recorded.
+     *
+     * @param operation - the operation
+     */
+    void join(BoundedExecutor operation) {
+        update(operation, 1);
+    }
+
+    /**
+     * Called when an operation has no tasks left running
+     *
+     * @param operation - the operation
+     */
+    void leave(BoundedExecutor operation) {
+        update(operation, -1);
+    }
+
+    private void update(BoundedExecutor operation, int change) {
+        ArrayList<BoundedExecutor> toTopUp = null;
+        synchronized (this) {
+            Integer count = operations.get(operation);
+            int updated = (count != null ? count : 0) + change;
+            if (updated == 0) {
+                operations.remove(operation);
+            } else {
+                operations.put(operation, updated);
+            }
+
+            int active = 0;
+            for (int joined : operations.values()) {
+                if (joined > 0) active++;
+            }
+            int share = Math.max(maxWorkers / Math.max(active, 1), 1);
+            if (share > fairShare) toTopUp = new ArrayList<>(operations.keySet());
+            fairShare = share;
+        }
+        // Outside the lock as each operation takes its own
+        if (toTopUp != null) {
+            for (BoundedExecutor other : toTopUp) {
+                other.topUp();
+            }
+        }
+    }
+}
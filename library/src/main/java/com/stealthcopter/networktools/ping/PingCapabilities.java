@@ -0,0 +1,201 @@
+package com.stealthcopter.networktools.ping;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+
+/**
+ * Which ping backends work on this device, found once and then reused by every ping.
+ *
+ * Some devices come without a ping binary, or with one that can't be run by apps, and trying to
+ * start it for every ping wastes a process spawn each time before falling back. The binaries are
+ * instead tried once, by pinging the loopback address with the same options as a real ping, and
+ * only one that gets a reply is used, so one that rejects the options or has no permission to
+ * send pings isn't used either. The java ping is checked the same way. Pings then go straight to a backend that works. Each
+ * binary is also checked for taking a fraction of a second as its timeout, otherwise sub-second
+ * timeouts are rounded up for it and the process stopped at the deadline instead.
+ *
+ * Detection starts processes and waits for them, so don't call {@link #get()} on the UI thread.
+ * Call {@link #refresh()} to check again, e.g. after installing a ping binary.
+ *
+ * This class is immutable and thread safe.
+ */
+public class PingCapabilities {
+
+    // Where the ping binaries usually are, if not on the PATH
+    private static final String[] PING_PATHS = {"/system/bin/ping", "/system/xbin/ping", "/bin/ping", "/sbin/ping", "/usr/bin/ping", "/usr/sbin/ping"};
+    private static final String[] PING6_PATHS = {"/system/bin/ping6", "/system/xbin/ping6", "/bin/ping6", "/sbin/ping6", "/usr/bin/ping6", "/usr/sbin/ping6"};
+    private static final int JAVA_PING_TIMEOUT_MILLIS = 1000;
+    private static final String FRACTIONAL_TIMEOUT = "0.5";
+
+    private static PingCapabilities capabilities;
+
+    private final String nativePing;
+    private final String nativePing6;
+    private final boolean fractionalTimeout;
+    private final boolean fractionalTimeout6;
+    private final boolean javaPing;
+
+    PingCapabilities(String nativePing, String nativePing6, boolean javaPing) {
+        this(nativePing, false, nativePing6, false, javaPing);
+    }
+
+    /**
+     * @param nativePing         - command to ping IPv4 addresses with, or null if there is none
+     * @param fractionalTimeout  - true if it takes a fraction of a second for -W
+     * @param nativePing6        - command to ping IPv6 addresses with, or null if there is none
+     * @param fractionalTimeout6 - true if it takes a fraction of a second for -W
+     * @param javaPing           - true if InetAddress.isReachable() can be used
+     */
+    PingCapabilities(String nativePing, boolean fractionalTimeout, String nativePing6, boolean fractionalTimeout6, boolean javaPing) {
+        this.nativePing = nativePing;
+        this.fractionalTimeout = fractionalTimeout;
+        this.nativePing6 = nativePing6;
+        this.fractionalTimeout6 = fractionalTimeout6;
+        this.javaPing = javaPing;
+    }
+
+    /**
+     * @return the ping backends of this device, detected the first time this is called
+     */
+    public static synchronized PingCapabilities get() {
+        if (capabilities == null) capabilities = detect();
+        return capabilities;
+    }
+
+    /**
+     * Detect the ping backends again, used by every ping from now on
+     *
+     * @return the ping backends of this device
+     */
+    public static PingCapabilities refresh() {
+        PingCapabilities detected = detect();
+        set(detected);
+        return detected;
+    }
+
+    /**
+     * @param pingCapabilities - the backends to use from now on, or null to detect them again when
+     *                         next needed
+     */
+    static synchronized void set(PingCapabilities pingCapabilities) {
+        capabilities = pingCapabilities;
+    }
+
+    /**
+     * @return the ping backends of this device
+     */
+    public static PingCapabilities detect() {
+        String nativePing = findNativePing("ping", PING_PATHS, "127.0.0.1");
+        String nativePing6 = findNativePing("ping6", PING6_PATHS, "::1");
+        if (nativePing6 == null && nativePing != null && isWorkingPing(nativePing, "::1", "1")) {
+            // Newer versions of ping handle IPv6 addresses themselves
+            nativePing6 = nativePing;
+        }
+        boolean fractionalTimeout = nativePing != null && isWorkingPing(nativePing, "127.0.0.1", FRACTIONAL_TIMEOUT);
+        boolean fractionalTimeout6 = nativePing6 != null && isWorkingPing(nativePing6, "::1", FRACTIONAL_TIMEOUT);
+        return new PingCapabilities(nativePing, fractionalTimeout, nativePing6, fractionalTimeout6, isJavaPingWorking());
+    }
+
+    /**
+     * @return the first of the command on the PATH or the usual paths that pings the loopback
+     * address, or null if none do
+     */
+    private static String findNativePing(String command, String[] paths, String loopback) {
+        if (isWorkingPing(command, loopback, "1")) return command;
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isFile() && file.canExecute() && isWorkingPing(path, loopback, "1")) return path;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the command can be run, accepts the options real pings use with the given
+     * timeout in seconds, and gets a reply
+     */
+    static boolean isWorkingPing(String command, String loopback, String timeoutSeconds) {
+        Process process;
+        try {
+            process = new ProcessBuilder(command, "-c", "1", "-W", timeoutSeconds, "-t", "64", loopback).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            // Not there, or not allowed to run it
+            return false;
+        }
+        try {
+            // Don't leave it blocked writing output no one reads
+            InputStream in = process.getInputStream();
+            byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+                // Discard
+            }
+            // The loopback address always replies, so anything but 0 is an error. Busybox exits 1
+            // both for a timeout it can't parse, e.g. -W 0.5, and for no permission to open a
+            // raw socket
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            process.destroy();
+        }
+    }
+
+    /**
+     * @return true if InetAddress.isReachable() reaches the loopback address, which it always
+     * should when it works
+     */
+    private static boolean isJavaPingWorking() {
+        try {
+            return InetAddress.getByName("127.0.0.1").isReachable(JAVA_PING_TIMEOUT_MILLIS);
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param ipv6 - true for an IPv6 address
+     * @return true if the native ping binary can ping the address
+     */
+    public boolean hasNativePing(boolean ipv6) {
+        return getNativePing(ipv6) != null;
+    }
+
+    /**
+     * @param ipv6 - true for an IPv6 address
+     * @return the command to ping the address with, or null if there is no working ping binary
+     */
+    public String getNativePing(boolean ipv6) {
+        return ipv6 ? nativePing6 : nativePing;
+    }
+
+    /**
+     * @param ipv6 - true for an IPv6 address
+     * @return true if the native ping binary for the address takes a fraction of a second for its
+     * timeout
+     */
+    public boolean hasFractionalTimeout(boolean ipv6) {
+        return ipv6 ? fractionalTimeout6 : fractionalTimeout;
+    }
+
+    /**
+     * @return true if InetAddress.isReachable() can be used
+     */
+    public boolean hasJavaPing() {
+        return javaPing;
+    }
+
+    @Override
+    public String toString() {
+        return "PingCapabilities{" +
+                "nativePing='" + nativePing + '\'' +
+                ", fractionalTimeout=" + fractionalTimeout +
+                ", nativePing6='" + nativePing6 + '\'' +
+                ", fractionalTimeout6=" + fractionalTimeout6 +
+                ", javaPing=" + javaPing +
+                '}';
+    }
+}
@@ -1,19 +1,38 @@
 package com.stealthcopter.networktools.ping;
 
 import com.stealthcopter.networktools.IPTools;
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.NetworkToolsRuntime;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PingNative {
 
+    // Allowance for starting the ping process before it sends, when stopping it at the deadline
+    private static final int PROCESS_START_MILLIS = 100;
+
     // This class is not to be instantiated
     private PingNative() {
     }
 
     public static PingResult ping(InetAddress host, PingOptions pingOptions) throws IOException, InterruptedException {
+        return ping(host, pingOptions, null);
+    }
+
+    /**
+     * @param host         - address to ping
+     * @param pingOptions  - ping command options
+     * @param cancellation - if cancelled the ping process is destroyed straight away, may be null
+     * @return - the ping results
+     * @throws IOException - IO error running ping command
+     * @throws InterruptedException - thread interrupt
+     */
+    public static PingResult ping(InetAddress host, PingOptions pingOptions, Cancellation cancellation) throws IOException, InterruptedException {
         PingResult pingResult = new PingResult(host);
 
         if (host == null) {
@@ -21,41 +40,60 @@ public class PingNative {
             return pingResult;
         }
 
-        StringBuilder echo = new StringBuilder();
         Runtime runtime = Runtime.getRuntime();
 
-        int timeoutSeconds = Math.max(pingOptions.getTimeoutMillis() / 1000, 1);
+        int timeoutMillis = pingOptions.getTimeoutMillis();
         int ttl = Math.max(pingOptions.getTimeToLive(), 1);
 
         String address = host.getHostAddress();
-        String pingCommand = "ping";
+        String pingCommand = getPingCommand(address);
 
-        if (address != null) {
-            if (IPTools.isIPv6Address(address)) {
-                // If we detect this is a ipv6 address, change the to the ping6 binary
-                pingCommand = "ping6";
-            } else if (!IPTools.isIPv4Address(address)) {
-                // Address doesn't look to be ipv4 or ipv6, but we could be mistaken
-
-            }
-        } else {
+        if (address == null) {
             // Not sure if getHostAddress ever returns null, but if it does, use the hostname as a fallback
             address = host.getHostName();
         }
 
-        Process proc = runtime.exec(pingCommand + " -c 1 -W " + timeoutSeconds + " -t " + ttl + " " + address);
-        proc.waitFor();
+        final Process proc = runtime.exec(pingCommand + " -c 1 -W " + getTimeoutArgument(address, timeoutMillis) + " -t " + ttl + " " + address);
+        Closeable procCloseable = Cancellation.forProcess(proc);
+        if (cancellation != null && !cancellation.register(procCloseable)) {
+            pingResult.error = "Cancelled";
+            return pingResult;
+        }
+
+        // A ping binary that only takes whole seconds, or that reads a fraction as 0, would wait
+        // longer than asked, so stop it at the deadline
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> deadline = null;
+        if (timeoutMillis % 1000 != 0) {
+            deadline = NetworkToolsRuntime.getDefault().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    proc.destroy();
+                }
+            }, timeoutMillis + PROCESS_START_MILLIS);
+        }
+        try {
+            proc.waitFor();
+        } finally {
+            if (cancellation != null) cancellation.unregister(procCloseable);
+            if (deadline != null) deadline.cancel(false);
+        }
+        if (cancellation != null && cancellation.isCancelled()) {
+            pingResult.error = "Cancelled";
+            proc.destroy();
+            return pingResult;
+        }
         int exit = proc.exitValue();
+        if (exit != 0 && timedOut.get()) {
+            pingResult.error = "Timed Out";
+            return pingResult;
+        }
         String pingError;
         switch (exit) {
             case 0:
-                InputStreamReader reader = new InputStreamReader(proc.getInputStream());
-                BufferedReader buffer = new BufferedReader(reader);
-                String line;
-                while ((line = buffer.readLine()) != null) {
-                    echo.append(line).append("\n");
-                }
-                return getPingStats(pingResult, echo.toString());
+                PingOutputParser parser = new PingOutputParser(pingOptions.isKeepFullString());
+                return parser.parse(proc.getInputStream(), pingResult);
             case 1:
                 pingError = "failed, exit = 1";
                 break;
@@ -68,6 +106,43 @@ public class PingNative {
         return pingResult;
     }
 
+    /**
+     * @param address - the address to be pinged, may be null
+     * @return the ping binary for the address, as found by {@link PingCapabilities}
+     */
+    static String getPingCommand(String address) {
+        // If we detect this is a ipv6 address, change the to the ping6 binary
+        boolean ipv6 = isIPv6(address);
+        String command = PingCapabilities.get().getNativePing(ipv6);
+        if (command != null) return command;
+        return ipv6 ? "ping6" : "ping";
+    }
+
+    /**
+     * @param address       - the address to be pinged, may be null
+     * @param timeoutMillis - the timeout for each reply
+     * @return the timeout in seconds as passed to -W, with a fraction if the ping binary for the
+     * address accepts one, otherwise rounded up to whole seconds
+     */
+    static String getTimeoutArgument(String address, int timeoutMillis) {
+        if (PingCapabilities.get().hasFractionalTimeout(isIPv6(address))) {
+            return formatSeconds(timeoutMillis);
+        }
+        return String.valueOf(Math.max((timeoutMillis + 999) / 1000, 1));
+    }
+
+    /**
+     * @return the time in seconds as the ping binary expects it, e.g. 0.25
+     */
+    static String formatSeconds(int millis) {
+        String fraction = String.valueOf(1000 + millis % 1000).substring(1);
+        return (millis / 1000) + "." + fraction;
+    }
+
+    private static boolean isIPv6(String address) {
+        return address != null && IPTools.isIPv6Address(address);
+    }
+
     /**
      * getPingStats interprets the text result of a Linux activity_ping command
      *
@@ -93,42 +168,31 @@ public class PingNative {
      * # activity_ping 321321.
      * activity_ping: unknown host 321321.
      *
-     * 1. Check if output contains 0% packet loss : Branch to success - Get stats
+     * 1. Check if output contains round trip times and packets were received : Branch to success - Get stats
      * 2. Check if output contains 100% packet loss : Branch to fail - No stats
-     * 3. Check if output contains 25% packet loss : Branch to partial success - Get stats
+     * 3. Check if output contains 25% packet loss without times : Branch to fail - No stats
      * 4. Check if output contains "unknown host"
      *
+     * The output of a ping process is parsed as it is read by {@link PingOutputParser} instead,
+     * without first building it into a string.
+     *
      * @param pingResult - the current ping result
      * @param s - result from ping command
      *
      * @return The ping result
      */
     public static PingResult getPingStats(PingResult pingResult, String s) {
-        String pingError;
-        if (s.contains("0% packet loss")) {
-            int start = s.indexOf("/mdev = ");
-            int end = s.indexOf(" ms\n", start);
-            pingResult.fullString = s;
-            if (start == -1 || end == -1) {
-                pingError = "Error: " + s;
-            } else {
-                s = s.substring(start + 8, end);
-                String stats[] = s.split("/");
-                pingResult.isReachable = true;
-                pingResult.result = s;
-                pingResult.timeTaken = Float.parseFloat(stats[1]);
-                return pingResult;
-            }
-        } else if (s.contains("100% packet loss")) {
-            pingError = "100% packet loss";
-        } else if (s.contains("% packet loss")) {
-            pingError = "partial packet loss";
-        } else if (s.contains("unknown host")) {
-            pingError = "unknown host";
-        } else {
-            pingError = "unknown error in getPingStats";
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
         }
-        pingResult.error = pingError;
+        try {
+            new PingOutputParser(true).parse(new ByteArrayInputStream(bytes), pingResult);
+        } catch (IOException e) {
+            // Not possible reading from memory
+            e.printStackTrace();
+        }
+        pingResult.fullString = s;
         return pingResult;
     }
 }
@@ -0,0 +1,332 @@
+package com.stealthcopter.networktools.ping;
+
+import com.stealthcopter.networktools.concurrency.Cancellation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single long running native ping process whose replies are read one at a time as they arrive.
+ *
+ * Starting a ping process for every sample costs a fork and exec each time, which dominates the
+ * cost of continuous pinging. A session starts one "ping -i interval" process instead and parses
+ * each line of its output as it is printed, so each sample only costs reading a line.
+ *
+ * Replies are matched to their icmp_seq. A sequence number that has had no reply within the
+ * timeout, or that is skipped over by a later reply, is returned as a lost ping so that a host
+ * that stops answering is noticed straight away rather than when the process ends.
+ *
+ * <pre>
+ * PingNativeSession session = new PingNativeSession(address, pingOptions, 500, 0);
+ * session.start(cancellation);
+ * PingResult pingResult;
+ * while ((pingResult = session.next()) != null) {
+ *     ...
+ * }
+ * session.close();
+ * </pre>
+ */
+public class PingNativeSession implements Closeable {
+
+    // The shortest interval the ping binary allows without root
+    public static final int MIN_INTERVAL_MILLIS = 200;
+    // Allowance for the ping process falling behind its own schedule
+    private static final int LATE_REPLY_MILLIS = 100;
+    // How often to check for overdue replies while no output is waiting
+    private static final int POLL_MILLIS = 20;
+    private static final int SEQ_MASK = 0xFFFF;
+
+    private final InetAddress host;
+    private final PingOptions pingOptions;
+    private final int intervalMillis;
+    private final int count;
+
+    private final ArrayDeque<PingResult> pending = new ArrayDeque<>();
+    private Process process;
+    private Closeable processCloseable;
+    private Cancellation cancellation;
+    private InputStream in;
+    // The text of a long session isn't kept, only that of each reply if asked for
+    private final PingOutputParser parser = new PingOutputParser(false);
+    long startNanos = System.nanoTime();
+    private long firstSeq = 1;
+    private long nextSeq = 1;
+    private long noResults = 0;
+    private boolean ended = false;
+    private String error;
+
+    /**
+     * @param host           - address to ping
+     * @param pingOptions    - ping command options, the timeout is how long to wait for each reply
+     * @param intervalMillis - time between pings, no less than {@link #MIN_INTERVAL_MILLIS}
+     * @param count          - number of pings to send, 0 = continuous
+     */
+    public PingNativeSession(InetAddress host, PingOptions pingOptions, int intervalMillis, int count) {
+        if (host == null) throw new IllegalArgumentException("Address cannot be null");
+        if (count < 0) throw new IllegalArgumentException("Count cannot be less than 0");
+        this.host = host;
+        this.pingOptions = pingOptions;
+        this.intervalMillis = Math.max(intervalMillis, MIN_INTERVAL_MILLIS);
+        this.count = count;
+    }
+
+    public int getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return the number of results returned by {@link #next()} so far
+     */
+    public long getNoResults() {
+        return noResults;
+    }
+
+    /**
+     * @return the last line printed by the ping process that was not a reply, e.g. "unknown host",
+     * or null if there was none
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Start the ping process
+     *
+     * @param cancellation - if cancelled the ping process is destroyed straight away, may be null
+     * @throws IOException - if the ping binary could not be run
+     */
+    public void start(Cancellation cancellation) throws IOException {
+        if (process != null) throw new IllegalStateException("Session already started");
+
+        int ttl = Math.max(pingOptions.getTimeToLive(), 1);
+        String address = host.getHostAddress();
+        if (address == null) address = host.getHostName();
+
+        List<String> command = new ArrayList<>();
+        command.add(PingNative.getPingCommand(address));
+        command.add("-i");
+        command.add(PingNative.formatSeconds(intervalMillis));
+        if (count > 0) {
+            command.add("-c");
+            command.add(String.valueOf(count));
+        }
+        command.add("-W");
+        command.add(PingNative.getTimeoutArgument(address, pingOptions.getTimeoutMillis()));
+        command.add("-t");
+        command.add(String.valueOf(ttl));
+        command.add(address);
+
+        // Errors such as unknown host are printed to stderr, read them in line with the replies
+        process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        startNanos = System.nanoTime();
+        in = process.getInputStream();
+        processCloseable = Cancellation.forProcess(process);
+        this.cancellation = cancellation;
+        if (cancellation != null && !cancellation.register(processCloseable)) {
+            ended = true;
+        }
+    }
+
+    /**
+     * Wait for the next ping to be answered or time out
+     *
+     * @return the result of the next ping, or null once the session has finished, been cancelled
+     * or the process has exited
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public PingResult next() throws InterruptedException {
+        if (in == null) throw new IllegalStateException("Session not started");
+
+        while (pending.isEmpty()) {
+            if (ended || isComplete() || (cancellation != null && cancellation.isCancelled())) {
+                return null;
+            }
+            try {
+                if (parser.hasLine(in)) {
+                    int lineType = parser.readLine(in);
+                    if (lineType == PingOutputParser.LINE_END) {
+                        endOfStream();
+                    } else {
+                        onLine(lineType);
+                    }
+                } else if (hasExited()) {
+                    // Whatever it printed last is already waiting in the pipe
+                    int lineType;
+                    while ((lineType = parser.readLine(in)) != PingOutputParser.LINE_END) onLine(lineType);
+                    endOfStream();
+                } else {
+                    expire(System.nanoTime());
+                    if (pending.isEmpty()) Thread.sleep(POLL_MILLIS);
+                }
+            } catch (IOException e) {
+                // Closed under us, e.g. by a cancel or the process exiting
+                endOfStream();
+            }
+        }
+        return poll();
+    }
+
+    /**
+     * @return the next result already parsed, or null if there is none
+     */
+    PingResult poll() {
+        PingResult pingResult = pending.poll();
+        if (pingResult != null) noResults++;
+        return pingResult;
+    }
+
+    /**
+     * Stop the ping process
+     */
+    @Override
+    public void close() {
+        ended = true;
+        if (process == null) return;
+        if (cancellation != null) cancellation.unregister(processCloseable);
+        process.destroy();
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean hasExited() {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true once every ping of a session with a count has been accounted for
+     */
+    private boolean isComplete() {
+        return count > 0 && nextSeq - firstSeq >= count;
+    }
+
+    /**
+     * Interpret one line of output from the ping process, for testing
+     *
+     * @param line - the line printed
+     */
+    void parseLine(String line) {
+        byte[] bytes = new byte[line.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) line.charAt(i);
+        }
+        onLine(parser.parseLine(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Act on the line just parsed, e.g.
+     *
+     * 64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=0.251 ms
+     * From 192.168.0.1 icmp_seq=2 Destination Host Unreachable
+     * no answer yet for icmp_seq=3
+     *
+     * @param lineType - the type of line, one of the PingOutputParser.LINE_ constants
+     */
+    private void onLine(int lineType) {
+        if (lineType == PingOutputParser.LINE_UNKNOWN_HOST) {
+            error = parser.getLine();
+            return;
+        }
+        if (lineType == PingOutputParser.LINE_OTHER) {
+            // Only the header and the statistics, so this is rare
+            String line = parser.getLine();
+            if (isError(line)) error = line;
+            return;
+        }
+        int rawSeq = parser.getSeq();
+        if (rawSeq < 0 || (lineType != PingOutputParser.LINE_REPLY && lineType != PingOutputParser.LINE_NO_REPLY)) {
+            return;
+        }
+
+        // Some ping binaries count from 0
+        if (rawSeq == 0 && noResults == 0 && pending.isEmpty() && nextSeq == 1) {
+            firstSeq = 0;
+            nextSeq = 0;
+        }
+
+        long seq = unwrap(rawSeq);
+        // Already reported as lost, or a duplicate
+        if (seq < nextSeq || (count > 0 && seq - firstSeq >= count)) return;
+
+        // Anything skipped over was sent before this one and hasn't been answered
+        while (nextSeq < seq) {
+            addLost();
+        }
+
+        PingResult pingResult = new PingResult(host);
+        pingResult.sequenceNumber = rawSeq;
+        if (pingOptions.isKeepFullString()) pingResult.fullString = parser.getLine();
+        if (lineType == PingOutputParser.LINE_REPLY) {
+            pingResult.isReachable = true;
+            pingResult.timeTaken = parser.getTime();
+            pingResult.timeToLive = parser.getTimeToLive();
+        } else {
+            // e.g. Destination Host Unreachable or Time to live exceeded
+            String reason = parser.getReason();
+            pingResult.error = reason != null ? reason : "Timed Out";
+        }
+        pending.add(pingResult);
+        nextSeq++;
+    }
+
+    /**
+     * Report as lost every ping whose reply is overdue
+     *
+     * @param nowNanos - the current time from System.nanoTime()
+     */
+    void expire(long nowNanos) {
+        long waitNanos = (pingOptions.getTimeoutMillis() + LATE_REPLY_MILLIS) * 1000000L;
+        while (!isComplete() && nowNanos - startNanos - (nextSeq - firstSeq) * intervalMillis * 1000000L > waitNanos) {
+            addLost();
+        }
+    }
+
+    /**
+     * The process has exited, so any pings it was asked to send that haven't been answered never
+     * will be
+     */
+    void endOfStream() {
+        ended = true;
+        if (count > 0 && noResults + pending.size() > 0) {
+            while (!isComplete()) addLost();
+        }
+    }
+
+    private void addLost() {
+        PingResult pingResult = new PingResult(host);
+        pingResult.isReachable = false;
+        pingResult.error = "Timed Out";
+        pingResult.sequenceNumber = (int) (nextSeq & SEQ_MASK);
+        pending.add(pingResult);
+        nextSeq++;
+    }
+
+    /**
+     * icmp_seq is only 16 bits, so a long session wraps around. Take the sequence number closest
+     * to the one expected next.
+     */
+    private long unwrap(int rawSeq) {
+        long seq = (nextSeq & ~(long) SEQ_MASK) | (rawSeq & SEQ_MASK);
+        if (seq < nextSeq - SEQ_MASK / 2) seq += SEQ_MASK + 1;
+        else if (seq > nextSeq + SEQ_MASK / 2 && seq > SEQ_MASK) seq -= SEQ_MASK + 1;
+        return seq;
+    }
+
+    private static boolean isError(String line) {
+        return line.startsWith("ping:") || line.startsWith("ping6:")
+                || line.contains("Network is unreachable") || line.contains("not permitted");
+    }
+
+}
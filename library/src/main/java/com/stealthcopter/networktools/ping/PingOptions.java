@@ -3,10 +3,13 @@ package com.stealthcopter.networktools.ping;
 public class PingOptions {
     private int timeoutMillis;
     private int timeToLive;
+    private boolean keepFullString;
+    private int port;
 
      public PingOptions() {
          timeToLive = 128;
          timeoutMillis = 1000;
+         keepFullString = true;
      }
 
     public int getTimeoutMillis() {
@@ -14,7 +17,8 @@ public class PingOptions {
     }
 
     public void setTimeoutMillis(int timeoutMillis) {
-        this.timeoutMillis = Math.max(timeoutMillis, 1000);
+        // 0 would mean wait forever to InetAddress.isReachable()
+        this.timeoutMillis = Math.max(timeoutMillis, 1);
     }
 
     public int getTimeToLive() {
@@ -24,4 +28,27 @@ public class PingOptions {
     public void setTimeToLive(int timeToLive) {
         this.timeToLive = Math.max(timeToLive, 1);
     }
+
+    /**
+     * @return the port pinged by a TCP or UDP ping, 0 for the default
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public boolean isKeepFullString() {
+        return keepFullString;
+    }
+
+    /**
+     * @param keepFullString - false to not keep the output of the ping binary in
+     *                       PingResult.fullString, saving the garbage when pinging often
+     */
+    public void setKeepFullString(boolean keepFullString) {
+        this.keepFullString = keepFullString;
+    }
 }
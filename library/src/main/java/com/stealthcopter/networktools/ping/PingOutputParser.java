@@ -0,0 +1,458 @@
+package com.stealthcopter.networktools.ping;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the output of the native ping binary a line at a time, straight from its byte stream.
+ *
+ * The fields of each line (icmp_seq, ttl, time, the packet counts and loss of the summary and the
+ * round trip times) are parsed from the bytes in place, so reading a reply doesn't create any
+ * strings. The text is only kept if asked for. This keeps the garbage from pinging many hosts
+ * often down to a single small buffer per ping process.
+ *
+ * Understands the output of iputils (Linux and Android) and busybox ping, e.g.
+ *
+ * 64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=0.251 ms
+ * 64 bytes from 127.0.0.1: seq=0 ttl=64 time=0.067 ms
+ * From 192.168.0.1 icmp_seq=2 Destination Host Unreachable
+ * 1 packets transmitted, 1 received, 0% packet loss, time 0ms
+ * 1 packets transmitted, 1 packets received, 0% packet loss
+ * rtt min/avg/max/mdev = 0.251/0.285/0.300/0.019 ms
+ * round-trip min/avg/max = 0.067/0.067/0.067 ms
+ *
+ * This class is not thread safe, use one for each ping process.
+ */
+public class PingOutputParser {
+
+    // Types of line returned by readLine()
+    public static final int LINE_END = -1;
+    public static final int LINE_OTHER = 0;
+    // A reply, with its sequence number, ttl and time
+    public static final int LINE_REPLY = 1;
+    // About a ping that got no reply, e.g. Destination Host Unreachable, with its sequence number
+    public static final int LINE_NO_REPLY = 2;
+    // The count of packets transmitted and received and the packet loss
+    public static final int LINE_SUMMARY = 3;
+    // The min, avg, max and (iputils only) mdev round trip times
+    public static final int LINE_RTT = 4;
+    public static final int LINE_UNKNOWN_HOST = 5;
+
+    // Longer lines are cut short, no line we need is anywhere near this long
+    private static final int MAX_LINE_LENGTH = 512;
+
+    private static final byte[] SEQ = ascii("seq=");
+    private static final byte[] TTL = ascii("ttl=");
+    private static final byte[] TIME = ascii("time");
+    private static final byte[] TRANSMITTED = ascii(" packets transmitted, ");
+    private static final byte[] PACKET_LOSS = ascii("% packet loss");
+    private static final byte[] RTT = ascii("min/avg/max");
+    private static final byte[] EQUALS = ascii(" = ");
+    private static final byte[] NO_ANSWER = ascii("no answer yet");
+    private static final byte[] UNKNOWN_HOST = ascii("unknown host");
+    private static final byte[] BAD_ADDRESS = ascii("bad address");
+    private static final byte[] NOT_KNOWN = ascii("service not known");
+
+    private final boolean keepFullString;
+    private final StringBuilder fullString;
+    private final byte[] buffer = new byte[MAX_LINE_LENGTH];
+    // Bytes read from the stream but not yet parsed
+    private int bufferStart = 0;
+    private int bufferEnd = 0;
+    // Dropping the rest of a line that was too long
+    private boolean skipping = false;
+
+    // The last line parsed
+    private byte[] line;
+    private int lineStart;
+    private int lineEnd;
+    private int lineType = LINE_OTHER;
+    private int seq = -1;
+    private int ttl = -1;
+    private float time = -1;
+    // Set by parseDecimal() to the index after the number
+    private int position;
+
+    // From the summary lines, if seen
+    private int transmitted = -1;
+    private int received = -1;
+    private float packetLoss = -1;
+    private float minTime = -1;
+    private float avgTime = -1;
+    private float maxTime = -1;
+    private float mdevTime = -1;
+    private String rttText;
+    private boolean unknownHost = false;
+
+    /**
+     * @param keepFullString - true to keep the text of every line read, see {@link #getFullString()}
+     */
+    public PingOutputParser(boolean keepFullString) {
+        this.keepFullString = keepFullString;
+        this.fullString = keepFullString ? new StringBuilder() : null;
+    }
+
+    /**
+     * Read the whole output of a ping and fill in its result
+     *
+     * @param in         - the ping process's output
+     * @param pingResult - the result to fill in
+     * @return the ping result
+     * @throws IOException - if the output could not be read
+     */
+    public PingResult parse(InputStream in, PingResult pingResult) throws IOException {
+        int type;
+        while ((type = readLine(in)) != LINE_END) {
+            if (type == LINE_REPLY && pingResult.sequenceNumber == -1) {
+                pingResult.sequenceNumber = seq;
+                pingResult.timeToLive = ttl;
+            }
+        }
+        return getResult(pingResult);
+    }
+
+    /**
+     * Fill in a ping's result from the lines read so far
+     *
+     * @param pingResult - the result to fill in
+     * @return the ping result
+     */
+    public PingResult getResult(PingResult pingResult) {
+        if (keepFullString) pingResult.fullString = fullString.toString();
+
+        if (avgTime >= 0 && received != 0) {
+            pingResult.isReachable = true;
+            pingResult.timeTaken = avgTime;
+            pingResult.result = rttText;
+            return pingResult;
+        }
+
+        String pingError;
+        if (received == 0 || packetLoss == 100) {
+            pingError = "100% packet loss";
+        } else if (packetLoss > 0) {
+            pingError = "partial packet loss";
+        } else if (unknownHost) {
+            pingError = "unknown host";
+        } else {
+            pingError = "unknown error in getPingStats";
+        }
+        pingResult.error = pingError;
+        return pingResult;
+    }
+
+    /**
+     * @param in - the ping process's output
+     * @return true if a line can be read without waiting for the process to print more, as long
+     * as it finishes any line it has started
+     * @throws IOException - if the output could not be read
+     */
+    public boolean hasLine(InputStream in) throws IOException {
+        return indexOf(buffer, bufferStart, bufferEnd, (byte) '\n') != -1 || in.available() > 0;
+    }
+
+    /**
+     * Read and parse the next line, waiting for it if need be
+     *
+     * @param in - the ping process's output
+     * @return the type of line read, one of the LINE_ constants, LINE_END once the output has ended
+     * @throws IOException - if the output could not be read
+     */
+    public int readLine(InputStream in) throws IOException {
+        while (true) {
+            int newline = indexOf(buffer, bufferStart, bufferEnd, (byte) '\n');
+            if (newline != -1) {
+                int start = bufferStart;
+                bufferStart = newline + 1;
+                if (skipping) {
+                    skipping = false;
+                    continue;
+                }
+                return parseLine(buffer, start, newline);
+            }
+
+            if (skipping) {
+                bufferStart = bufferEnd;
+            }
+            if (bufferStart > 0) {
+                System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+                bufferEnd -= bufferStart;
+                bufferStart = 0;
+            }
+            if (bufferEnd == buffer.length) {
+                // Too long, take what we have as the line and drop the rest of it
+                skipping = true;
+                bufferStart = bufferEnd;
+                return parseLine(buffer, 0, bufferEnd);
+            }
+
+            int read = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
+            if (read == -1) {
+                if (bufferStart == bufferEnd || skipping) return LINE_END;
+                // The last line had no newline
+                int start = bufferStart;
+                bufferStart = bufferEnd;
+                return parseLine(buffer, start, bufferEnd);
+            }
+            bufferEnd += read;
+        }
+    }
+
+    /**
+     * Parse a single line of output
+     *
+     * @param bytes - buffer holding the line
+     * @param start - index of the first byte of the line
+     * @param end   - index after the last byte of the line, not including the newline
+     * @return the type of line, one of the LINE_ constants
+     */
+    public int parseLine(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') end--;
+        line = bytes;
+        lineStart = start;
+        lineEnd = end;
+        seq = -1;
+        ttl = -1;
+        time = -1;
+
+        if (keepFullString) {
+            for (int i = start; i < end; i++) {
+                fullString.append((char) (bytes[i] & 0xFF));
+            }
+            fullString.append('\n');
+        }
+
+        lineType = classifyLine();
+        return lineType;
+    }
+
+    private int classifyLine() {
+        int seqIndex = indexOf(line, lineStart, lineEnd, SEQ);
+        if (seqIndex != -1) {
+            seq = parseInt(seqIndex + SEQ.length);
+
+            int index = indexOf(line, seqIndex, lineEnd, TTL);
+            if (index != -1) ttl = parseInt(index + TTL.length);
+
+            // time=0.251 ms, or time<1 ms when too quick to measure
+            index = indexOf(line, seqIndex, lineEnd, TIME);
+            if (index != -1 && index + TIME.length < lineEnd) {
+                byte next = line[index + TIME.length];
+                if (next == '=' || next == '<') time = parseDecimal(index + TIME.length + 1);
+            }
+            return time >= 0 && seq >= 0 ? LINE_REPLY : LINE_NO_REPLY;
+        }
+
+        if (startsWith(NO_ANSWER)) return LINE_NO_REPLY;
+
+        int index = indexOf(line, lineStart, lineEnd, TRANSMITTED);
+        if (index != -1) {
+            transmitted = parseInt(lineStart);
+            received = parseInt(index + TRANSMITTED.length);
+
+            index = indexOf(line, index, lineEnd, PACKET_LOSS);
+            if (index != -1) {
+                int numberStart = index;
+                while (numberStart > lineStart && (isDigit(line[numberStart - 1]) || line[numberStart - 1] == '.')) {
+                    numberStart--;
+                }
+                packetLoss = parseDecimal(numberStart);
+            }
+            return LINE_SUMMARY;
+        }
+
+        index = indexOf(line, lineStart, lineEnd, RTT);
+        if (index != -1) {
+            index = indexOf(line, index, lineEnd, EQUALS);
+            if (index == -1) return LINE_OTHER;
+            int numbersStart = index + EQUALS.length;
+            minTime = parseDecimal(numbersStart);
+            avgTime = nextDecimal();
+            maxTime = nextDecimal();
+            mdevTime = nextDecimal();
+
+            // Kept whatever keepFullString is, it's one short string per ping
+            int numbersEnd = numbersStart;
+            while (numbersEnd < lineEnd && line[numbersEnd] != ' ') numbersEnd++;
+            rttText = getText(numbersStart, numbersEnd);
+            return LINE_RTT;
+        }
+
+        if (indexOf(line, lineStart, lineEnd, UNKNOWN_HOST) != -1
+                || indexOf(line, lineStart, lineEnd, BAD_ADDRESS) != -1
+                || indexOf(line, lineStart, lineEnd, NOT_KNOWN) != -1) {
+            unknownHost = true;
+            return LINE_UNKNOWN_HOST;
+        }
+        return LINE_OTHER;
+    }
+
+    public int getLineType() {
+        return lineType;
+    }
+
+    /**
+     * @return the icmp_seq of the last line, or -1 if it had none
+     */
+    public int getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return the ttl of the last line, or -1 if it had none
+     */
+    public int getTimeToLive() {
+        return ttl;
+    }
+
+    /**
+     * @return the round trip time in milliseconds of the last line, or -1 if it had none
+     */
+    public float getTime() {
+        return time;
+    }
+
+    public int getTransmitted() {
+        return transmitted;
+    }
+
+    public int getReceived() {
+        return received;
+    }
+
+    public float getPacketLoss() {
+        return packetLoss;
+    }
+
+    public float getMinTime() {
+        return minTime;
+    }
+
+    public float getAvgTime() {
+        return avgTime;
+    }
+
+    public float getMaxTime() {
+        return maxTime;
+    }
+
+    public float getMdevTime() {
+        return mdevTime;
+    }
+
+    /**
+     * @return the text of the last line, this creates a string so is best kept for errors
+     */
+    public String getLine() {
+        return line == null ? null : getText(lineStart, lineEnd);
+    }
+
+    /**
+     * @return the text of the last line after its icmp_seq, e.g. Destination Host Unreachable, or
+     * null if there is none
+     */
+    public String getReason() {
+        int index = indexOf(line, lineStart, lineEnd, SEQ);
+        if (index == -1) return null;
+        int start = index + SEQ.length;
+        while (start < lineEnd && isDigit(line[start])) start++;
+        while (start < lineEnd && line[start] == ' ') start++;
+        return start < lineEnd ? getText(start, lineEnd) : null;
+    }
+
+    /**
+     * @return every line read so far, or null if the text is not being kept
+     */
+    public String getFullString() {
+        return keepFullString ? fullString.toString() : null;
+    }
+
+    private String getText(int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (line[i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private boolean startsWith(byte[] token) {
+        return lineEnd - lineStart >= token.length && indexOf(line, lineStart, lineStart + token.length, token) == lineStart;
+    }
+
+    private int parseInt(int start) {
+        int value = 0;
+        int i = start;
+        while (i < lineEnd && isDigit(line[i])) {
+            value = value * 10 + (line[i] - '0');
+            i++;
+        }
+        return i == start ? -1 : value;
+    }
+
+    /**
+     * @return the number at the start index, or -1 if there is none
+     */
+    private float parseDecimal(int start) {
+        long whole = 0;
+        int i = start;
+        while (i < lineEnd && isDigit(line[i])) {
+            whole = whole * 10 + (line[i] - '0');
+            i++;
+        }
+        boolean found = i > start;
+        long fraction = 0;
+        long scale = 1;
+        if (i < lineEnd && line[i] == '.') {
+            i++;
+            while (i < lineEnd && isDigit(line[i])) {
+                if (scale < 1000000000L) {
+                    fraction = fraction * 10 + (line[i] - '0');
+                    scale *= 10;
+                }
+                found = true;
+                i++;
+            }
+        }
+        position = i;
+        return found ? whole + (float) fraction / scale : -1;
+    }
+
+    /**
+     * @return the next number in a list separated by '/', or -1 if there is none
+     */
+    private float nextDecimal() {
+        if (position >= lineEnd || line[position] != '/') return -1;
+        return parseDecimal(position + 1);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte[] token) {
+        outer:
+        for (int i = start; i <= end - token.length; i++) {
+            for (int j = 0; j < token.length; j++) {
+                if (bytes[i + j] != token[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+}
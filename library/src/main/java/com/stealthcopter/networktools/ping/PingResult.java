@@ -9,6 +9,8 @@ public class PingResult {
     public float timeTaken;
     public String fullString;
     public String result;
+    public int sequenceNumber = -1;
+    public int timeToLive = -1;
 
     public PingResult(InetAddress ia) {
         this.ia = ia;
@@ -26,6 +28,20 @@ public class PingResult {
         return timeTaken;
     }
 
+    /**
+     * @return the icmp_seq of the reply, or -1 if not known
+     */
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @return the ttl of the reply, or -1 if not known
+     */
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
     public String getError() {
         return error;
     }
@@ -43,6 +59,8 @@ public class PingResult {
                 ", timeTaken=" + timeTaken +
                 ", fullString='" + fullString + '\'' +
                 ", result='" + result + '\'' +
+                ", sequenceNumber=" + sequenceNumber +
+                ", timeToLive=" + timeToLive +
                 '}';
     }
 }
@@ -1,5 +1,10 @@
 package com.stealthcopter.networktools.ping;
 
+import com.stealthcopter.networktools.IPTools;
+import com.stealthcopter.networktools.Ping;
+import com.stealthcopter.networktools.concurrency.Cancellation;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 
@@ -19,20 +24,98 @@ public class PingTools {
      * @return - the ping results
      */
     public static PingResult doPing(InetAddress ia, PingOptions pingOptions) {
+        return doPing(ia, pingOptions, null);
+    }
+
+    /**
+     * Perform a ping using the native ping tool and fall back to using java echo request
+     * on failure.
+     *
+     * @param ia            - address to ping
+     * @param pingOptions   - ping command options
+     * @param cancellation  - if cancelled the native ping is killed and no fallback is tried, may be null
+     * @return - the ping results
+     */
+    public static PingResult doPing(InetAddress ia, PingOptions pingOptions, Cancellation cancellation) {
+        return doPing(ia, pingOptions, cancellation, Ping.PING_HYBRID);
+    }
+
+    /**
+     * Perform a ping with the given method. Which backends work is found once by
+     * {@link PingCapabilities}, so a ping binary that isn't there is never tried. Where the java
+     * ping doesn't work either PING_HYBRID falls back to a TCP ping instead.
+     *
+     * @param ia            - address to ping
+     * @param pingOptions   - ping command options
+     * @param cancellation  - if cancelled the native ping is killed and no fallback is tried, may be null
+     * @param method        - Ping.PING_JAVA, PING_NATIVE, PING_HYBRID, PING_TCP or PING_UDP
+     * @return - the ping results
+     */
+    public static PingResult doPing(InetAddress ia, PingOptions pingOptions, Cancellation cancellation, int method) {
+        if (method == Ping.PING_JAVA) {
+            if (!PingCapabilities.get().hasJavaPing()) {
+                PingResult pingResult = new PingResult(ia);
+                pingResult.isReachable = false;
+                pingResult.error = "Java ping not available";
+                return pingResult;
+            }
+            return PingTools.doJavaPing(ia, pingOptions);
+        }
+        if (method == Ping.PING_TCP) return PingTools.doSocketPing(ia, pingOptions, SocketPing.PROTOCOL_TCP, cancellation);
+        if (method == Ping.PING_UDP) return PingTools.doSocketPing(ia, pingOptions, SocketPing.PROTOCOL_UDP, cancellation);
+
+        if (!hasNativePing(ia)) {
+            if (method == Ping.PING_NATIVE) {
+                PingResult pingResult = new PingResult(ia);
+                pingResult.isReachable = false;
+                pingResult.error = "Native ping not available";
+                return pingResult;
+            }
+            // Straight to the fallback
+            return doFallbackPing(ia, pingOptions, cancellation);
+        }
 
-        // Try native ping first
         try {
-            return PingTools.doNativePing(ia, pingOptions);
+            return PingTools.doNativePing(ia, pingOptions, cancellation);
         } catch (InterruptedException e) {
             PingResult pingResult = new PingResult(ia);
             pingResult.isReachable = false;
             pingResult.error = "Interrupted";
             return pingResult;
-        } catch (Exception ignored) {
+        } catch (Exception e) {
+            if (method == Ping.PING_NATIVE) {
+                PingResult pingResult = new PingResult(ia);
+                pingResult.isReachable = false;
+                pingResult.error = "IOException: " + e.getMessage();
+                return pingResult;
+            }
         }
 
-        // Fallback to java based ping
-        return PingTools.doJavaPing(ia, pingOptions);
+        if (cancellation != null && cancellation.isCancelled()) {
+            PingResult pingResult = new PingResult(ia);
+            pingResult.isReachable = false;
+            pingResult.error = "Cancelled";
+            return pingResult;
+        }
+
+        return doFallbackPing(ia, pingOptions, cancellation);
+    }
+
+    /**
+     * Ping with java if it works on this device, otherwise with TCP
+     */
+    private static PingResult doFallbackPing(InetAddress ia, PingOptions pingOptions, Cancellation cancellation) {
+        if (PingCapabilities.get().hasJavaPing()) return PingTools.doJavaPing(ia, pingOptions);
+        return PingTools.doSocketPing(ia, pingOptions, SocketPing.PROTOCOL_TCP, cancellation);
+    }
+
+    /**
+     * @param ia - address to ping, may be null
+     * @return true if the native ping binary can be used for the address
+     */
+    public static boolean hasNativePing(InetAddress ia) {
+        String address = ia == null ? null : ia.getHostAddress();
+        return PingCapabilities.get().hasNativePing(address != null && IPTools.isIPv6Address(address));
     }
 
 
@@ -49,6 +132,61 @@ public class PingTools {
         return PingNative.ping(ia, pingOptions);
     }
 
+    /**
+     * Perform a ping using the native ping binary
+     *
+     * @param ia            - address to ping
+     * @param pingOptions   - ping command options
+     * @param cancellation  - if cancelled the ping process is destroyed straight away, may be null
+     * @return - the ping results
+     * @throws IOException - IO error running ping command
+     * @throws InterruptedException - thread interrupt
+     */
+    public static PingResult doNativePing(InetAddress ia, PingOptions pingOptions, Cancellation cancellation) throws IOException, InterruptedException {
+        return PingNative.ping(ia, pingOptions, cancellation);
+    }
+
+    /**
+     * Perform a ping by timing a TCP connection or UDP round trip to a port, see {@link SocketPing}
+     *
+     * @param ia            - address to ping
+     * @param pingOptions   - ping options, the port is taken from these
+     * @param protocol      - SocketPing.PROTOCOL_TCP or PROTOCOL_UDP
+     * @param cancellation  - if cancelled the ping is stopped straight away, may be null
+     * @return - the ping results
+     */
+    public static PingResult doSocketPing(InetAddress ia, PingOptions pingOptions, int protocol, Cancellation cancellation) {
+        PingResult pingResult = new PingResult(ia);
+
+        if (ia == null) {
+            pingResult.isReachable = false;
+            return pingResult;
+        }
+
+        // Like a ping process this isn't counted against a descriptor budget, callers that share
+        // one such as SubnetDevices reserve the descriptor before pinging
+        final SocketPing socketPing = new SocketPing(protocol, pingOptions.getPort(), pingOptions.getTimeoutMillis()).setDescriptorBudget(null);
+        Closeable closeable = new Closeable() {
+            @Override
+            public void close() {
+                socketPing.cancel();
+            }
+        };
+        if (cancellation != null && !cancellation.register(closeable)) {
+            pingResult.error = "Cancelled";
+            return pingResult;
+        }
+        try {
+            return socketPing.ping(ia);
+        } catch (IOException e) {
+            pingResult.isReachable = false;
+            pingResult.error = "IOException: " + e.getMessage();
+            return pingResult;
+        } finally {
+            if (cancellation != null) cancellation.unregister(closeable);
+        }
+    }
+
     /**
      * Tries to reach this {@code InetAddress}. This method first tries to use
      * ICMP <i>(ICMP ECHO REQUEST)</i>, falling back to a TCP connection
@@ -0,0 +1,373 @@
+package com.stealthcopter.networktools.ping;
+
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+import com.stealthcopter.networktools.portscanning.ProbeSockets;
+import com.stealthcopter.networktools.portscanning.UDPPayloads;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Measures whether hosts are up, and their round trip time, without ICMP, so it works without
+ * the privileges or ping binary that ICMP needs, e.g. in a container.
+ *
+ * With TCP a connection is started to a port. Whether it is accepted or refused the host is up,
+ * and the time to the answer is the round trip time. Probes are closed with a reset so they leave
+ * nothing in TIME_WAIT. With UDP a datagram is sent to a port, and a reply or an ICMP port
+ * unreachable means the host is up. No answer is reported as timed out, so pick a port that is
+ * closed (the default, as used by traceroute) or one whose service answers, see {@link UDPPayloads}.
+ *
+ * Probes are non-blocking channels driven from a single Selector on the calling thread and timed
+ * with System.nanoTime(), so many hosts can be pinged at once. Unlike ICMP there is no TTL.
+ */
+public class SocketPing {
+
+    public static final int PROTOCOL_TCP = 0;
+    public static final int PROTOCOL_UDP = 1;
+
+    public static final int DEFAULT_TCP_PORT = 80;
+    // The first traceroute port, unlikely to have anything listening
+    public static final int DEFAULT_UDP_PORT = 33434;
+
+    public interface PingResultListener {
+        void onResult(PingResult pingResult);
+    }
+
+    // How long to wait before trying again when out of file descriptors
+    private static final int IDLE_WAIT_MILLIS = 10;
+    private static final int MAX_REPLY_BYTES = 1500;
+    // Channels won't send an empty datagram, so probe with a single zero byte
+    private static final byte[] EMPTY_PROBE = new byte[1];
+
+    private final int protocol;
+    private final int port;
+    private final int timeoutMillis;
+    private int maxInFlight = 256;
+    private UDPPayloads payloads = UDPPayloads.defaults();
+    private DescriptorBudget descriptorBudget = DescriptorBudget.getDefault();
+    private final ProbeSockets sockets = new ProbeSockets().setAbortiveClose(true);
+    private volatile boolean cancelled = false;
+    private volatile Selector selector;
+
+    /**
+     * @param protocol      - PROTOCOL_TCP or PROTOCOL_UDP
+     * @param port          - port to probe, or 0 for the protocol's default
+     * @param timeoutMillis - time to wait for each host to answer
+     */
+    public SocketPing(int protocol, int port, int timeoutMillis) {
+        if (protocol != PROTOCOL_TCP && protocol != PROTOCOL_UDP) throw new IllegalArgumentException("Invalid protocol " + protocol);
+        if (port < 0 || port > 65535) throw new IllegalArgumentException("Invalid port " + port);
+        if (timeoutMillis < 1) throw new IllegalArgumentException("Timeout cannot be less than 1");
+        this.protocol = protocol;
+        this.port = port != 0 ? port : (protocol == PROTOCOL_TCP ? DEFAULT_TCP_PORT : DEFAULT_UDP_PORT);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param maxInFlight - maximum number of hosts being pinged at once
+     * @return this object to allow chaining
+     */
+    public SocketPing setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("Cannot have less than 1 ping in flight");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param payloads - the datagram to send to the port with UDP, or null to always send a single zero byte
+     * @return this object to allow chaining
+     */
+    public SocketPing setPayloads(UDPPayloads payloads) {
+        this.payloads = payloads;
+        return this;
+    }
+
+    /**
+     * @param descriptorBudget - file descriptors shared with other scans, a ping is only started
+     *                         while one is free and fails if none is within its timeout, or
+     *                         null for no limit
+     * @return this object to allow chaining
+     */
+    public SocketPing setDescriptorBudget(DescriptorBudget descriptorBudget) {
+        this.descriptorBudget = descriptorBudget;
+        return this;
+    }
+
+    /**
+     * Stop pinging, any hosts not yet answered will not be reported
+     */
+    public void cancel() {
+        cancelled = true;
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    /**
+     * Ping a single host, blocking until it answers or times out
+     *
+     * @param ia - address to ping
+     * @return the ping result
+     * @throws IOException - if the selector could not be opened
+     */
+    public PingResult ping(InetAddress ia) throws IOException {
+        final PingResult[] result = new PingResult[1];
+        ping(Collections.singletonList(ia), new PingResultListener() {
+            @Override
+            public void onResult(PingResult pingResult) {
+                result[0] = pingResult;
+            }
+        });
+        if (result[0] == null) {
+            result[0] = new PingResult(ia);
+            result[0].error = "Cancelled";
+        }
+        return result[0];
+    }
+
+    /**
+     * Ping many hosts at once, this blocks until all have answered or timed out or it is
+     * cancelled. Results are fired on the calling thread as they arrive.
+     *
+     * @param addresses - addresses to ping
+     * @param listener  - listener to fire the result for each address to
+     * @throws IOException - if the selector could not be opened
+     */
+    public void ping(Iterable<InetAddress> addresses, PingResultListener listener) throws IOException {
+        selector = Selector.open();
+
+        PriorityQueue<Probe> deadlines = new PriorityQueue<>();
+        Iterator<InetAddress> remaining = addresses.iterator();
+        ByteBuffer replyBuffer = protocol == PROTOCOL_UDP ? ByteBuffer.allocate(MAX_REPLY_BYTES) : null;
+        long timeoutNanos = timeoutMillis * 1000000L;
+        int inFlight = 0;
+        // The next address to ping, held while waiting for a file descriptor to start it with
+        InetAddress waiting = null;
+        long waitingSinceNanos = 0;
+
+        try {
+            while (!cancelled && (waiting != null || remaining.hasNext() || inFlight > 0)) {
+
+                // Top up the number of pings in flight
+                while (!cancelled && inFlight < maxInFlight && (waiting != null || remaining.hasNext())) {
+                    if (waiting == null) {
+                        waiting = remaining.next();
+                        waitingSinceNanos = System.nanoTime();
+                    }
+                    InetAddress ia = waiting;
+
+                    if (descriptorBudget != null && !descriptorBudget.tryAcquire()) {
+                        if (System.nanoTime() - waitingSinceNanos < timeoutNanos) break;
+                        // Waited as long as the host would have had to answer
+                        waiting = null;
+                        listener.onResult(outOfDescriptors(ia));
+                        continue;
+                    }
+
+                    Probe probe = new Probe(ia);
+                    try {
+                        if (start(probe)) {
+                            // Answered straight away, e.g. a connection to this device
+                            waiting = null;
+                            finish(probe);
+                            listener.onResult(reachable(probe, System.nanoTime()));
+                            continue;
+                        }
+                        waiting = null;
+                        probe.deadline = probe.startNanos + timeoutNanos;
+                        deadlines.add(probe);
+                        inFlight++;
+                    } catch (IOException e) {
+                        long now = System.nanoTime();
+                        finish(probe);
+                        if (DescriptorBudget.isOutOfDescriptors(e)) {
+                            // Says nothing about the host, so try it again once something is
+                            // closed, until it has waited as long as it would for an answer
+                            if (now - waitingSinceNanos < timeoutNanos) break;
+                            waiting = null;
+                            listener.onResult(outOfDescriptors(ia));
+                            continue;
+                        }
+                        waiting = null;
+                        listener.onResult(getResult(probe, e, now));
+                    }
+                }
+
+                if (inFlight == 0) {
+                    // Nothing in flight but addresses remain, so we are out of descriptors
+                    if (waiting != null || remaining.hasNext()) selector.select(IDLE_WAIT_MILLIS);
+                    continue;
+                }
+
+                // Drop finished probes from the head so the wait is calculated from a live deadline
+                while (deadlines.peek().done) {
+                    deadlines.poll();
+                }
+
+                long waitNanos = deadlines.peek().deadline - System.nanoTime();
+                selector.select(Math.max((waitNanos + 999999L) / 1000000L, 1));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Probe probe = (Probe) key.attachment();
+                    PingResult pingResult;
+                    try {
+                        if (!answered(probe, replyBuffer)) continue;
+                        pingResult = reachable(probe, System.nanoTime());
+                    } catch (IOException e) {
+                        pingResult = getResult(probe, e, System.nanoTime());
+                    }
+                    finish(probe);
+                    inFlight--;
+                    listener.onResult(pingResult);
+                }
+
+                // Anything past its deadline had no answer
+                long now = System.nanoTime();
+                while (!deadlines.isEmpty() && deadlines.peek().deadline - now <= 0) {
+                    Probe probe = deadlines.poll();
+                    if (probe.done) continue;
+                    finish(probe);
+                    inFlight--;
+                    PingResult pingResult = new PingResult(probe.ia);
+                    pingResult.isReachable = false;
+                    pingResult.error = "Timed Out";
+                    listener.onResult(pingResult);
+                }
+            }
+        } finally {
+            for (Probe probe : deadlines) {
+                if (!probe.done) finish(probe);
+            }
+            selector.close();
+            selector = null;
+        }
+    }
+
+    /**
+     * Open a probe's channel and send it to the host
+     *
+     * @return true if the host answered straight away
+     * @throws IOException - if the host could not be probed, or refused straight away
+     */
+    private boolean start(Probe probe) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(probe.ia, port);
+        if (protocol == PROTOCOL_TCP) {
+            SocketChannel channel = sockets.openChannel();
+            probe.channel = channel;
+            channel.configureBlocking(false);
+            probe.startNanos = System.nanoTime();
+            if (channel.connect(address)) return true;
+            channel.register(selector, SelectionKey.OP_CONNECT, probe);
+        } else {
+            DatagramChannel channel = DatagramChannel.open();
+            probe.channel = channel;
+            channel.configureBlocking(false);
+            // Connected so the ICMP port unreachable is reported to us
+            channel.connect(address);
+            byte[] payload = payloads != null ? payloads.get(port) : null;
+            probe.startNanos = System.nanoTime();
+            channel.write(ByteBuffer.wrap(payload != null ? payload : EMPTY_PROBE));
+            channel.register(selector, SelectionKey.OP_READ, probe);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the probe's host has answered
+     * @throws IOException - if the host answered with an error, e.g. refused the connection
+     */
+    private boolean answered(Probe probe, ByteBuffer replyBuffer) throws IOException {
+        if (protocol == PROTOCOL_TCP) {
+            return ((SocketChannel) probe.channel).finishConnect();
+        }
+        replyBuffer.clear();
+        return ((DatagramChannel) probe.channel).receive(replyBuffer) != null;
+    }
+
+    private static PingResult reachable(Probe probe, long nowNanos) {
+        PingResult pingResult = new PingResult(probe.ia);
+        pingResult.isReachable = true;
+        pingResult.timeTaken = (nowNanos - probe.startNanos) / 1e6f;
+        return pingResult;
+    }
+
+    private static PingResult outOfDescriptors(InetAddress ia) {
+        PingResult pingResult = new PingResult(ia);
+        pingResult.isReachable = false;
+        pingResult.error = "Out of file descriptors";
+        return pingResult;
+    }
+
+    /**
+     * A refused connection or closed UDP port still means the host is up, anything else means it
+     * could not be reached
+     */
+    private static PingResult getResult(Probe probe, IOException e, long nowNanos) {
+        String message = e.getMessage();
+        if (e instanceof PortUnreachableException || (message != null && message.contains("refused"))) {
+            return reachable(probe, nowNanos);
+        }
+        PingResult pingResult = new PingResult(probe.ia);
+        pingResult.isReachable = false;
+        if (e instanceof NoRouteToHostException) {
+            pingResult.error = "Host Unreachable";
+        } else {
+            pingResult.error = "IOException: " + message;
+        }
+        return pingResult;
+    }
+
+    /**
+     * Close a probe's channel, if it was opened, and give back its file descriptor
+     */
+    private void finish(Probe probe) {
+        probe.done = true;
+        if (probe.channel instanceof SocketChannel) {
+            sockets.close((SocketChannel) probe.channel);
+        } else if (probe.channel != null) {
+            try {
+                probe.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (descriptorBudget != null) descriptorBudget.release();
+    }
+
+    private static class Probe implements Comparable<Probe> {
+        final InetAddress ia;
+        SelectableChannel channel;
+        long startNanos;
+        long deadline;
+        boolean done = false;
+
+        Probe(InetAddress ia) {
+            this.ia = ia;
+        }
+
+        @Override
+        public int compareTo(Probe other) {
+            long diff = deadline - other.deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.stealthcopter.networktools.portscanning;
+
+/**
+ * Estimates a connect timeout for a single host from measured round trip times.
+ *
+ * Uses the same smoothed RTT and RTT variance as TCP's retransmission timeout (RFC 6298),
+ * RTO = SRTT + 4 * RTTVAR. Only connects that got an answer (open or refused) should be sampled,
+ * a timeout tells us nothing about the round trip time. Until the first sample arrives the
+ * initial timeout is used.
+ */
+public class AdaptiveTimeout {
+
+    public static final int MIN_TIMEOUT_MILLIS = 100;
+    public static final int MAX_TIMEOUT_MILLIS = 10000;
+
+    private static final long CLOCK_GRANULARITY_NANOS = 1000000L;
+
+    private final long initialTimeoutNanos;
+    private final long minTimeoutNanos;
+    private final long maxTimeoutNanos;
+
+    private long smoothedRttNanos = -1;
+    private long rttVarianceNanos = 0;
+    private long timeoutNanos;
+
+    /**
+     * @param initialTimeoutMillis - timeout to use until an RTT has been measured
+     */
+    public AdaptiveTimeout(int initialTimeoutMillis) {
+        if (initialTimeoutMillis < 0) throw new IllegalArgumentException("Timeout cannot be less than 0");
+        this.initialTimeoutNanos = initialTimeoutMillis * 1000000L;
+        // Never go below a timeout the caller asked for explicitly, e.g. the very short localhost one
+        this.minTimeoutNanos = Math.min(MIN_TIMEOUT_MILLIS, initialTimeoutMillis) * 1000000L;
+        this.maxTimeoutNanos = Math.max(MAX_TIMEOUT_MILLIS, initialTimeoutMillis) * 1000000L;
+        this.timeoutNanos = initialTimeoutNanos;
+    }
+
+    /**
+     * Add a measured round trip time
+     *
+     * @param rttNanos - time from starting the connect to getting an answer
+     */
+    public synchronized void addSample(long rttNanos) {
+        if (rttNanos < 0) return;
+
+        if (smoothedRttNanos == -1) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2;
+        } else {
+            rttVarianceNanos = (3 * rttVarianceNanos + Math.abs(smoothedRttNanos - rttNanos)) / 4;
+            smoothedRttNanos = (7 * smoothedRttNanos + rttNanos) / 8;
+        }
+
+        long rto = smoothedRttNanos + Math.max(CLOCK_GRANULARITY_NANOS, 4 * rttVarianceNanos);
+        timeoutNanos = Math.min(Math.max(rto, minTimeoutNanos), maxTimeoutNanos);
+    }
+
+    /**
+     * @return the timeout to use for the next connect
+     */
+    public synchronized long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    public int getTimeoutMillis() {
+        return (int) ((getTimeoutNanos() + 999999L) / 1000000L);
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if nothing has been measured
+     */
+    public synchronized float getSmoothedRttMillis() {
+        return smoothedRttNanos == -1 ? -1 : smoothedRttNanos / 1e6f;
+    }
+
+    public synchronized boolean hasSamples() {
+        return smoothedRttNanos != -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveTimeout{" +
+                "initialTimeoutNanos=" + initialTimeoutNanos +
+                ", smoothedRttNanos=" + smoothedRttNanos +
+                ", rttVarianceNanos=" + rttVarianceNanos +
+                ", timeoutNanos=" + timeoutNanos +
+                '}';
+    }
+}
@@ -0,0 +1,372 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Works out what is listening on an open port using the connection the scan already made.
+ *
+ * Servers such as SSH, SMTP and FTP send a greeting as soon as we connect, so we wait for that
+ * first. Ports where the client is expected to speak first are sent a minimal probe instead, an
+ * HTTP HEAD request or a TLS ClientHello, and anything that stays silent is sent the HTTP probe.
+ */
+public class BannerGrabber {
+
+    private static final int MAX_BANNER_BYTES = 512;
+
+    private static final int[] HTTP_PORTS = {80, 81, 591, 8000, 8008, 8080, 8081, 8888};
+    private static final int[] TLS_PORTS = {443, 465, 636, 853, 990, 993, 995, 8443};
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] HTTP_PROBE = "HEAD / HTTP/1.0\r\n\r\n".getBytes(ASCII);
+    private static final byte[] TLS_PROBE = buildClientHello();
+
+    private static final byte TLS_HANDSHAKE = 0x16;
+    private static final byte TLS_ALERT = 0x15;
+    private static final byte TLS_MAJOR_VERSION = 0x03;
+
+    // This class is not to be instantiated
+    private BannerGrabber() {
+    }
+
+    /**
+     * Identify the service on a connected socket, the socket is left open for the caller to close
+     *
+     * @param ia            - address the socket is connected to
+     * @param portNo        - port the socket is connected to
+     * @param socket        - connected socket
+     * @param timeoutMillis - total time to spend waiting for the server
+     * @return - the service found, never null
+     */
+    public static ServiceInfo grab(InetAddress ia, int portNo, Socket socket, int timeoutMillis) {
+        try {
+            return grab(ia, portNo, new SocketConnection(socket), timeoutMillis);
+        } catch (IOException e) {
+            return new ServiceInfo(ia, portNo, ServiceInfo.SERVICE_UNKNOWN, null);
+        }
+    }
+
+    /**
+     * Identify the service on a connected channel, the channel is left open for the caller to close
+     *
+     * @param ia            - address the channel is connected to
+     * @param portNo        - port the channel is connected to
+     * @param channel       - connected channel, it is switched to non-blocking mode
+     * @param timeoutMillis - total time to spend waiting for the server
+     * @return - the service found, never null
+     */
+    public static ServiceInfo grab(InetAddress ia, int portNo, SocketChannel channel, int timeoutMillis) {
+        try {
+            return grab(ia, portNo, new ChannelConnection(channel), timeoutMillis);
+        } catch (IOException e) {
+            return new ServiceInfo(ia, portNo, ServiceInfo.SERVICE_UNKNOWN, null);
+        }
+    }
+
+    private static ServiceInfo grab(InetAddress ia, int portNo, Connection connection, int timeoutMillis) {
+        byte[] buffer = new byte[MAX_BANNER_BYTES];
+        int length = 0;
+        try {
+            long startNanos = System.nanoTime();
+            long deadline = startNanos + timeoutMillis * 1000000L;
+            byte[] probe = probeFor(portNo);
+
+            if (probe == null) {
+                // Give servers that speak first half the time before prompting them
+                length = readBanner(connection, buffer, startNanos + timeoutMillis * 500000L);
+                if (length == 0) probe = HTTP_PROBE;
+            }
+
+            if (probe != null) {
+                try {
+                    connection.write(probe, deadline);
+                    length = readBanner(connection, buffer, deadline);
+                } catch (IOException e) {
+                    // Reset by the server, nothing more to learn
+                }
+            }
+        } finally {
+            connection.close();
+        }
+        return identify(ia, portNo, buffer, Math.max(length, 0));
+    }
+
+    /**
+     * Read until we have a full line, a binary reply, the buffer is full or the deadline passes
+     *
+     * @return - number of bytes read, or -1 if the server closed the connection without sending anything
+     */
+    private static int readBanner(Connection connection, byte[] buffer, long deadline) {
+        int length = 0;
+        while (length < buffer.length) {
+            int read;
+            try {
+                read = connection.read(buffer, length, deadline);
+            } catch (IOException e) {
+                break;
+            }
+            if (read == -1 && length == 0) return -1;
+            if (read <= 0) break;
+            length += read;
+
+            if (!isPrintable(buffer[0]) || indexOf(buffer, length, (byte) '\n') != -1) break;
+        }
+        return length;
+    }
+
+    /**
+     * Work out the service from what the server sent
+     *
+     * @param ia     - address of the server
+     * @param portNo - port of the server
+     * @param data   - bytes received from the server
+     * @param length - number of bytes received
+     * @return - the service found, never null
+     */
+    static ServiceInfo identify(InetAddress ia, int portNo, byte[] data, int length) {
+        // A TLS record header, either a ServerHello or an alert rejecting our hello
+        if (length >= 3 && (data[0] == TLS_HANDSHAKE || data[0] == TLS_ALERT) && data[1] == TLS_MAJOR_VERSION) {
+            return new ServiceInfo(ia, portNo, ServiceInfo.SERVICE_TLS, null);
+        }
+
+        String banner = firstLine(data, length);
+        if (banner == null) {
+            return new ServiceInfo(ia, portNo, ServiceInfo.SERVICE_UNKNOWN, null);
+        }
+
+        String service = ServiceInfo.SERVICE_UNKNOWN;
+        if (banner.startsWith("SSH-")) {
+            service = ServiceInfo.SERVICE_SSH;
+        } else if (banner.startsWith("HTTP/")) {
+            service = ServiceInfo.SERVICE_HTTP;
+        } else if (banner.startsWith("RFB ")) {
+            service = ServiceInfo.SERVICE_VNC;
+        } else if (banner.startsWith("+OK")) {
+            service = ServiceInfo.SERVICE_POP3;
+        } else if (banner.startsWith("* OK")) {
+            service = ServiceInfo.SERVICE_IMAP;
+        } else if (banner.startsWith("220")) {
+            // FTP and SMTP both greet with 220, most say which they are
+            String upperBanner = banner.toUpperCase();
+            if (upperBanner.contains("FTP")) {
+                service = ServiceInfo.SERVICE_FTP;
+            } else if (upperBanner.contains("SMTP") || upperBanner.contains("MAIL")) {
+                service = ServiceInfo.SERVICE_SMTP;
+            } else if (portNo == 21) {
+                service = ServiceInfo.SERVICE_FTP;
+            } else if (portNo == 25 || portNo == 587) {
+                service = ServiceInfo.SERVICE_SMTP;
+            }
+        }
+        return new ServiceInfo(ia, portNo, service, banner);
+    }
+
+    private static byte[] probeFor(int portNo) {
+        for (int port : HTTP_PORTS) {
+            if (port == portNo) return HTTP_PROBE;
+        }
+        for (int port : TLS_PORTS) {
+            if (port == portNo) return TLS_PROBE;
+        }
+        return null;
+    }
+
+    /**
+     * @return the first line as text with anything unprintable replaced, or null if it isn't text
+     */
+    private static String firstLine(byte[] data, int length) {
+        if (length == 0 || !isPrintable(data[0])) return null;
+
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            byte b = data[i];
+            if (b == '\r' || b == '\n') break;
+            line.append(isPrintable(b) ? (char) b : '.');
+        }
+        String trimmed = line.toString().trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    private static boolean isPrintable(byte b) {
+        return (b >= 0x20 && b < 0x7f) || b == '\t';
+    }
+
+    private static int indexOf(byte[] data, int length, byte b) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A TLS 1.2 ClientHello offering common cipher suites, enough for a server to answer with
+     * a ServerHello or an alert either of which identifies it as TLS
+     */
+    private static byte[] buildClientHello() {
+        int[] cipherSuites = {0xc02f, 0xc030, 0xc02b, 0xc02c, 0xcca8, 0xcca9, 0x009c, 0x009d, 0x002f, 0x0035};
+        int[] groups = {0x001d, 0x0017, 0x0018};
+        int[] signatureAlgorithms = {0x0403, 0x0503, 0x0804, 0x0805, 0x0401, 0x0501, 0x0201};
+
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        writeShort(hello, 0x0303);
+        byte[] random = new byte[32];
+        new Random().nextBytes(random);
+        hello.write(random, 0, random.length);
+        // No session id
+        hello.write(0);
+        writeShortList(hello, cipherSuites);
+        // Null compression only
+        hello.write(1);
+        hello.write(0);
+
+        ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+        // supported_groups
+        writeShort(extensions, 0x000a);
+        writeShort(extensions, 2 + groups.length * 2);
+        writeShortList(extensions, groups);
+        // ec_point_formats, uncompressed
+        writeShort(extensions, 0x000b);
+        writeShort(extensions, 2);
+        extensions.write(1);
+        extensions.write(0);
+        // signature_algorithms
+        writeShort(extensions, 0x000d);
+        writeShort(extensions, 2 + signatureAlgorithms.length * 2);
+        writeShortList(extensions, signatureAlgorithms);
+
+        writeShort(hello, extensions.size());
+        hello.write(extensions.toByteArray(), 0, extensions.size());
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(TLS_HANDSHAKE);
+        writeShort(record, 0x0301);
+        writeShort(record, 4 + hello.size());
+        // ClientHello handshake message with a 24 bit length
+        record.write(0x01);
+        record.write(0);
+        writeShort(record, hello.size());
+        record.write(hello.toByteArray(), 0, hello.size());
+        return record.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    private static void writeShortList(ByteArrayOutputStream out, int[] values) {
+        writeShort(out, values.length * 2);
+        for (int value : values) {
+            writeShort(out, value);
+        }
+    }
+
+    private interface Connection {
+        /**
+         * @return the number of bytes read, 0 if nothing arrived before the deadline or -1 if the
+         * server closed the connection
+         */
+        int read(byte[] buffer, int offset, long deadline) throws IOException;
+
+        void write(byte[] data, long deadline) throws IOException;
+
+        void close();
+    }
+
+    private static class SocketConnection implements Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        SocketConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, long deadline) throws IOException {
+            long waitMillis = (deadline - System.nanoTime() + 999999L) / 1000000L;
+            if (waitMillis <= 0) return 0;
+            socket.setSoTimeout((int) waitMillis);
+            try {
+                return in.read(buffer, offset, buffer.length - offset);
+            } catch (SocketTimeoutException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] data, long deadline) throws IOException {
+            out.write(data);
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class ChannelConnection implements Connection {
+        private final SocketChannel channel;
+        private final Selector selector;
+
+        ChannelConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, long deadline) throws IOException {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, buffer.length - offset);
+            while (true) {
+                int read = channel.read(byteBuffer);
+                if (read != 0) return read;
+                if (!await(SelectionKey.OP_READ, deadline)) return 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] data, long deadline) throws IOException {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.write(byteBuffer) == 0 && !await(SelectionKey.OP_WRITE, deadline)) {
+                    throw new SocketTimeoutException("Timed out writing probe");
+                }
+            }
+        }
+
+        /**
+         * @return false if the deadline passed before the channel was ready
+         */
+        private boolean await(int ops, long deadline) throws IOException {
+            long waitMillis = (deadline - System.nanoTime() + 999999L) / 1000000L;
+            if (waitMillis <= 0) return false;
+            channel.register(selector, ops);
+            selector.select(waitMillis);
+            selector.selectedKeys().clear();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free version of {@link PortSet} for collecting results from many threads at once.
+ * <p>
+ * Ports are set with a compare and swap on the word holding them, so threads adding different
+ * ports never wait on each other. Take a {@link #snapshot()} to read the results.
+ */
+public class ConcurrentPortSet {
+
+    private static final int NO_WORDS = (PortSet.MAX_PORT + 1) / 64;
+
+    private final AtomicLongArray words = new AtomicLongArray(NO_WORDS);
+
+    /**
+     * Add a port to the set
+     *
+     * @param port - the port to add
+     * @return true if the port was not already in the set
+     */
+    public boolean add(int port) {
+        if (port < PortSet.MIN_PORT || port > PortSet.MAX_PORT) {
+            throw new IllegalArgumentException("Invalid port " + port);
+        }
+        int word = port >>> 6;
+        long mask = 1L << port;
+        while (true) {
+            long current = words.get(word);
+            if ((current & mask) != 0) return false;
+            if (words.compareAndSet(word, current, current | mask)) return true;
+        }
+    }
+
+    /**
+     * @param port - port to check
+     * @return true if the port is in the set
+     */
+    public boolean contains(int port) {
+        if (port < PortSet.MIN_PORT || port > PortSet.MAX_PORT) return false;
+        return (words.get(port >>> 6) & (1L << port)) != 0;
+    }
+
+    /**
+     * Add every port in another set
+     *
+     * @param other - the ports to add
+     */
+    public void addAll(PortSet other) {
+        int port = other.nextPort(PortSet.MIN_PORT);
+        while (port != -1) {
+            add(port);
+            port = other.nextPort(port + 1);
+        }
+    }
+
+    /**
+     * Empty the set, this should not be called while other threads are adding ports
+     */
+    public void clear() {
+        for (int i = 0; i < NO_WORDS; i++) {
+            words.set(i, 0);
+        }
+    }
+
+    /**
+     * @return a copy of the ports currently in the set
+     */
+    public PortSet snapshot() {
+        PortSet portSet = new PortSet();
+        for (int i = 0; i < NO_WORDS; i++) {
+            long bits = words.get(i);
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                portSet.add((i << 6) + bit);
+                bits &= bits - 1;
+            }
+        }
+        return portSet;
+    }
+}
@@ -0,0 +1,69 @@
+package com.stealthcopter.networktools.portscanning;
+
+/**
+ * What to do with a host once a run of its ports in a row have all come back filtered.
+ *
+ * A firewalled host drops every probe, so each port costs a full timeout without telling us
+ * anything. After maxConsecutiveFiltered filtered ports in a row the host is either abandoned or
+ * only every n-th of its remaining ports is scanned. Any port that answers, open or closed, resets
+ * the count and a sampled host goes back to being scanned in full from where it had got to.
+ *
+ * Only {@link PortResult#STATE_FILTERED} counts, UDP ports that stay silent are normal.
+ */
+public class FilteredHostPolicy {
+
+    public static final int ACTION_ABANDON = 0;
+    public static final int ACTION_SAMPLE = 1;
+
+    private final int maxConsecutiveFiltered;
+    private final int action;
+    private final int sampleEvery;
+
+    private FilteredHostPolicy(int maxConsecutiveFiltered, int action, int sampleEvery) {
+        if (maxConsecutiveFiltered < 1) throw new IllegalArgumentException("Cannot stop after less than 1 filtered port");
+        if (sampleEvery < 1) throw new IllegalArgumentException("Cannot sample less than every port");
+        this.maxConsecutiveFiltered = maxConsecutiveFiltered;
+        this.action = action;
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * @param maxConsecutiveFiltered - number of filtered ports in a row after which the rest of
+     *                               the host's ports are not scanned
+     * @return the policy
+     */
+    public static FilteredHostPolicy abandonAfter(int maxConsecutiveFiltered) {
+        return new FilteredHostPolicy(maxConsecutiveFiltered, ACTION_ABANDON, 1);
+    }
+
+    /**
+     * @param maxConsecutiveFiltered - number of filtered ports in a row after which the host is
+     *                               only sampled
+     * @param sampleEvery            - scan one in every this many of the host's remaining ports
+     * @return the policy
+     */
+    public static FilteredHostPolicy sampleAfter(int maxConsecutiveFiltered, int sampleEvery) {
+        return new FilteredHostPolicy(maxConsecutiveFiltered, ACTION_SAMPLE, sampleEvery);
+    }
+
+    public int getMaxConsecutiveFiltered() {
+        return maxConsecutiveFiltered;
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    @Override
+    public String toString() {
+        return "FilteredHostPolicy{" +
+                "maxConsecutiveFiltered=" + maxConsecutiveFiltered +
+                ", action=" + action +
+                ", sampleEvery=" + sampleEvery +
+                '}';
+    }
+}
@@ -0,0 +1,372 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out (host, port) probes for scanning a set of ports on many hosts.
+ *
+ * Hosts are visited round robin so that probes are interleaved across targets rather than
+ * flooding one host at a time, and each host is limited to a maximum number of probes in flight.
+ * A probe is encoded as a long of (hostIndex << 16 | port) to avoid allocating per probe.
+ *
+ * Ports are scanned in ascending order, or in the order given, e.g. most likely to be open first
+ * when scanning a {@link PortProfile}. Alternatively {@link #setRandomOrder(long)} walks the whole
+ * host and port space in a pseudo-random order, see {@link RandomPermutation}. With a {@link FilteredHostPolicy} the results reported to
+ * {@link #report(int, int)} are used to give up on, or only sample, hosts that drop every probe.
+ *
+ * This class is thread safe, so it can be shared by a pool of blocking workers as well as a
+ * single selector thread.
+ */
+public class HostPortScheduler {
+
+    public static final long NONE = -1;
+
+    private final ArrayList<InetAddress> hosts;
+    private final PortSet ports;
+    private final int[] portOrder;
+    private final int maxInFlightPerHost;
+
+    // The next port for each host, or with a port order the index of the next port in it
+    private final int[] nextPort;
+    private final int[] inFlight;
+    // Ports already scanned on each host, e.g. when resuming from a checkpoint
+    private final PortSet[] skipped;
+    private FilteredHostPolicy filteredHostPolicy;
+    // Filtered ports in a row, how many ports to step on by and whether each host was given up on
+    private final int[] consecutiveFiltered;
+    private final int[] stride;
+    private final boolean[] abandoned;
+    // With a random order the (host, port) space is walked by position in a permutation instead
+    private RandomPermutation permutation;
+    private int[] randomPorts;
+    private int[] sinceSample;
+    private long position = 0;
+    private int hostCursor = 0;
+    private int hostsRemaining;
+    private int totalInFlight = 0;
+
+    /**
+     * @param hosts              - the hosts to scan
+     * @param ports              - the ports to scan on every host
+     * @param maxInFlightPerHost - maximum number of probes outstanding against any one host
+     */
+    public HostPortScheduler(List<InetAddress> hosts, PortSet ports, int maxInFlightPerHost) {
+        if (hosts == null || ports == null) throw new IllegalArgumentException("Hosts and ports cannot be null");
+        if (maxInFlightPerHost < 1) throw new IllegalArgumentException("Cannot have less than 1 probe in flight per host");
+
+        this.hosts = new ArrayList<>(hosts);
+        this.ports = new PortSet(ports);
+        this.portOrder = null;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.nextPort = new int[this.hosts.size()];
+        this.inFlight = new int[this.hosts.size()];
+        this.skipped = new PortSet[this.hosts.size()];
+        this.consecutiveFiltered = new int[this.hosts.size()];
+        this.stride = new int[this.hosts.size()];
+        this.abandoned = new boolean[this.hosts.size()];
+        start(this.ports.nextPort(0));
+    }
+
+    /**
+     * @param hosts              - the hosts to scan
+     * @param portOrder          - the ports to scan on every host, in the order to scan them
+     * @param maxInFlightPerHost - maximum number of probes outstanding against any one host
+     */
+    public HostPortScheduler(List<InetAddress> hosts, int[] portOrder, int maxInFlightPerHost) {
+        if (hosts == null || portOrder == null) throw new IllegalArgumentException("Hosts and ports cannot be null");
+        if (maxInFlightPerHost < 1) throw new IllegalArgumentException("Cannot have less than 1 probe in flight per host");
+
+        this.hosts = new ArrayList<>(hosts);
+        this.ports = null;
+        this.portOrder = portOrder.clone();
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.nextPort = new int[this.hosts.size()];
+        this.inFlight = new int[this.hosts.size()];
+        this.skipped = new PortSet[this.hosts.size()];
+        this.consecutiveFiltered = new int[this.hosts.size()];
+        this.stride = new int[this.hosts.size()];
+        this.abandoned = new boolean[this.hosts.size()];
+        start(this.portOrder.length == 0 ? -1 : 0);
+    }
+
+    private void start(int first) {
+        for (int i = 0; i < nextPort.length; i++) {
+            nextPort[i] = first;
+            stride[i] = 1;
+        }
+        hostsRemaining = first == -1 ? 0 : nextPort.length;
+    }
+
+    /**
+     * @return the cursor after this one, or -1 if there are no more ports
+     */
+    private int advance(int cursor) {
+        if (portOrder == null) return ports.nextPort(cursor + 1);
+        return cursor + 1 < portOrder.length ? cursor + 1 : -1;
+    }
+
+    /**
+     * @return the first cursor from this one (inclusive) whose port has not been skipped on the
+     * host, or -1 if there are no more ports
+     */
+    private int nextUnscanned(int host, int cursor) {
+        PortSet done = skipped[host];
+        if (done == null) return cursor;
+        while (cursor != -1 && done.contains(portOrder == null ? cursor : portOrder[cursor])) {
+            cursor = advance(cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Don't hand out probes for ports that have already been scanned on a host, e.g. when resuming
+     * an interrupted scan. This should be called before the scan starts.
+     *
+     * @param hostIndex - index of the host in the list of hosts
+     * @param done      - the ports already scanned on the host
+     */
+    public synchronized void skip(int hostIndex, PortSet done) {
+        if (done == null) throw new IllegalArgumentException("Ports cannot be null");
+        if (skipped[hostIndex] == null) {
+            skipped[hostIndex] = new PortSet(done);
+        } else {
+            skipped[hostIndex].addAll(done);
+        }
+
+        int cursor = nextPort[hostIndex];
+        if (cursor == -1) return;
+        nextPort[hostIndex] = nextUnscanned(hostIndex, cursor);
+        if (nextPort[hostIndex] == -1) hostsRemaining--;
+    }
+
+    /**
+     * Hand out the probes in a pseudo-random order over every host and port rather than round
+     * robin through each host's ports in turn, so that load is spread evenly over the hosts and
+     * anything rate limiting in between. Only a constant amount of extra memory is used however
+     * many hosts there are. This should be called before the scan starts.
+     *
+     * When the next probe in the order is for a host at its in flight limit, no probes are
+     * handed out until that host has one complete.
+     *
+     * @param seed - seed for the order
+     */
+    public synchronized void setRandomOrder(long seed) {
+        int[] ports;
+        if (portOrder != null) {
+            ports = portOrder;
+        } else {
+            ports = new int[this.ports.size()];
+            int i = 0;
+            for (int port = this.ports.nextPort(0); port != -1; port = this.ports.nextPort(port + 1)) {
+                ports[i++] = port;
+            }
+        }
+        this.randomPorts = ports;
+        this.sinceSample = new int[hosts.size()];
+        this.permutation = new RandomPermutation((long) hosts.size() * ports.length, seed);
+        this.position = 0;
+    }
+
+    /**
+     * @param filteredHostPolicy - what to do with hosts that drop every probe, or null to scan
+     *                           every port whatever the results
+     */
+    public synchronized void setFilteredHostPolicy(FilteredHostPolicy filteredHostPolicy) {
+        this.filteredHostPolicy = filteredHostPolicy;
+    }
+
+    /**
+     * Report the result of a probe so the filtered host policy can act on it. Results may be
+     * reported in any order and after the probe was completed.
+     *
+     * @param hostIndex - index of the host probed
+     * @param state     - the state of the port, see {@link PortResult}
+     */
+    public synchronized void report(int hostIndex, int state) {
+        FilteredHostPolicy policy = filteredHostPolicy;
+        if (policy == null) return;
+        // Failed on this device, which says nothing about the host
+        if (state == PortResult.STATE_ERROR) return;
+
+        if (state != PortResult.STATE_FILTERED) {
+            // The host answers, so scan the rest of it in full
+            consecutiveFiltered[hostIndex] = 0;
+            stride[hostIndex] = 1;
+            return;
+        }
+
+        consecutiveFiltered[hostIndex]++;
+        applyFilteredHostPolicy(hostIndex);
+    }
+
+    /**
+     * Carry on counting filtered ports in a row from an earlier scan, e.g. when resuming from a
+     * checkpoint. This should be called after the filtered host policy is set.
+     *
+     * @param hostIndex - index of the host
+     * @param count     - the number of filtered ports in a row already found on the host
+     */
+    public synchronized void restoreConsecutiveFiltered(int hostIndex, int count) {
+        if (filteredHostPolicy == null || count <= 0) return;
+        consecutiveFiltered[hostIndex] = count;
+        applyFilteredHostPolicy(hostIndex);
+    }
+
+    private void applyFilteredHostPolicy(int hostIndex) {
+        FilteredHostPolicy policy = filteredHostPolicy;
+        if (consecutiveFiltered[hostIndex] < policy.getMaxConsecutiveFiltered()) return;
+        if (policy.getAction() == FilteredHostPolicy.ACTION_ABANDON) {
+            abandoned[hostIndex] = true;
+            if (nextPort[hostIndex] != -1) {
+                nextPort[hostIndex] = -1;
+                hostsRemaining--;
+                // Wake anyone waiting in take() in case that was the last host
+                notifyAll();
+            }
+        } else {
+            stride[hostIndex] = policy.getSampleEvery();
+        }
+    }
+
+    /**
+     * @param hostIndex - index of the host
+     * @return true if the filtered host policy gave up on the host before all its ports were
+     * scanned
+     */
+    public synchronized boolean isAbandoned(int hostIndex) {
+        return abandoned[hostIndex];
+    }
+
+    public static int getHostIndex(long probe) {
+        return (int) (probe >>> 16);
+    }
+
+    public static int getPort(long probe) {
+        return (int) (probe & 0xFFFF);
+    }
+
+    public InetAddress getHost(int hostIndex) {
+        return hosts.get(hostIndex);
+    }
+
+    public List<InetAddress> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Take the next probe without waiting
+     *
+     * @return the next probe, or NONE if every host with ports remaining is at its in flight limit
+     * or there are no ports left to scan
+     */
+    public synchronized long poll() {
+        if (permutation != null) return pollRandom();
+
+        int noHosts = nextPort.length;
+        for (int i = 0; i < noHosts && hostsRemaining > 0; i++) {
+            int host = hostCursor;
+            hostCursor = hostCursor + 1 == noHosts ? 0 : hostCursor + 1;
+
+            int cursor = nextPort[host];
+            if (cursor == -1 || inFlight[host] >= maxInFlightPerHost) continue;
+
+            int port = portOrder == null ? cursor : portOrder[cursor];
+            int next = cursor;
+            for (int step = 0; step < stride[host] && next != -1; step++) {
+                next = nextUnscanned(host, advance(next));
+            }
+            nextPort[host] = next;
+            if (nextPort[host] == -1) hostsRemaining--;
+            inFlight[host]++;
+            totalInFlight++;
+            return ((long) host << 16) | port;
+        }
+        return NONE;
+    }
+
+    private long pollRandom() {
+        int noHosts = hosts.size();
+        long size = permutation.size();
+        while (position < size) {
+            long index = permutation.get(position);
+            int host = (int) (index % noHosts);
+            int port = randomPorts[(int) (index / noHosts)];
+            if (isDone(host, port)) {
+                position++;
+                continue;
+            }
+            if (inFlight[host] >= maxInFlightPerHost) return NONE;
+
+            position++;
+            // A sampled host only gets one in every stride of its ports
+            if (stride[host] > 1 && ++sinceSample[host] < stride[host]) continue;
+            sinceSample[host] = 0;
+
+            inFlight[host]++;
+            totalInFlight++;
+            return ((long) host << 16) | port;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return true if the port is not to be scanned on the host, as it already has been or the
+     * host was abandoned
+     */
+    private boolean isDone(int host, int port) {
+        if (abandoned[host]) return true;
+        PortSet done = skipped[host];
+        return done != null && done.contains(port);
+    }
+
+    /**
+     * Take the next probe, waiting for a probe to complete if every host is at its in flight limit
+     *
+     * @return the next probe or NONE if there are no ports left to scan
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    public synchronized long take() throws InterruptedException {
+        while (true) {
+            long probe = poll();
+            if (probe != NONE || !hasRemaining()) return probe;
+            wait();
+        }
+    }
+
+    /**
+     * Mark a probe handed out by {@link #poll()} or {@link #take()} as finished
+     *
+     * @param probe - the probe that has finished
+     */
+    public synchronized void complete(long probe) {
+        inFlight[getHostIndex(probe)]--;
+        totalInFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @return true if there are probes that have not been handed out yet
+     */
+    public synchronized boolean hasRemaining() {
+        if (permutation == null) return hostsRemaining > 0;
+
+        int noHosts = hosts.size();
+        long size = permutation.size();
+        while (position < size) {
+            long index = permutation.get(position);
+            if (!isDone((int) (index % noHosts), randomPorts[(int) (index / noHosts)])) return true;
+            position++;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if all probes have been handed out and completed
+     */
+    public synchronized boolean isFinished() {
+        return !hasRemaining() && totalInFlight == 0;
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A list of ports ranked by how likely they are to be open, most likely first.
+ *
+ * Scanning a profile in order finds most open ports in the first few probes, so a quick check of
+ * the top ports is far cheaper than sweeping every privileged port. The bundled rankings are taken
+ * from the open frequencies in nmap-services, larger rankings can be loaded from that file with
+ * {@link #fromNmapServices(Reader, String, int)}.
+ */
+public class PortProfile {
+
+    // The 100 TCP ports most often found open, most frequent first
+    private static final int[] TOP_TCP_PORTS = {
+            80, 23, 443, 21, 22, 25, 3389, 110, 445, 139,
+            143, 53, 135, 3306, 8080, 1723, 111, 995, 993, 5900,
+            1025, 587, 8888, 199, 1720, 465, 548, 113, 81, 6001,
+            10000, 514, 5060, 179, 1026, 2000, 8443, 8000, 32768, 554,
+            26, 1433, 49152, 2001, 515, 8008, 49154, 1027, 5666, 646,
+            5000, 5631, 631, 49153, 8081, 2049, 88, 79, 5800, 106,
+            2121, 1110, 49155, 6000, 513, 990, 5357, 427, 49156, 543,
+            544, 5101, 144, 7, 389, 8009, 3128, 444, 9999, 5009,
+            7070, 5190, 3000, 5432, 1900, 3986, 13, 1029, 9, 5051,
+            6646, 49157, 1028, 873, 1755, 2717, 4899, 9100, 119, 37
+    };
+
+    // The 50 UDP ports most often found open, most frequent first
+    private static final int[] TOP_UDP_PORTS = {
+            631, 161, 137, 123, 138, 1434, 445, 135, 67, 53,
+            139, 500, 68, 520, 1900, 4500, 514, 49152, 162, 69,
+            5353, 111, 49154, 1701, 998, 996, 997, 999, 3283, 49153,
+            1812, 136, 2222, 2049, 32768, 5060, 1025, 1433, 3456, 80,
+            20031, 1026, 7, 1646, 1645, 593, 518, 2048, 626, 1027
+    };
+
+    public static final int MAX_TOP_TCP = TOP_TCP_PORTS.length;
+    public static final int MAX_TOP_UDP = TOP_UDP_PORTS.length;
+
+    private final int[] ports;
+
+    /**
+     * @param rankedPorts - ports ordered most likely to be open first, duplicates are ignored
+     */
+    public PortProfile(int[] rankedPorts) {
+        if (rankedPorts == null) throw new IllegalArgumentException("Ports cannot be null");
+        PortSet seen = new PortSet();
+        int[] ports = new int[rankedPorts.length];
+        int size = 0;
+        for (int port : rankedPorts) {
+            // PortSet validates the port
+            if (seen.add(port)) ports[size++] = port;
+        }
+        this.ports = Arrays.copyOf(ports, size);
+    }
+
+    /**
+     * @param n - number of ports, at most {@link #MAX_TOP_TCP}
+     * @return the n TCP ports most likely to be open
+     */
+    public static PortProfile topTCP(int n) {
+        return top(TOP_TCP_PORTS, n);
+    }
+
+    /**
+     * @param n - number of ports, at most {@link #MAX_TOP_UDP}
+     * @return the n UDP ports most likely to be open
+     */
+    public static PortProfile topUDP(int n) {
+        return top(TOP_UDP_PORTS, n);
+    }
+
+    private static PortProfile top(int[] ranking, int n) {
+        if (n < 1 || n > ranking.length) {
+            throw new IllegalArgumentException("Number of ports must be between 1 and " + ranking.length);
+        }
+        return new PortProfile(Arrays.copyOf(ranking, n));
+    }
+
+    /**
+     * Load a ranking from an nmap-services file, where each line is
+     * "name port/protocol frequency [# comment]"
+     *
+     * @param reader   - reader for the file
+     * @param protocol - "tcp" or "udp"
+     * @param n        - maximum number of ports to keep
+     * @return the n ports of the protocol with the highest open frequency
+     * @throws IOException - if the file can't be read
+     */
+    public static PortProfile fromNmapServices(Reader reader, String protocol, int n) throws IOException {
+        if (n < 1) throw new IllegalArgumentException("Number of ports cannot be less than 1");
+
+        ArrayList<double[]> entries = new ArrayList<>();
+        BufferedReader buffer = new BufferedReader(reader);
+        String suffix = "/" + protocol;
+        String line;
+        while ((line = buffer.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] fields = line.split("\\s+");
+            if (fields.length < 3 || !fields[1].endsWith(suffix)) continue;
+            try {
+                int port = Integer.parseInt(fields[1].substring(0, fields[1].length() - suffix.length()));
+                if (port < PortSet.MIN_PORT || port > PortSet.MAX_PORT) continue;
+                entries.add(new double[]{port, Double.parseDouble(fields[2])});
+            } catch (NumberFormatException e) {
+                // Not a line we understand, skip it
+            }
+        }
+
+        Collections.sort(entries, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(b[1], a[1]);
+            }
+        });
+
+        int[] ports = new int[Math.min(n, entries.size())];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = (int) entries.get(i)[0];
+        }
+        return new PortProfile(ports);
+    }
+
+    /**
+     * @return the ports, most likely to be open first
+     */
+    public int[] getPorts() {
+        return ports.clone();
+    }
+
+    public int size() {
+        return ports.length;
+    }
+
+    /**
+     * @return the ports as an unordered set
+     */
+    public PortSet toPortSet() {
+        PortSet portSet = new PortSet();
+        for (int port : ports) {
+            portSet.add(port);
+        }
+        return portSet;
+    }
+
+    @Override
+    public String toString() {
+        return "PortProfile{" +
+                "ports=" + Arrays.toString(ports) +
+                '}';
+    }
+}
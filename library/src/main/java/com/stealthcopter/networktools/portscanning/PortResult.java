@@ -0,0 +1,74 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.net.InetAddress;
+
+public class PortResult {
+
+    // Something answered on the port
+    public static final int STATE_OPEN = 0;
+    // The host answered that nothing is listening, a TCP reset or ICMP port unreachable
+    public static final int STATE_CLOSED = 1;
+    // No answer from a UDP port, services don't have to reply so it could be open or filtered
+    public static final int STATE_OPEN_FILTERED = 2;
+    // No answer from a TCP port, or the host or network was reported unreachable, so a firewall
+    // is most likely dropping the probes
+    public static final int STATE_FILTERED = 3;
+    // The probe failed on this device, e.g. it ran out of local ports or file descriptors, so
+    // nothing is known about the port
+    public static final int STATE_ERROR = 4;
+
+    public final InetAddress address;
+    public final int portNo;
+    public final boolean open;
+    public final int state;
+
+    public PortResult(InetAddress address, int portNo, boolean open) {
+        this(address, portNo, open ? STATE_OPEN : STATE_CLOSED);
+    }
+
+    /**
+     * @param address - the address scanned
+     * @param portNo  - the port scanned
+     * @param state   - one of STATE_OPEN, STATE_CLOSED, STATE_OPEN_FILTERED, STATE_FILTERED or
+     *                STATE_ERROR
+     */
+    public PortResult(InetAddress address, int portNo, int state) {
+        this.address = address;
+        this.portNo = portNo;
+        this.open = state == STATE_OPEN;
+        this.state = state;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getPortNo() {
+        return portNo;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @return true if nothing answered, see STATE_OPEN_FILTERED and STATE_FILTERED
+     */
+    public boolean isFiltered() {
+        return state == STATE_OPEN_FILTERED || state == STATE_FILTERED;
+    }
+
+    @Override
+    public String toString() {
+        return "PortResult{" +
+                "address=" + address +
+                ", portNo=" + portNo +
+                ", open=" + open +
+                ", state=" + state +
+                '}';
+    }
+}
@@ -0,0 +1,112 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded, blocking iterator over the results of a running scan.
+ * <p>
+ * The consumer pulls results at its own pace. The scan must take a permit from
+ * {@link #getPermits()} before starting each probe, and a permit is only given back once the
+ * consumer has taken the result, so when the buffer is full no new probes are started. Results
+ * are therefore never dropped and the scanning threads never block on a slow consumer.
+ * <p>
+ * {@link #hasNext()} blocks until the next result arrives or the scan finishes. Closing the
+ * iterator cancels the scan.
+ */
+public class PortResultIterator implements Iterator<PortResult>, Closeable {
+
+    private static final PortResult END = new PortResult(null, 0, false);
+
+    private final ArrayBlockingQueue<PortResult> queue;
+    private final Semaphore permits;
+    private final int bufferSize;
+    private final Runnable onClose;
+
+    private PortResult next = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param bufferSize - the number of results (including probes in flight) allowed before the
+     *                   scan is paused
+     * @param onClose    - called when the iterator is closed so the scan can be cancelled
+     */
+    public PortResultIterator(int bufferSize, Runnable onClose) {
+        if (bufferSize < 1) throw new IllegalArgumentException("Buffer size cannot be less than 1");
+        // One extra slot so the end marker always fits
+        this.queue = new ArrayBlockingQueue<>(bufferSize + 1);
+        this.permits = new Semaphore(bufferSize);
+        this.bufferSize = bufferSize;
+        this.onClose = onClose;
+    }
+
+    /**
+     * @return the permits the scan must take before starting each probe
+     */
+    public Semaphore getPermits() {
+        return permits;
+    }
+
+    /**
+     * Add a result, the scan must already hold a permit for it so this never blocks
+     *
+     * @param portResult - the result to add
+     */
+    public void offer(PortResult portResult) {
+        if (closed) return;
+        queue.offer(portResult);
+    }
+
+    /**
+     * Called by the scan once it has finished, after the last result has been offered
+     */
+    public void finish() {
+        queue.offer(END);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            if (closed) return false;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return next != END;
+    }
+
+    @Override
+    public PortResult next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        PortResult portResult = next;
+        next = null;
+        permits.release();
+        return portResult;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Results cannot be removed");
+    }
+
+    /**
+     * Stop the scan, any results not yet read are discarded
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (onClose != null) onClose.run();
+        // Unblock the scan if it is waiting for us to read results, by giving back every permit it
+        // holds. The scan is cancelled first so it takes no more than it is waiting for.
+        int held = bufferSize - permits.availablePermits();
+        if (held > 0) permits.release(held);
+        queue.clear();
+    }
+}
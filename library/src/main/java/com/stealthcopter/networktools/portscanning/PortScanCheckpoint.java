@@ -0,0 +1,288 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the progress of a port scan on disk so that an interrupted scan can be resumed.
+ *
+ * For each host the ports scanned and the open, closed and filtered ports found are kept as
+ * bitmaps, so even a full sweep of every port on a few hundred hosts only takes a few kilobytes.
+ * The number of filtered ports in a row is kept too, so a {@link FilteredHostPolicy} carries on
+ * from where it was. Ports are recorded from
+ * the scanning threads without locking, and the file is written at most once per save interval
+ * by whichever thread records a port after it has passed. The file is written to a temporary file
+ * first and then renamed, so a crash while saving leaves the previous checkpoint intact.
+ */
+public class PortScanCheckpoint {
+
+    public static final long DEFAULT_SAVE_INTERVAL_MILLIS = 10000;
+
+    private static final int MAGIC = 0x414e5443;
+    private static final int VERSION = 2;
+
+    private final File file;
+    private final ConcurrentHashMap<InetAddress, Host> hosts = new ConcurrentHashMap<>();
+    private volatile long saveIntervalNanos = DEFAULT_SAVE_INTERVAL_MILLIS * 1000000L;
+    private final AtomicLong lastSaveNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * Create an empty checkpoint, see {@link #load(File)} to resume from an existing one
+     *
+     * @param file - the file to save to
+     */
+    public PortScanCheckpoint(File file) {
+        if (file == null) throw new IllegalArgumentException("File cannot be null");
+        this.file = file;
+    }
+
+    /**
+     * Load a checkpoint saved by an earlier scan
+     *
+     * @param file - the file to load from and save to
+     * @return the checkpoint, empty if the file does not exist
+     * @throws IOException - if the file can't be read or is not a checkpoint
+     */
+    public static PortScanCheckpoint load(File file) throws IOException {
+        PortScanCheckpoint checkpoint = new PortScanCheckpoint(file);
+        if (!file.exists()) return checkpoint;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a port scan checkpoint");
+            int version = in.readUnsignedByte();
+            // Version 1 only has the scanned and open ports
+            if (version != 1 && version != VERSION) throw new IOException("Unsupported checkpoint version " + version);
+
+            int noHosts = in.readInt();
+            for (int i = 0; i < noHosts; i++) {
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                Host host = checkpoint.getOrCreateHost(InetAddress.getByAddress(address));
+                host.scanned.addAll(PortSet.readFrom(in));
+                host.open.addAll(PortSet.readFrom(in));
+                if (version == 1) continue;
+                host.closed.addAll(PortSet.readFrom(in));
+                host.filtered.addAll(PortSet.readFrom(in));
+                host.consecutiveFiltered.set(in.readInt());
+            }
+        } finally {
+            in.close();
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @param saveIntervalMillis - minimum time between saves while scanning
+     * @return this object to allow chaining
+     */
+    public PortScanCheckpoint setSaveIntervalMillis(long saveIntervalMillis) {
+        if (saveIntervalMillis < 0) throw new IllegalArgumentException("Save interval cannot be less than 0");
+        this.saveIntervalNanos = saveIntervalMillis * 1000000L;
+        return this;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Record whether a port was open, this is safe to call from many threads at once. Use
+     * {@link #markScanned(InetAddress, int, int)} to also keep closed and filtered ports.
+     *
+     * @param ia     - the host scanned
+     * @param portNo - the port scanned
+     * @param open   - true if the port was open
+     */
+    public void markScanned(InetAddress ia, int portNo, boolean open) {
+        Host host = getOrCreateHost(ia);
+        // Open first, so that a save which sees the port scanned also sees it open
+        if (open) host.open.add(portNo);
+        host.scanned.add(portNo);
+    }
+
+    /**
+     * Record the state of a port, this is safe to call from many threads at once
+     *
+     * @param ia     - the host scanned
+     * @param portNo - the port scanned
+     * @param state  - the state of the port, see {@link PortResult}. STATE_ERROR is not recorded
+     *               so the port is scanned again on resume
+     */
+    public void markScanned(InetAddress ia, int portNo, int state) {
+        if (state == PortResult.STATE_ERROR) return;
+        Host host = getOrCreateHost(ia);
+        // The state first, so that a save which sees the port scanned also sees its state
+        if (state == PortResult.STATE_OPEN) {
+            host.open.add(portNo);
+        } else if (state == PortResult.STATE_CLOSED) {
+            host.closed.add(portNo);
+        } else {
+            host.filtered.add(portNo);
+        }
+        // Counted the same way as HostPortScheduler.report()
+        if (state == PortResult.STATE_FILTERED) {
+            host.consecutiveFiltered.incrementAndGet();
+        } else {
+            host.consecutiveFiltered.set(0);
+        }
+        host.scanned.add(portNo);
+    }
+
+    /**
+     * @param ia - the host
+     * @return the ports already scanned on the host
+     */
+    public PortSet getScanned(InetAddress ia) {
+        Host host = hosts.get(ia);
+        return host != null ? host.scanned.snapshot() : new PortSet();
+    }
+
+    /**
+     * @param ia - the host
+     * @return the open ports already found on the host
+     */
+    public PortSet getOpen(InetAddress ia) {
+        Host host = hosts.get(ia);
+        return host != null ? host.open.snapshot() : new PortSet();
+    }
+
+    /**
+     * @param ia - the host
+     * @return the closed ports already found on the host
+     */
+    public PortSet getClosed(InetAddress ia) {
+        Host host = hosts.get(ia);
+        return host != null ? host.closed.snapshot() : new PortSet();
+    }
+
+    /**
+     * @param ia - the host
+     * @return the filtered and open|filtered ports already found on the host
+     */
+    public PortSet getFiltered(InetAddress ia) {
+        Host host = hosts.get(ia);
+        return host != null ? host.filtered.snapshot() : new PortSet();
+    }
+
+    /**
+     * @param ia - the host
+     * @return the number of filtered ports in a row last found on the host
+     */
+    public int getConsecutiveFiltered(InetAddress ia) {
+        Host host = hosts.get(ia);
+        return host != null ? host.consecutiveFiltered.get() : 0;
+    }
+
+    /**
+     * @param ia    - the host
+     * @param ports - the ports to check
+     * @return true if every one of the ports has been scanned on the host
+     */
+    public boolean isScanned(InetAddress ia, PortSet ports) {
+        Host host = hosts.get(ia);
+        for (int port = ports.nextPort(0); port != -1; port = ports.nextPort(port + 1)) {
+            if (host == null || !host.scanned.contains(port)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Save the checkpoint if the save interval has passed since it was last saved. Errors are
+     * logged rather than thrown so that a full disk does not stop the scan.
+     */
+    public void saveIfDue() {
+        long last = lastSaveNanos.get();
+        long now = System.nanoTime();
+        if (now - last < saveIntervalNanos) return;
+        // Only one of the threads that notice the interval has passed saves
+        if (!lastSaveNanos.compareAndSet(last, now)) return;
+        try {
+            save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the checkpoint to its file now
+     *
+     * @throws IOException - if the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        lastSaveNanos.set(System.nanoTime());
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            ArrayList<Map.Entry<InetAddress, Host>> entries = new ArrayList<>(hosts.entrySet());
+            out.writeInt(entries.size());
+            for (Map.Entry<InetAddress, Host> entry : entries) {
+                byte[] address = entry.getKey().getAddress();
+                out.writeByte(address.length);
+                out.write(address);
+                // Scanned before open, a port marked between the two snapshots is then only
+                // missing from scanned and is scanned again on resume rather than lost
+                Host host = entry.getValue();
+                PortSet scanned = host.scanned.snapshot();
+                PortSet open = host.open.snapshot();
+                PortSet closed = host.closed.snapshot();
+                PortSet filtered = host.filtered.snapshot();
+                scanned.writeTo(out);
+                open.writeTo(out);
+                closed.writeTo(out);
+                filtered.writeTo(out);
+                out.writeInt(host.consecutiveFiltered.get());
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            // Some platforms won't rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not replace checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Delete the checkpoint file, e.g. once the scan has completed
+     *
+     * @return true if the file was deleted
+     */
+    public synchronized boolean delete() {
+        return file.delete();
+    }
+
+    private Host getOrCreateHost(InetAddress ia) {
+        Host host = hosts.get(ia);
+        if (host != null) return host;
+        Host created = new Host();
+        host = hosts.putIfAbsent(ia, created);
+        return host != null ? host : created;
+    }
+
+    private static class Host {
+        final ConcurrentPortSet scanned = new ConcurrentPortSet();
+        final ConcurrentPortSet open = new ConcurrentPortSet();
+        final ConcurrentPortSet closed = new ConcurrentPortSet();
+        final ConcurrentPortSet filtered = new ConcurrentPortSet();
+        final AtomicInteger consecutiveFiltered = new AtomicInteger();
+    }
+
+}
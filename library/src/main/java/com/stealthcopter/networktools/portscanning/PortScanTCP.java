@@ -1,12 +1,23 @@
 package com.stealthcopter.networktools.portscanning;
 
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+
 import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 
 public class PortScanTCP {
 
+    // Plain sockets, closed normally
+    private static final ProbeSockets DEFAULT_SOCKETS = new ProbeSockets();
+
     // This class is not to be instantiated
     private PortScanTCP() {
     }
@@ -20,24 +31,219 @@ public class PortScanTCP {
      * @return - true if port is open, false if not or unknown
      */
     public static boolean scanAddress(InetAddress ia, int portNo, int timeoutMillis) {
+        return scanAddress(ia, portNo, timeoutMillis, null);
+    }
 
-        Socket s = null;
+    /**
+     * Check if a port is open with TCP
+     *
+     * @param ia            - address to scan
+     * @param portNo        - port to scan
+     * @param timeoutMillis - timeout
+     * @param cancellation  - if cancelled the connect is aborted straight away, may be null
+     * @return - true if port is open, false if not, unknown or cancelled
+     */
+    public static boolean scanAddress(InetAddress ia, int portNo, int timeoutMillis, Cancellation cancellation) {
+        return scanPort(ia, portNo, timeoutMillis, cancellation) == PortResult.STATE_OPEN;
+    }
+
+    /**
+     * Find out whether a port is open, closed or filtered with TCP
+     *
+     * @param ia            - address to scan
+     * @param portNo        - port to scan
+     * @param timeoutMillis - timeout
+     * @param cancellation  - if cancelled the connect is aborted straight away, may be null
+     * @return - PortResult.STATE_OPEN, STATE_CLOSED, STATE_FILTERED or STATE_ERROR
+     */
+    public static int scanPort(InetAddress ia, int portNo, int timeoutMillis, Cancellation cancellation) {
+        return scanPort(ia, portNo, timeoutMillis, cancellation, null);
+    }
+
+    /**
+     * Find out whether a port is open, closed or filtered with TCP
+     *
+     * @param ia            - address to scan
+     * @param portNo        - port to scan
+     * @param timeoutMillis - timeout
+     * @param cancellation  - if cancelled the connect is aborted straight away, may be null
+     * @param sockets       - creates and closes the socket, may be null for a plain socket
+     * @return - PortResult.STATE_OPEN, STATE_CLOSED, STATE_FILTERED or STATE_ERROR
+     */
+    public static int scanPort(InetAddress ia, int portNo, int timeoutMillis, Cancellation cancellation, ProbeSockets sockets) {
+        if (sockets == null) sockets = DEFAULT_SOCKETS;
+        Socket s;
+        try {
+            s = open(ia, portNo, timeoutMillis, cancellation, sockets);
+        } catch (IOException e) {
+            return getState(e);
+        }
+        sockets.close(s);
+        return PortResult.STATE_OPEN;
+    }
+
+    /**
+     * Connect to a port with TCP and keep the connection open, e.g. to read its banner
+     *
+     * @param ia            - address to connect to
+     * @param portNo        - port to connect to
+     * @param timeoutMillis - timeout
+     * @param cancellation  - if cancelled the connect is aborted straight away, may be null
+     * @return - the connected socket which the caller must close, or null if the port is not open
+     */
+    public static Socket connect(InetAddress ia, int portNo, int timeoutMillis, Cancellation cancellation) {
         try {
-            s = new Socket();
-            s.connect(new InetSocketAddress(ia, portNo), timeoutMillis);
-            return true;
+            return open(ia, portNo, timeoutMillis, cancellation);
         } catch (IOException e) {
             // Don't log anything as we are expecting a lot of these from closed ports.
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            return null;
+        }
+    }
+
+    /**
+     * Connect to a port with TCP, see {@link #getState(IOException)} to find out why a connect
+     * failed
+     *
+     * @param ia            - address to connect to
+     * @param portNo        - port to connect to
+     * @param timeoutMillis - timeout
+     * @param cancellation  - if cancelled the connect is aborted straight away, may be null
+     * @return - the connected socket which the caller must close
+     * @throws IOException - if the connect failed or was cancelled
+     */
+    public static Socket open(InetAddress ia, int portNo, int timeoutMillis, Cancellation cancellation) throws IOException {
+        return open(ia, portNo, timeoutMillis, cancellation, null);
+    }
+
+    /**
+     * Connect to a port with TCP, see {@link #getState(IOException)} to find out why a connect
+     * failed. A connect that fails because no local port could be assigned, or the process is out
+     * of file descriptors, is tried again after a wait.
+     *
+     * @param ia            - address to connect to
+     * @param portNo        - port to connect to
+     * @param timeoutMillis - timeout
+     * @param cancellation  - if cancelled the connect is aborted straight away, may be null
+     * @param sockets       - creates the socket, may be null for a plain socket
+     * @return - the connected socket which the caller must close, with sockets if given
+     * @throws IOException - if the connect failed or was cancelled
+     */
+    public static Socket open(InetAddress ia, int portNo, int timeoutMillis, Cancellation cancellation, ProbeSockets sockets) throws IOException {
+        if (sockets == null) sockets = DEFAULT_SOCKETS;
+        int descriptorWaits = 0;
+        for (int attempt = 1; ; ) {
+            Socket s;
+            try {
+                s = sockets.openSocket();
+            } catch (IOException e) {
+                if (!DescriptorBudget.isOutOfDescriptors(e) || !DescriptorBudget.waitForDescriptors(descriptorWaits++)) throw e;
+                continue;
+            }
+            try {
+                if (cancellation != null && !cancellation.register(s)) throw new SocketException("Cancelled");
+                s.connect(new InetSocketAddress(ia, portNo), timeoutMillis);
+                if (cancellation != null) cancellation.unregister(s);
+                return s;
+            } catch (BindException e) {
+                // Out of local ports, nothing to do with the port we are scanning
+                if (cancellation != null) cancellation.unregister(s);
+                sockets.close(s);
+                if (attempt >= ProbeSockets.MAX_CONNECT_ATTEMPTS || !sockets.waitForLocalPort(attempt++)) throw e;
+            } catch (IOException e) {
+                if (cancellation != null) cancellation.unregister(s);
+                sockets.close(s);
+                // Sockets only get a descriptor when first used, so this can fail here too
+                if (!DescriptorBudget.isOutOfDescriptors(e) || !DescriptorBudget.waitForDescriptors(descriptorWaits++)) throw e;
             }
         }
-        return false;
+    }
+
+    /**
+     * Work out the state of a port from the reason a connect to it failed
+     *
+     * @param e - the exception thrown by the connect
+     * @return - PortResult.STATE_FILTERED if there was no answer or the host could not be reached,
+     * PortResult.STATE_ERROR if it failed on this device, otherwise PortResult.STATE_CLOSED
+     */
+    public static int getState(IOException e) {
+        // Out of local ports or file descriptors, nothing to do with the port we are scanning
+        if (e instanceof BindException || DescriptorBudget.isOutOfDescriptors(e)) {
+            return PortResult.STATE_ERROR;
+        }
+        if (e instanceof SocketTimeoutException || e instanceof NoRouteToHostException) {
+            return PortResult.STATE_FILTERED;
+        }
+        // The OS gave up waiting for a reply rather than us
+        String message = e.getMessage();
+        if (e instanceof ConnectException && message != null && message.contains("timed out")) {
+            return PortResult.STATE_FILTERED;
+        }
+        // Refused, or a failure we can't tell anything from
+        return PortResult.STATE_CLOSED;
+    }
+
+    /**
+     * Check if a port is open with TCP, using and updating a per host adaptive timeout
+     *
+     * @param ia              - address to scan
+     * @param portNo          - port to scan
+     * @param adaptiveTimeout - the timeout estimator for this host
+     * @return - true if port is open, false if not or unknown
+     */
+    public static boolean scanAddress(InetAddress ia, int portNo, AdaptiveTimeout adaptiveTimeout) {
+        return scanAddress(ia, portNo, adaptiveTimeout, null);
+    }
+
+    /**
+     * Check if a port is open with TCP, using and updating a per host adaptive timeout
+     *
+     * @param ia              - address to scan
+     * @param portNo          - port to scan
+     * @param adaptiveTimeout - the timeout estimator for this host
+     * @param cancellation    - if cancelled the connect is aborted straight away, may be null
+     * @return - true if port is open, false if not or unknown
+     */
+    public static boolean scanAddress(InetAddress ia, int portNo, AdaptiveTimeout adaptiveTimeout, Cancellation cancellation) {
+        return scanPort(ia, portNo, adaptiveTimeout, cancellation) == PortResult.STATE_OPEN;
+    }
+
+    /**
+     * Find out whether a port is open, closed or filtered with TCP, using and updating a per host
+     * adaptive timeout
+     *
+     * @param ia              - address to scan
+     * @param portNo          - port to scan
+     * @param adaptiveTimeout - the timeout estimator for this host
+     * @param cancellation    - if cancelled the connect is aborted straight away, may be null
+     * @return - PortResult.STATE_OPEN, STATE_CLOSED, STATE_FILTERED or STATE_ERROR
+     */
+    public static int scanPort(InetAddress ia, int portNo, AdaptiveTimeout adaptiveTimeout, Cancellation cancellation) {
+        return scanPort(ia, portNo, adaptiveTimeout, cancellation, null);
+    }
+
+    /**
+     * Find out whether a port is open, closed or filtered with TCP, using and updating a per host
+     * adaptive timeout
+     *
+     * @param ia              - address to scan
+     * @param portNo          - port to scan
+     * @param adaptiveTimeout - the timeout estimator for this host
+     * @param cancellation    - if cancelled the connect is aborted straight away, may be null
+     * @param sockets         - creates and closes the socket, may be null for a plain socket
+     * @return - PortResult.STATE_OPEN, STATE_CLOSED, STATE_FILTERED or STATE_ERROR
+     */
+    public static int scanPort(InetAddress ia, int portNo, AdaptiveTimeout adaptiveTimeout, Cancellation cancellation, ProbeSockets sockets) {
+        int timeoutMillis = adaptiveTimeout.getTimeoutMillis();
+        long startNanos = System.nanoTime();
+        int state = scanPort(ia, portNo, timeoutMillis, cancellation, sockets);
+        long rttNanos = System.nanoTime() - startNanos;
+
+        // A closed port that returned before the timeout was refused, so still gives us an RTT
+        boolean answered = state == PortResult.STATE_OPEN || (state == PortResult.STATE_CLOSED && rttNanos < timeoutMillis * 1000000L);
+        if (answered && (cancellation == null || !cancellation.isCancelled())) {
+            adaptiveTimeout.addSample(rttNanos);
+        }
+        return state;
     }
 
 }
@@ -0,0 +1,417 @@
+package com.stealthcopter.networktools.portscanning;
+
+import com.stealthcopter.networktools.concurrency.AIMDController;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+import com.stealthcopter.networktools.concurrency.RateLimiter;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Non-blocking TCP connect scanner.
+ *
+ * Rather than blocking a thread per port on Socket.connect this drives many non-blocking
+ * SocketChannel connects from a single Selector on the calling thread. Timeouts are checked
+ * from a queue ordered by deadline so the number of ports in flight is only limited by
+ * file descriptors and not by threads.
+ *
+ * A reset means the port is closed, while no answer before the timeout or the host being
+ * reported unreachable means it is filtered.
+ */
+public class PortScanTCPNio {
+
+    public interface PortResultListener {
+        /**
+         * @param state - PortResult.STATE_OPEN, STATE_CLOSED, STATE_FILTERED or STATE_ERROR
+         */
+        void onResult(InetAddress ia, int portNo, int state);
+    }
+
+    public interface ConnectionHandler {
+        /**
+         * Called with the connection to each open port before its result is fired, the handler
+         * takes ownership of the channel and must close it
+         */
+        void onConnected(InetAddress ia, int portNo, SocketChannel channel);
+    }
+
+    // How long to wait before trying again when a shared limit stops us sending anything
+    private static final int IDLE_WAIT_MILLIS = 10;
+
+    private final int timeoutMillis;
+    private final int maxInFlight;
+    private boolean adaptiveTimeouts = false;
+    private AIMDController concurrencyController;
+    private DescriptorBudget descriptorBudget;
+    private RateLimiter rateLimiter;
+    private Semaphore resultPermits;
+    private ConnectionHandler connectionHandler;
+    private ProbeSockets sockets = new ProbeSockets();
+    private long rateWaitNanos = 0;
+    private volatile boolean cancelled = false;
+    private volatile Selector selector;
+
+    /**
+     * @param timeoutMillis - connect timeout for each port
+     * @param maxInFlight   - maximum number of connects outstanding at any one time
+     */
+    public PortScanTCPNio(int timeoutMillis, int maxInFlight) {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Timeout cannot be less than 0");
+        if (maxInFlight < 1) throw new IllegalArgumentException("Cannot have less than 1 connect in flight");
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param adaptiveTimeouts - if true the timeout for each host is adjusted during the scan from the
+     *                         round trip times measured, see {@link AdaptiveTimeout}
+     */
+    public void setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+    }
+
+    /**
+     * @param concurrencyController - controller to limit the number of connects in flight, the
+     *                              scan will never exceed maxInFlight whatever its window
+     */
+    public void setConcurrencyController(AIMDController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * @param rateLimiter - limiter for the rate connects are started at
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param resultPermits - a permit is taken before starting each connect and is not given back by
+     *                      the scan, so the consumer of the results controls how far ahead the scan
+     *                      can get. See {@link PortResultIterator}
+     */
+    public void setResultPermits(Semaphore resultPermits) {
+        this.resultPermits = resultPermits;
+    }
+
+    /**
+     * @param descriptorBudget - file descriptors shared with other scans, a connect is only
+     *                         started while one is free, or null for no limit
+     */
+    public void setDescriptorBudget(DescriptorBudget descriptorBudget) {
+        this.descriptorBudget = descriptorBudget;
+    }
+
+    /**
+     * @param sockets - creates and closes the probe sockets, see {@link ProbeSockets}
+     */
+    public void setProbeSockets(ProbeSockets sockets) {
+        this.sockets = sockets != null ? sockets : new ProbeSockets();
+    }
+
+    /**
+     * @param connectionHandler - handler to pass the connections to open ports to instead of
+     *                          closing them, e.g. a {@link ServiceDetector}
+     */
+    public void setConnectionHandler(ConnectionHandler connectionHandler) {
+        this.connectionHandler = connectionHandler;
+    }
+
+    /**
+     * Stop the scan, any ports not yet scanned will not be reported
+     */
+    public void cancel() {
+        cancelled = true;
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    /**
+     * Scan the ports on the given address, this blocks until all ports have been scanned or the
+     * scan is cancelled. Results are fired on the calling thread.
+     *
+     * @param ia       - address to scan
+     * @param ports    - ports to scan
+     * @param listener - listener to fire the result of each port to
+     * @throws IOException - if the selector could not be opened
+     */
+    public void scan(InetAddress ia, PortSet ports, PortResultListener listener) throws IOException {
+        scan(new HostPortScheduler(Collections.singletonList(ia), ports, maxInFlight), listener);
+    }
+
+    /**
+     * Scan the probes handed out by the scheduler, this blocks until all probes have been scanned
+     * or the scan is cancelled. Results are fired on the calling thread.
+     *
+     * @param scheduler - scheduler to take (host, port) probes from
+     * @param listener  - listener to fire the result of each probe to
+     * @throws IOException - if the selector could not be opened
+     */
+    public void scan(HostPortScheduler scheduler, PortResultListener listener) throws IOException {
+        selector = Selector.open();
+
+        PriorityQueue<Probe> deadlines = new PriorityQueue<>();
+        long timeoutNanos = timeoutMillis * 1000000L;
+        int inFlight = 0;
+        // A probe to start again as the process ran out of file descriptors when it was started
+        long retryProbe = HostPortScheduler.NONE;
+
+        AdaptiveTimeout[] hostTimeouts = null;
+        if (adaptiveTimeouts) {
+            hostTimeouts = new AdaptiveTimeout[scheduler.getHosts().size()];
+        }
+
+        try {
+            while (!cancelled && (scheduler.hasRemaining() || inFlight > 0 || retryProbe != HostPortScheduler.NONE)) {
+
+                rateWaitNanos = 0;
+
+                // Top up the number of connects in flight
+                while (!cancelled && inFlight < maxInFlight) {
+                    if (!acquireSendSlot()) break;
+
+                    long next = retryProbe != HostPortScheduler.NONE ? retryProbe : scheduler.poll();
+                    retryProbe = HostPortScheduler.NONE;
+                    if (next == HostPortScheduler.NONE) {
+                        releaseSendSlot();
+                        break;
+                    }
+
+                    int hostIndex = HostPortScheduler.getHostIndex(next);
+                    InetAddress ia = scheduler.getHost(hostIndex);
+                    int portNo = HostPortScheduler.getPort(next);
+                    long probeTimeoutNanos = timeoutNanos;
+                    if (hostTimeouts != null) {
+                        if (hostTimeouts[hostIndex] == null) hostTimeouts[hostIndex] = new AdaptiveTimeout(timeoutMillis);
+                        probeTimeoutNanos = hostTimeouts[hostIndex].getTimeoutNanos();
+                    }
+                    SocketChannel channel = null;
+                    try {
+                        boolean connected;
+                        for (int attempt = 1; ; attempt++) {
+                            channel = sockets.openChannel();
+                            channel.configureBlocking(false);
+                            try {
+                                connected = channel.connect(new InetSocketAddress(ia, portNo));
+                                break;
+                            } catch (BindException e) {
+                                // Out of local ports, nothing to do with the port we are scanning
+                                sockets.close(channel);
+                                channel = null;
+                                if (attempt >= ProbeSockets.MAX_CONNECT_ATTEMPTS) throw e;
+                            }
+                        }
+                        if (connected) {
+                            if (connectionHandler != null) {
+                                handOver();
+                                connectionHandler.onConnected(ia, portNo, channel);
+                            } else {
+                                close(channel);
+                            }
+                            if (concurrencyController != null) concurrencyController.release();
+                            scheduler.complete(next);
+                            scheduler.report(hostIndex, PortResult.STATE_OPEN);
+                            listener.onResult(ia, portNo, PortResult.STATE_OPEN);
+                            continue;
+                        }
+                        long startNanos = System.nanoTime();
+                        Probe probe = new Probe(next, ia, channel, startNanos, startNanos + probeTimeoutNanos);
+                        channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                        deadlines.add(probe);
+                        inFlight++;
+                    } catch (IOException e) {
+                        if (DescriptorBudget.isOutOfDescriptors(e)) {
+                            // Says nothing about the port, so try it again once something is closed
+                            sockets.close(channel);
+                            releaseSendSlot();
+                            retryProbe = next;
+                            break;
+                        }
+                        // Refused or unreachable immediately, or could not open a socket
+                        close(channel);
+                        if (concurrencyController != null) concurrencyController.release();
+                        scheduler.complete(next);
+                        int state = PortScanTCP.getState(e);
+                        scheduler.report(hostIndex, state);
+                        listener.onResult(ia, portNo, state);
+                    }
+                }
+
+                if (inFlight == 0) {
+                    // Nothing in flight but ports remain, so a shared limit is holding us back
+                    selector.select(rateWaitNanos > 0 ? nanosToWaitMillis(rateWaitNanos) : IDLE_WAIT_MILLIS);
+                    continue;
+                }
+
+                // Drop completed probes from the head so the wait is calculated from a live deadline
+                while (deadlines.peek().done) {
+                    deadlines.poll();
+                }
+
+                long waitNanos = deadlines.peek().deadline - System.nanoTime();
+                if (rateWaitNanos > 0) waitNanos = Math.min(waitNanos, rateWaitNanos);
+                selector.select(nanosToWaitMillis(waitNanos));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Probe probe = (Probe) key.attachment();
+                    int state;
+                    try {
+                        if (!probe.channel.finishConnect()) continue;
+                        state = PortResult.STATE_OPEN;
+                    } catch (IOException e) {
+                        // Don't log anything as we are expecting a lot of these from closed ports.
+                        state = PortScanTCP.getState(e);
+                    }
+                    boolean open = state == PortResult.STATE_OPEN;
+                    long rttNanos = System.nanoTime() - probe.startNanos;
+                    if (hostTimeouts != null && (open || state == PortResult.STATE_CLOSED)) {
+                        // Open or refused, either way the host answered so we have a round trip time
+                        hostTimeouts[HostPortScheduler.getHostIndex(probe.id)].addSample(rttNanos);
+                    }
+                    if (concurrencyController != null) concurrencyController.onCompleted(false, rttNanos);
+                    if (open && connectionHandler != null) {
+                        // Hand the channel over rather than closing it
+                        key.cancel();
+                        probe.done = true;
+                        scheduler.complete(probe.id);
+                        handOver();
+                        connectionHandler.onConnected(probe.ia, probe.portNo, probe.channel);
+                    } else {
+                        finish(probe, scheduler);
+                    }
+                    inFlight--;
+                    scheduler.report(HostPortScheduler.getHostIndex(probe.id), state);
+                    listener.onResult(probe.ia, probe.portNo, state);
+                }
+
+                // Anything past its deadline had no answer, so is filtered
+                long now = System.nanoTime();
+                while (!deadlines.isEmpty() && deadlines.peek().deadline - now <= 0) {
+                    Probe probe = deadlines.poll();
+                    if (probe.done) continue;
+                    if (concurrencyController != null) concurrencyController.onCompleted(true, 0);
+                    finish(probe, scheduler);
+                    inFlight--;
+                    scheduler.report(HostPortScheduler.getHostIndex(probe.id), PortResult.STATE_FILTERED);
+                    listener.onResult(probe.ia, probe.portNo, PortResult.STATE_FILTERED);
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                // Keys of channels handed to the connection handler are cancelled, leave those open
+                if (key.isValid()) close((SocketChannel) key.channel());
+            }
+            // Give back the slots of anything still in flight when cancelled
+            for (Probe probe : deadlines) {
+                if (!probe.done && concurrencyController != null) concurrencyController.release();
+            }
+            selector.close();
+            selector = null;
+        }
+    }
+
+    /**
+     * Check every shared limit allows another connect to be started now
+     *
+     * @return true if a connect may be started, if false rateWaitNanos is set when the rate limiter
+     * is the reason
+     */
+    private boolean acquireSendSlot() {
+        if (resultPermits != null && !resultPermits.tryAcquire()) return false;
+
+        if (descriptorBudget != null && !descriptorBudget.tryAcquire()) {
+            if (resultPermits != null) resultPermits.release();
+            return false;
+        }
+
+        if (concurrencyController != null && !concurrencyController.tryAcquire()) {
+            if (descriptorBudget != null) descriptorBudget.release();
+            if (resultPermits != null) resultPermits.release();
+            return false;
+        }
+
+        if (rateLimiter != null && (rateWaitNanos = rateLimiter.tryAcquire()) > 0) {
+            if (concurrencyController != null) concurrencyController.release();
+            if (descriptorBudget != null) descriptorBudget.release();
+            if (resultPermits != null) resultPermits.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back a slot from {@link #acquireSendSlot()} when no connect was started
+     */
+    private void releaseSendSlot() {
+        if (concurrencyController != null) concurrencyController.release();
+        if (descriptorBudget != null) descriptorBudget.release();
+        if (resultPermits != null) resultPermits.release();
+    }
+
+    /**
+     * Selector waits are in milliseconds, round up so we never spin and never pass 0 (forever)
+     */
+    private static long nanosToWaitMillis(long nanos) {
+        return Math.max((nanos + 999999L) / 1000000L, 1);
+    }
+
+    private void finish(Probe probe, HostPortScheduler scheduler) {
+        probe.done = true;
+        close(probe.channel);
+        scheduler.complete(probe.id);
+    }
+
+    /**
+     * Close a probe's channel and give back its file descriptor, may be null if it never opened
+     */
+    private void close(SocketChannel channel) {
+        sockets.close(channel);
+        if (descriptorBudget != null) descriptorBudget.release();
+    }
+
+    /**
+     * Give a probe's connection to the connection handler, whose descriptors aren't counted
+     */
+    private void handOver() {
+        sockets.release();
+        if (descriptorBudget != null) descriptorBudget.release();
+    }
+
+    private static class Probe implements Comparable<Probe> {
+        final long id;
+        final InetAddress ia;
+        final int portNo;
+        final SocketChannel channel;
+        final long startNanos;
+        final long deadline;
+        boolean done = false;
+
+        Probe(long id, InetAddress ia, SocketChannel channel, long startNanos, long deadline) {
+            this.id = id;
+            this.ia = ia;
+            this.portNo = HostPortScheduler.getPort(id);
+            this.channel = channel;
+            this.startNanos = startNanos;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Probe other) {
+            long diff = deadline - other.deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+}
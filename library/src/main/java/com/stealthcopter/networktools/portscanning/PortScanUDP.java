@@ -1,12 +1,18 @@
 package com.stealthcopter.networktools.portscanning;
 
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
 public class PortScanUDP {
 
+    private static final UDPPayloads DEFAULT_PAYLOADS = UDPPayloads.defaults();
+
     // This class is not to be instantiated
     private PortScanUDP() {
     }
@@ -21,26 +27,99 @@ public class PortScanUDP {
      * @return - true if port is open, false if not or unknown
      */
     public static boolean scanAddress(InetAddress ia, int portNo, int timeoutMillis) {
+        return scanAddress(ia, portNo, timeoutMillis, null);
+    }
+
+    /**
+     * Check if a port is open with UDP, note that this isn't reliable
+     * as UDP will does not send ACKs
+     *
+     * @param ia            - address to scan
+     * @param portNo        - port to scan
+     * @param timeoutMillis - timeout
+     * @param cancellation  - if cancelled the socket is closed straight away, may be null
+     * @return - true if port is open, false if not, unknown or cancelled
+     */
+    public static boolean scanAddress(InetAddress ia, int portNo, int timeoutMillis, Cancellation cancellation) {
+        return scanAddress(ia, portNo, timeoutMillis, DEFAULT_PAYLOADS.get(portNo), cancellation);
+    }
+
+    /**
+     * Check if a port is open with UDP, note that this isn't reliable
+     * as UDP will does not send ACKs
+     *
+     * @param ia            - address to scan
+     * @param portNo        - port to scan
+     * @param timeoutMillis - timeout
+     * @param payload       - datagram to send, see {@link UDPPayloads}. If null 128 zero bytes are sent
+     * @param cancellation  - if cancelled the socket is closed straight away, may be null
+     * @return - true if port is open, false if not, unknown or cancelled
+     */
+    public static boolean scanAddress(InetAddress ia, int portNo, int timeoutMillis, byte[] payload, Cancellation cancellation) {
+        // Silence still counts as open as UDP services don't have to reply
+        int state = scanPort(ia, portNo, timeoutMillis, payload, cancellation);
+        return state == PortResult.STATE_OPEN || state == PortResult.STATE_OPEN_FILTERED;
+    }
+
+    /**
+     * Find out whether a port is open, closed or open|filtered with UDP
+     *
+     * @param ia            - address to scan
+     * @param portNo        - port to scan
+     * @param timeoutMillis - timeout
+     * @param payload       - datagram to send, see {@link UDPPayloads}. If null 128 zero bytes are sent
+     * @param cancellation  - if cancelled the socket is closed straight away, may be null
+     * @return - PortResult.STATE_OPEN if it replied, STATE_OPEN_FILTERED if it stayed silent,
+     * STATE_ERROR if no socket could be opened, otherwise STATE_CLOSED
+     */
+    public static int scanPort(InetAddress ia, int portNo, int timeoutMillis, byte[] payload, Cancellation cancellation) {
+        int descriptorWaits = 0;
+        while (true) {
+            try {
+                return probe(ia, portNo, timeoutMillis, payload, cancellation);
+            } catch (SocketException e) {
+                // The process is out of file descriptors, which says nothing about the port
+                if (!DescriptorBudget.waitForDescriptors(descriptorWaits++)) return PortResult.STATE_ERROR;
+            }
+        }
+    }
 
+    /**
+     * @return the state of the port
+     * @throws SocketException - if a socket could not be opened as the process is out of file
+     *                         descriptors
+     */
+    private static int probe(InetAddress ia, int portNo, int timeoutMillis, byte[] payload, Cancellation cancellation) throws SocketException {
+
+        DatagramSocket ds = null;
         try {
-            byte[] bytes = new byte[128];
+            byte[] bytes = payload != null ? payload : new byte[128];
             DatagramPacket dp = new DatagramPacket(bytes, bytes.length);
 
-            DatagramSocket ds = new DatagramSocket();
+            ds = new DatagramSocket();
+            if (cancellation != null && !cancellation.register(ds)) return PortResult.STATE_CLOSED;
             ds.setSoTimeout(timeoutMillis);
             ds.connect(ia, portNo);
             ds.send(dp);
-            ds.isConnected();
-            ds.receive(dp);
-            ds.close();
+            byte[] reply = new byte[1500];
+            ds.receive(new DatagramPacket(reply, reply.length));
+            // Anything sent back means a service is listening
+            return PortResult.STATE_OPEN;
 
         } catch (SocketTimeoutException e) {
-            return true;
+            return PortResult.STATE_OPEN_FILTERED;
+        } catch (SocketException e) {
+            if (ds == null && DescriptorBudget.isOutOfDescriptors(e)) throw e;
         } catch (Exception ignore) {
-
+            // Port unreachable, or a failure we can't tell anything from
+        } finally {
+            if (ds != null) {
+                if (cancellation != null) cancellation.unregister(ds);
+                ds.close();
+            }
         }
 
-        return false;
+        return PortResult.STATE_CLOSED;
     }
 
 }
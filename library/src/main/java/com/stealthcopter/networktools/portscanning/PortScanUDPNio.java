@@ -0,0 +1,369 @@
+package com.stealthcopter.networktools.portscanning;
+
+import com.stealthcopter.networktools.concurrency.AIMDController;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+import com.stealthcopter.networktools.concurrency.RateLimiter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Non-blocking UDP scanner.
+ *
+ * Each port in flight gets its own connected, non-blocking DatagramChannel so that the ICMP port
+ * unreachable sent back by a closed port is reported to us, and all the channels are driven from
+ * a single Selector on the calling thread. A reply means the port is open, port unreachable means
+ * it is closed, and silence until the timeout means it is either open or filtered as UDP services
+ * don't have to answer.
+ *
+ * Note that most hosts rate limit the ICMP messages they send, so closed ports on a host scanned
+ * quickly can look open|filtered. Use a {@link RateLimiter} if this matters.
+ */
+public class PortScanUDPNio {
+
+    public static final int STATE_OPEN = PortResult.STATE_OPEN;
+    public static final int STATE_CLOSED = PortResult.STATE_CLOSED;
+    public static final int STATE_OPEN_FILTERED = PortResult.STATE_OPEN_FILTERED;
+
+    public interface PortResultListener {
+        /**
+         * @param state - one of STATE_OPEN, STATE_CLOSED or STATE_OPEN_FILTERED
+         */
+        void onResult(InetAddress ia, int portNo, int state);
+    }
+
+    // How long to wait before trying again when a shared limit stops us sending anything
+    private static final int IDLE_WAIT_MILLIS = 10;
+
+    private static final int MAX_REPLY_BYTES = 1500;
+
+    // Channels won't send an empty datagram, so probe with a single zero byte
+    private static final byte[] EMPTY_PROBE = new byte[1];
+
+    private final int timeoutMillis;
+    private final int maxInFlight;
+    private AIMDController concurrencyController;
+    private DescriptorBudget descriptorBudget;
+    private RateLimiter rateLimiter;
+    private Semaphore resultPermits;
+    private UDPPayloads payloads = UDPPayloads.defaults();
+    private long rateWaitNanos = 0;
+    private volatile boolean cancelled = false;
+    private volatile Selector selector;
+
+    /**
+     * @param timeoutMillis - time to wait for a reply from each port
+     * @param maxInFlight   - maximum number of ports waiting for a reply at any one time
+     */
+    public PortScanUDPNio(int timeoutMillis, int maxInFlight) {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Timeout cannot be less than 0");
+        if (maxInFlight < 1) throw new IllegalArgumentException("Cannot have less than 1 probe in flight");
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param concurrencyController - controller to limit the number of probes in flight, the
+     *                              scan will never exceed maxInFlight whatever its window
+     */
+    public void setConcurrencyController(AIMDController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * @param descriptorBudget - file descriptors shared with other scans, a probe is only sent
+     *                         while one is free, or null for no limit
+     */
+    public void setDescriptorBudget(DescriptorBudget descriptorBudget) {
+        this.descriptorBudget = descriptorBudget;
+    }
+
+    /**
+     * @param rateLimiter - limiter for the rate probes are sent at
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param resultPermits - a permit is taken before sending each probe and is not given back by
+     *                      the scan, so the consumer of the results controls how far ahead the scan
+     *                      can get. See {@link PortResultIterator}
+     */
+    public void setResultPermits(Semaphore resultPermits) {
+        this.resultPermits = resultPermits;
+    }
+
+    /**
+     * @param payloads - the datagrams to send to each port, ports without a payload are sent a
+     *                 single zero byte. Defaults to {@link UDPPayloads#defaults()}
+     */
+    public void setPayloads(UDPPayloads payloads) {
+        this.payloads = payloads != null ? payloads : new UDPPayloads();
+    }
+
+    /**
+     * Stop the scan, any ports not yet scanned will not be reported
+     */
+    public void cancel() {
+        cancelled = true;
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    /**
+     * Scan the ports on the given address, this blocks until all ports have been scanned or the
+     * scan is cancelled. Results are fired on the calling thread.
+     *
+     * @param ia       - address to scan
+     * @param ports    - ports to scan
+     * @param listener - listener to fire the result of each port to
+     * @throws IOException - if the selector could not be opened
+     */
+    public void scan(InetAddress ia, PortSet ports, PortResultListener listener) throws IOException {
+        scan(new HostPortScheduler(Collections.singletonList(ia), ports, maxInFlight), listener);
+    }
+
+    /**
+     * Scan the probes handed out by the scheduler, this blocks until all probes have been scanned
+     * or the scan is cancelled. Results are fired on the calling thread.
+     *
+     * @param scheduler - scheduler to take (host, port) probes from
+     * @param listener  - listener to fire the result of each probe to
+     * @throws IOException - if the selector could not be opened
+     */
+    public void scan(HostPortScheduler scheduler, PortResultListener listener) throws IOException {
+        selector = Selector.open();
+
+        PriorityQueue<Probe> deadlines = new PriorityQueue<>();
+        long timeoutNanos = timeoutMillis * 1000000L;
+        ByteBuffer replyBuffer = ByteBuffer.allocate(MAX_REPLY_BYTES);
+        int inFlight = 0;
+        // A probe to send again as the process ran out of file descriptors when it was sent
+        long retryProbe = HostPortScheduler.NONE;
+
+        try {
+            while (!cancelled && (scheduler.hasRemaining() || inFlight > 0 || retryProbe != HostPortScheduler.NONE)) {
+
+                rateWaitNanos = 0;
+
+                // Top up the number of probes in flight
+                while (!cancelled && inFlight < maxInFlight) {
+                    if (!acquireSendSlot()) break;
+
+                    long next = retryProbe != HostPortScheduler.NONE ? retryProbe : scheduler.poll();
+                    retryProbe = HostPortScheduler.NONE;
+                    if (next == HostPortScheduler.NONE) {
+                        releaseSendSlot();
+                        break;
+                    }
+
+                    InetAddress ia = scheduler.getHost(HostPortScheduler.getHostIndex(next));
+                    int portNo = HostPortScheduler.getPort(next);
+                    DatagramChannel channel = null;
+                    try {
+                        channel = DatagramChannel.open();
+                        channel.configureBlocking(false);
+                        // Connected so that ICMP port unreachable is reported on this channel
+                        channel.connect(new InetSocketAddress(ia, portNo));
+                        byte[] payload = payloads.get(portNo);
+                        channel.write(ByteBuffer.wrap(payload != null ? payload : EMPTY_PROBE));
+                        long startNanos = System.nanoTime();
+                        Probe probe = new Probe(next, ia, channel, startNanos, startNanos + timeoutNanos);
+                        channel.register(selector, SelectionKey.OP_READ, probe);
+                        deadlines.add(probe);
+                        inFlight++;
+                    } catch (PortUnreachableException e) {
+                        // Left over from an earlier probe to the same port
+                        close(channel);
+                        if (concurrencyController != null) concurrencyController.release();
+                        scheduler.complete(next);
+                        scheduler.report(HostPortScheduler.getHostIndex(next), STATE_CLOSED);
+                        listener.onResult(ia, portNo, STATE_CLOSED);
+                    } catch (IOException e) {
+                        if (DescriptorBudget.isOutOfDescriptors(e)) {
+                            // Says nothing about the port, so send it again once something is closed
+                            closeQuietly(channel);
+                            releaseSendSlot();
+                            retryProbe = next;
+                            break;
+                        }
+                        // Could not open a socket or no route to the host
+                        close(channel);
+                        if (concurrencyController != null) concurrencyController.release();
+                        scheduler.complete(next);
+                        scheduler.report(HostPortScheduler.getHostIndex(next), STATE_OPEN_FILTERED);
+                        listener.onResult(ia, portNo, STATE_OPEN_FILTERED);
+                    }
+                }
+
+                if (inFlight == 0) {
+                    // Nothing in flight but ports remain, so a shared limit is holding us back
+                    selector.select(rateWaitNanos > 0 ? nanosToWaitMillis(rateWaitNanos) : IDLE_WAIT_MILLIS);
+                    continue;
+                }
+
+                // Drop completed probes from the head so the wait is calculated from a live deadline
+                while (deadlines.peek().done) {
+                    deadlines.poll();
+                }
+
+                long waitNanos = deadlines.peek().deadline - System.nanoTime();
+                if (rateWaitNanos > 0) waitNanos = Math.min(waitNanos, rateWaitNanos);
+                selector.select(nanosToWaitMillis(waitNanos));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Probe probe = (Probe) key.attachment();
+                    int state;
+                    try {
+                        replyBuffer.clear();
+                        if (probe.channel.receive(replyBuffer) == null) continue;
+                        state = STATE_OPEN;
+                    } catch (PortUnreachableException e) {
+                        state = STATE_CLOSED;
+                    } catch (IOException e) {
+                        // Host or network unreachable, we can't tell what the port is
+                        state = STATE_OPEN_FILTERED;
+                    }
+                    if (concurrencyController != null) {
+                        concurrencyController.onCompleted(false, System.nanoTime() - probe.startNanos);
+                    }
+                    finish(probe, scheduler);
+                    inFlight--;
+                    scheduler.report(HostPortScheduler.getHostIndex(probe.id), state);
+                    listener.onResult(probe.ia, probe.portNo, state);
+                }
+
+                // No answer either way before the deadline
+                long now = System.nanoTime();
+                while (!deadlines.isEmpty() && deadlines.peek().deadline - now <= 0) {
+                    Probe probe = deadlines.poll();
+                    if (probe.done) continue;
+                    if (concurrencyController != null) concurrencyController.onCompleted(true, 0);
+                    finish(probe, scheduler);
+                    inFlight--;
+                    scheduler.report(HostPortScheduler.getHostIndex(probe.id), STATE_OPEN_FILTERED);
+                    listener.onResult(probe.ia, probe.portNo, STATE_OPEN_FILTERED);
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) close((DatagramChannel) key.channel());
+            }
+            // Give back the slots of anything still in flight when cancelled
+            for (Probe probe : deadlines) {
+                if (!probe.done && concurrencyController != null) concurrencyController.release();
+            }
+            selector.close();
+            selector = null;
+        }
+    }
+
+    /**
+     * Check every shared limit allows another probe to be sent now
+     *
+     * @return true if a probe may be sent, if false rateWaitNanos is set when the rate limiter
+     * is the reason
+     */
+    private boolean acquireSendSlot() {
+        if (resultPermits != null && !resultPermits.tryAcquire()) return false;
+
+        if (descriptorBudget != null && !descriptorBudget.tryAcquire()) {
+            if (resultPermits != null) resultPermits.release();
+            return false;
+        }
+
+        if (concurrencyController != null && !concurrencyController.tryAcquire()) {
+            if (descriptorBudget != null) descriptorBudget.release();
+            if (resultPermits != null) resultPermits.release();
+            return false;
+        }
+
+        if (rateLimiter != null && (rateWaitNanos = rateLimiter.tryAcquire()) > 0) {
+            if (concurrencyController != null) concurrencyController.release();
+            if (descriptorBudget != null) descriptorBudget.release();
+            if (resultPermits != null) resultPermits.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back a slot from {@link #acquireSendSlot()} when no probe was sent
+     */
+    private void releaseSendSlot() {
+        if (concurrencyController != null) concurrencyController.release();
+        if (descriptorBudget != null) descriptorBudget.release();
+        if (resultPermits != null) resultPermits.release();
+    }
+
+    /**
+     * Selector waits are in milliseconds, round up so we never spin and never pass 0 (forever)
+     */
+    private static long nanosToWaitMillis(long nanos) {
+        return Math.max((nanos + 999999L) / 1000000L, 1);
+    }
+
+    private void finish(Probe probe, HostPortScheduler scheduler) {
+        probe.done = true;
+        close(probe.channel);
+        scheduler.complete(probe.id);
+    }
+
+    /**
+     * Close a probe's channel and give back its file descriptor, may be null if it never opened
+     */
+    private void close(DatagramChannel channel) {
+        closeQuietly(channel);
+        if (descriptorBudget != null) descriptorBudget.release();
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Probe implements Comparable<Probe> {
+        final long id;
+        final InetAddress ia;
+        final int portNo;
+        final DatagramChannel channel;
+        final long startNanos;
+        final long deadline;
+        boolean done = false;
+
+        Probe(long id, InetAddress ia, DatagramChannel channel, long startNanos, long deadline) {
+            this.id = id;
+            this.ia = ia;
+            this.portNo = HostPortScheduler.getPort(id);
+            this.channel = channel;
+            this.startNanos = startNanos;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Probe other) {
+            long diff = deadline - other.deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A compact set of port numbers backed by a bitmap.
+ *
+ * Every possible port is held in 1024 longs (8 KB) regardless of how many ports are in the set,
+ * so a full range scan costs the same as a single port and no Integers are boxed. Ports are always
+ * iterated in ascending order without allocating:
+ *
+ * for (int port = set.nextPort(0); port != -1; port = set.nextPort(port + 1)) { ... }
+ */
+public class PortSet {
+
+    public static final int MIN_PORT = 1;
+    public static final int MAX_PORT = 65535;
+
+    private static final int NO_WORDS = (MAX_PORT + 1) / 64;
+
+    private final long[] words = new long[NO_WORDS];
+    private int size = 0;
+
+    public PortSet() {
+    }
+
+    /**
+     * @param other - set to copy
+     */
+    public PortSet(PortSet other) {
+        System.arraycopy(other.words, 0, words, 0, NO_WORDS);
+        size = other.size;
+    }
+
+    /**
+     * @param start - first port in the set
+     * @param end   - last port in the set (inclusive)
+     * @return a new set containing the range of ports
+     */
+    public static PortSet range(int start, int end) {
+        PortSet portSet = new PortSet();
+        portSet.addRange(start, end);
+        return portSet;
+    }
+
+    /**
+     * @param ports - the ports to add
+     * @return a new set containing the ports
+     */
+    public static PortSet of(Collection<Integer> ports) {
+        PortSet portSet = new PortSet();
+        for (Integer port : ports) {
+            portSet.add(port);
+        }
+        return portSet;
+    }
+
+    /**
+     * @param portString - the ports (comma separated, hyphen denotes a range). For example:
+     *                   "21-23,25,45,53,80"
+     * @return a new set containing the ports
+     */
+    public static PortSet parse(String portString) {
+
+        if (portString == null) {
+            throw new IllegalArgumentException("Empty port string not allowed");
+        }
+
+        PortSet portSet = new PortSet();
+
+        portString = portString.substring(portString.indexOf(":") + 1, portString.length());
+
+        for (String x : portString.split(",")) {
+            if (x.contains("-")) {
+                int start = Integer.parseInt(x.split("-")[0]);
+                int end = Integer.parseInt(x.split("-")[1]);
+                validatePort(start);
+                validatePort(end);
+                if (end <= start)
+                    throw new IllegalArgumentException("Start port cannot be greater than or equal to the end port");
+
+                portSet.addRange(start, end);
+            } else {
+                int start = Integer.parseInt(x);
+                validatePort(start);
+                portSet.add(start);
+            }
+        }
+
+        return portSet;
+    }
+
+    /**
+     * Add a port to the set
+     *
+     * @param port - the port to add
+     * @return true if the port was not already in the set
+     */
+    public boolean add(int port) {
+        validatePort(port);
+        int word = port >>> 6;
+        long mask = 1L << port;
+        if ((words[word] & mask) != 0) return false;
+        words[word] |= mask;
+        size++;
+        return true;
+    }
+
+    /**
+     * Add a range of ports to the set
+     *
+     * @param start - first port to add
+     * @param end   - last port to add (inclusive)
+     */
+    public void addRange(int start, int end) {
+        validatePort(start);
+        validatePort(end);
+        if (end < start) throw new IllegalArgumentException("Start port cannot be greater than the end port");
+        for (int port = start; port <= end; port++) {
+            add(port);
+        }
+    }
+
+    /**
+     * Add all ports from another set
+     *
+     * @param other - the ports to add
+     */
+    public void addAll(PortSet other) {
+        size = 0;
+        for (int i = 0; i < NO_WORDS; i++) {
+            words[i] |= other.words[i];
+            size += Long.bitCount(words[i]);
+        }
+    }
+
+    /**
+     * Remove a port from the set
+     *
+     * @param port - the port to remove
+     * @return true if the port was in the set
+     */
+    public boolean remove(int port) {
+        if (!contains(port)) return false;
+        words[port >>> 6] &= ~(1L << port);
+        size--;
+        return true;
+    }
+
+    /**
+     * @param port - port to check
+     * @return true if the port is in the set
+     */
+    public boolean contains(int port) {
+        if (port < MIN_PORT || port > MAX_PORT) return false;
+        return (words[port >>> 6] & (1L << port)) != 0;
+    }
+
+    /**
+     * Find the next port in the set
+     *
+     * @param fromPort - port to start searching from (inclusive)
+     * @return the lowest port in the set that is greater than or equal to fromPort, or -1 if there
+     * are none
+     */
+    public int nextPort(int fromPort) {
+        if (fromPort > MAX_PORT) return -1;
+        if (fromPort < 0) fromPort = 0;
+        int word = fromPort >>> 6;
+        long bits = words[word] & (-1L << fromPort);
+        while (true) {
+            if (bits != 0) return (word << 6) + Long.numberOfTrailingZeros(bits);
+            if (++word == NO_WORDS) return -1;
+            bits = words[word];
+        }
+    }
+
+    /**
+     * @return the number of ports in the set
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+        size = 0;
+    }
+
+    /**
+     * @return the ports in ascending order as a list
+     */
+    public ArrayList<Integer> toList() {
+        ArrayList<Integer> list = new ArrayList<>(size);
+        for (int port = nextPort(0); port != -1; port = nextPort(port + 1)) {
+            list.add(port);
+        }
+        return list;
+    }
+
+    /**
+     * Write the set compactly, only the words with ports in are written
+     *
+     * @param out - output to write to
+     * @throws IOException - if the write fails
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int noUsedWords = 0;
+        for (long word : words) {
+            if (word != 0) noUsedWords++;
+        }
+        out.writeShort(noUsedWords);
+        for (int i = 0; i < NO_WORDS; i++) {
+            if (words[i] == 0) continue;
+            out.writeShort(i);
+            out.writeLong(words[i]);
+        }
+    }
+
+    /**
+     * Read a set written by {@link #writeTo(DataOutput)}
+     *
+     * @param in - input to read from
+     * @return the set read
+     * @throws IOException - if the read fails or the data is not a port set
+     */
+    public static PortSet readFrom(DataInput in) throws IOException {
+        PortSet portSet = new PortSet();
+        int noUsedWords = in.readUnsignedShort();
+        for (int i = 0; i < noUsedWords; i++) {
+            int word = in.readUnsignedShort();
+            if (word >= NO_WORDS) throw new IOException("Invalid port set");
+            portSet.words[word] = in.readLong();
+            portSet.size += Long.bitCount(portSet.words[word]);
+        }
+        // Port 0 is not a valid port
+        if ((portSet.words[0] & 1L) != 0) throw new IOException("Invalid port set");
+        return portSet;
+    }
+
+    /**
+     * Checks and throws exception if port is not valid
+     *
+     * @param port - the port to validate
+     */
+    private static void validatePort(int port) {
+        if (port < MIN_PORT) throw new IllegalArgumentException("Start port cannot be less than 1");
+        if (port > MAX_PORT) throw new IllegalArgumentException("Start cannot be greater than 65535");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PortSet)) return false;
+        return Arrays.equals(words, ((PortSet) o).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return "PortSet{" +
+                "size=" + size +
+                '}';
+    }
+}
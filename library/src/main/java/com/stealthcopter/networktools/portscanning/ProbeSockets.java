@@ -0,0 +1,211 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates and closes the sockets used to probe TCP ports, and counts how many are open.
+ *
+ * Closing a connection to an open port normally leaves it in TIME_WAIT for a minute or more, still
+ * holding its local port. A scan of a few hundred thousand ports from one box can use up every
+ * ephemeral port this way, after which connects fail locally and open ports are missed. To keep
+ * large scans running at a steady rate:
+ * <ul>
+ * <li>{@link #setAbortiveClose(boolean)} closes each probe with a reset (SO_LINGER 0) so it
+ * leaves nothing in TIME_WAIT</li>
+ * <li>{@link #setSourcePorts(int, int)} binds probes to local ports across a range of your
+ * choosing rather than the OS's ephemeral range</li>
+ * </ul>
+ * Connects that fail because no local port could be assigned are tried again after a back off,
+ * and if they still fail are reported as {@link PortResult#STATE_ERROR} rather than closed.
+ *
+ * An instance can be shared by several scans, in which case {@link #getOutstanding()} counts
+ * the sockets of all of them. This class is thread safe.
+ */
+public class ProbeSockets {
+
+    // Times a connect is tried when it fails because no local address could be assigned
+    static final int MAX_CONNECT_ATTEMPTS = 5;
+    // Longest wait before the first retry, doubled for each one after
+    private static final int LOCAL_PORT_WAIT_MILLIS = 20;
+    private static final int LOCAL_PORT_POLL_MILLIS = 5;
+    // Source ports tried for each socket before leaving the OS to pick one
+    private static final int MAX_BIND_ATTEMPTS = 16;
+
+    private volatile boolean abortiveClose = false;
+    private volatile int firstSourcePort = 0;
+    private volatile int noSourcePorts = 0;
+    private final AtomicInteger sourcePortCursor = new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE));
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * @param abortiveClose - true to close probe connections with a reset instead of the normal
+     *                      close handshake, so they don't leave the local port in TIME_WAIT
+     * @return this object to allow chaining
+     */
+    public ProbeSockets setAbortiveClose(boolean abortiveClose) {
+        this.abortiveClose = abortiveClose;
+        return this;
+    }
+
+    public boolean isAbortiveClose() {
+        return abortiveClose;
+    }
+
+    /**
+     * Bind each probe to the next local port in a range, in turn, instead of letting the OS pick
+     * one from its ephemeral range. Ports that are in use are skipped.
+     *
+     * @param first - first local port to use
+     * @param last  - last local port to use
+     * @return this object to allow chaining
+     * @throws IllegalArgumentException - if the range is not valid
+     */
+    public ProbeSockets setSourcePorts(int first, int last) {
+        if (first < 1 || last > PortSet.MAX_PORT || first > last) {
+            throw new IllegalArgumentException("Invalid source port range " + first + "-" + last);
+        }
+        this.firstSourcePort = first;
+        this.noSourcePorts = last - first + 1;
+        return this;
+    }
+
+    /**
+     * Let the OS pick the local port of each probe, the default
+     *
+     * @return this object to allow chaining
+     */
+    public ProbeSockets clearSourcePorts() {
+        this.noSourcePorts = 0;
+        return this;
+    }
+
+    /**
+     * @return the number of probe sockets open right now, not counting connections handed on with
+     * {@link #release()}
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Wait before a connect that failed as no local port could be assigned is tried again, until
+     * one of the probes open now is closed and may have given its port back, or the back off for
+     * this attempt has passed
+     *
+     * @param attempt - the number of times the connect has been tried
+     * @return true to try again, false if interrupted
+     */
+    boolean waitForLocalPort(int attempt) {
+        int before = outstanding.get();
+        long waitNanos = ((long) LOCAL_PORT_WAIT_MILLIS << (attempt - 1)) * 1000000L;
+        long startNanos = System.nanoTime();
+        try {
+            do {
+                Thread.sleep(LOCAL_PORT_POLL_MILLIS);
+            } while (outstanding.get() >= before && System.nanoTime() - startNanos < waitNanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return a new unconnected socket for a probe, close it with {@link #close(Socket)}
+     * @throws IOException - if the socket could not be created
+     */
+    public Socket openSocket() throws IOException {
+        Socket socket = new Socket();
+        outstanding.incrementAndGet();
+        try {
+            configure(socket);
+            return socket;
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * @return a new unconnected channel for a probe, close it with {@link #close(SocketChannel)}
+     * @throws IOException - if the channel could not be created
+     */
+    public SocketChannel openChannel() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        outstanding.incrementAndGet();
+        try {
+            configure(channel.socket());
+            return channel;
+        } catch (IOException e) {
+            close(channel);
+            throw e;
+        }
+    }
+
+    private void configure(Socket socket) throws IOException {
+        if (abortiveClose) socket.setSoLinger(true, 0);
+        int noPorts = noSourcePorts;
+        if (noPorts == 0) return;
+
+        // Lets us reuse a local port still in TIME_WAIT from a connection to another address
+        socket.setReuseAddress(true);
+        for (int i = 0; i < MAX_BIND_ATTEMPTS; i++) {
+            try {
+                socket.bind(new InetSocketAddress(nextSourcePort(noPorts)));
+                return;
+            } catch (BindException e) {
+                // In use, try the next one
+            }
+        }
+        // Leave the OS to pick one
+    }
+
+    private int nextSourcePort(int noPorts) {
+        return firstSourcePort + (sourcePortCursor.getAndIncrement() & Integer.MAX_VALUE) % noPorts;
+    }
+
+    /**
+     * Close a socket from {@link #openSocket()}
+     *
+     * @param socket - the socket to close, may be null
+     */
+    public void close(Socket socket) {
+        if (socket == null) return;
+        outstanding.decrementAndGet();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Close a channel from {@link #openChannel()}
+     *
+     * @param channel - the channel to close, may be null
+     */
+    public void close(SocketChannel channel) {
+        if (channel == null) return;
+        outstanding.decrementAndGet();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop counting a socket that has been handed on, e.g. to read its banner, whoever it was
+     * handed to closes it
+     */
+    public void release() {
+        outstanding.decrementAndGet();
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.util.Random;
+
+/**
+ * A pseudo-random ordering of the indices 0 to size - 1 that visits every index exactly once,
+ * using constant memory however large the size is.
+ *
+ * Each index is encrypted with a small Feistel cipher over the smallest even number of bits that
+ * covers the size. Results that land outside the range are encrypted again until they fall inside
+ * it (cycle walking), which keeps it a permutation and on average takes fewer than four rounds
+ * of the cipher. This is used to spread probes over a large host and port space so that no one
+ * host or middlebox sees a run of them, without building a shuffled list of every target.
+ *
+ * The order depends only on the size and seed, so it can be picked up again part way through.
+ */
+public class RandomPermutation {
+
+    private static final int ROUNDS = 4;
+    private static final long MAX_SIZE = 1L << 62;
+
+    private final long size;
+    private final int halfBits;
+    private final long halfMask;
+    private final long[] keys = new long[ROUNDS];
+
+    /**
+     * @param size - number of indices to order
+     */
+    public RandomPermutation(long size) {
+        this(size, new Random().nextLong());
+    }
+
+    /**
+     * @param size - number of indices to order
+     * @param seed - seed for the order, the same size and seed always give the same order
+     */
+    public RandomPermutation(long size, long seed) {
+        if (size < 0 || size > MAX_SIZE) throw new IllegalArgumentException("Invalid size " + size);
+        this.size = size;
+
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(size - 1, 1));
+        if (bits % 2 == 1) bits++;
+        this.halfBits = bits / 2;
+        this.halfMask = (1L << halfBits) - 1;
+
+        long key = seed;
+        for (int i = 0; i < ROUNDS; i++) {
+            key += 0x9E3779B97F4A7C15L;
+            keys[i] = mix(key);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @param index - position in the order, from 0 to size - 1
+     * @return the index found at that position
+     */
+    public long get(long index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + " not in 0-" + size);
+        long value = encrypt(index);
+        while (value >= size) {
+            value = encrypt(value);
+        }
+        return value;
+    }
+
+    private long encrypt(long value) {
+        long left = value >>> halfBits;
+        long right = value & halfMask;
+        for (int i = 0; i < ROUNDS; i++) {
+            long next = left ^ (mix(right ^ keys[i]) & halfMask);
+            left = right;
+            right = next;
+        }
+        return (left << halfBits) | right;
+    }
+
+    /**
+     * The finalizer from SplitMix64, every bit of the input affects every bit of the output
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
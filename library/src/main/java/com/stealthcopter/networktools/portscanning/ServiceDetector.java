@@ -0,0 +1,160 @@
+package com.stealthcopter.networktools.portscanning;
+
+import com.stealthcopter.networktools.concurrency.Cancellation;
+import com.stealthcopter.networktools.concurrency.NetworkToolsRuntime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline stage that identifies the services on open ports while the scan carries on.
+ *
+ * The scan hands over the connection it already made to each open port and moves straight on to
+ * the next one, the banners are then read by this stage's own share of the workers. This way slow or silent
+ * servers never hold back the connect sweep.
+ */
+public class ServiceDetector {
+
+    public interface ServiceListener {
+        void onService(ServiceInfo serviceInfo);
+    }
+
+    public static final int DEFAULT_NO_THREADS = 10;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    private final int timeoutMillis;
+    private final Cancellation cancellation;
+    private final ServiceListener listener;
+    private final ExecutorService executor;
+
+    /**
+     * @param noThreads     - number of connections to read banners from at once
+     * @param timeoutMillis - time to wait for each server
+     * @param cancellation  - connections waiting or being read are registered with this, may be null
+     * @param listener      - listener to fire the services found to, may be null
+     */
+    public ServiceDetector(int noThreads, int timeoutMillis, Cancellation cancellation, ServiceListener listener) {
+        this(NetworkToolsRuntime.getDefault(), noThreads, timeoutMillis, cancellation, listener);
+    }
+
+    /**
+     * @param runtime       - runtime whose workers read the banners
+     * @param noThreads     - number of connections to read banners from at once
+     * @param timeoutMillis - time to wait for each server
+     * @param cancellation  - connections waiting or being read are registered with this, may be null
+     * @param listener      - listener to fire the services found to, may be null
+     */
+    public ServiceDetector(NetworkToolsRuntime runtime, int noThreads, int timeoutMillis, Cancellation cancellation, ServiceListener listener) {
+        if (runtime == null) throw new IllegalArgumentException("Runtime cannot be null");
+        if (noThreads < 1) throw new IllegalArgumentException("Cannot have less than 1 thread");
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Timeout cannot be less than 0");
+        this.timeoutMillis = timeoutMillis;
+        this.cancellation = cancellation;
+        this.listener = listener;
+        this.executor = runtime.newExecutor(noThreads);
+    }
+
+    /**
+     * Identify the service on a connected socket, this takes ownership of the socket and closes it
+     * when done
+     *
+     * @param ia     - address the socket is connected to
+     * @param portNo - port the socket is connected to
+     * @param socket - connected socket
+     */
+    public void submit(final InetAddress ia, final int portNo, final Socket socket) {
+        execute(new GrabTask(socket) {
+            @Override
+            ServiceInfo grab() {
+                return BannerGrabber.grab(ia, portNo, socket, timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Identify the service on a connected channel, this takes ownership of the channel and closes
+     * it when done
+     *
+     * @param ia      - address the channel is connected to
+     * @param portNo  - port the channel is connected to
+     * @param channel - connected channel
+     */
+    public void submit(final InetAddress ia, final int portNo, final SocketChannel channel) {
+        execute(new GrabTask(channel) {
+            @Override
+            ServiceInfo grab() {
+                return BannerGrabber.grab(ia, portNo, channel, timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Wait for every connection submitted to be identified, no more can be submitted afterwards
+     */
+    public void finish() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop straight away, closing every connection not yet identified
+     */
+    public void cancel() {
+        List<Runnable> neverRun = executor.shutdownNow();
+        for (Runnable runnable : neverRun) {
+            ((GrabTask) runnable).release();
+        }
+    }
+
+    private void execute(GrabTask task) {
+        if (cancellation != null && !cancellation.register(task.connection)) return;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Cancelled or finished
+            task.release();
+        }
+    }
+
+    private abstract class GrabTask implements Runnable {
+        final Closeable connection;
+
+        GrabTask(Closeable connection) {
+            this.connection = connection;
+        }
+
+        abstract ServiceInfo grab();
+
+        @Override
+        public void run() {
+            try {
+                ServiceInfo serviceInfo = grab();
+                // A connection closed by a cancel tells us nothing
+                boolean cancelled = cancellation != null && cancellation.isCancelled();
+                if (listener != null && !cancelled) listener.onService(serviceInfo);
+            } finally {
+                release();
+            }
+        }
+
+        void release() {
+            if (cancellation != null) cancellation.unregister(connection);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
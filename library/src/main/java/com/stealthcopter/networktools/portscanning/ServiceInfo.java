@@ -0,0 +1,63 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.net.InetAddress;
+
+/**
+ * What was found listening on an open port
+ */
+public class ServiceInfo {
+
+    public static final String SERVICE_UNKNOWN = "unknown";
+    public static final String SERVICE_SSH = "ssh";
+    public static final String SERVICE_FTP = "ftp";
+    public static final String SERVICE_SMTP = "smtp";
+    public static final String SERVICE_POP3 = "pop3";
+    public static final String SERVICE_IMAP = "imap";
+    public static final String SERVICE_HTTP = "http";
+    public static final String SERVICE_TLS = "tls";
+    public static final String SERVICE_VNC = "vnc";
+
+    public final InetAddress address;
+    public final int portNo;
+    public final String service;
+    public final String banner;
+
+    /**
+     * @param address - address the port is on
+     * @param portNo  - the open port
+     * @param service - one of the SERVICE_ names
+     * @param banner  - the first line the server sent, or null if it sent nothing readable
+     */
+    public ServiceInfo(InetAddress address, int portNo, String service, String banner) {
+        this.address = address;
+        this.portNo = portNo;
+        this.service = service;
+        this.banner = banner;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getPortNo() {
+        return portNo;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getBanner() {
+        return banner;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceInfo{" +
+                "address=" + address +
+                ", portNo=" + portNo +
+                ", service='" + service + '\'' +
+                ", banner='" + banner + '\'' +
+                '}';
+    }
+}
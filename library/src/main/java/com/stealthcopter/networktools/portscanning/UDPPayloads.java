@@ -0,0 +1,164 @@
+package com.stealthcopter.networktools.portscanning;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Request payloads to send to UDP ports.
+ *
+ * Most UDP services silently drop a datagram they don't understand, so sending them a valid
+ * request makes open ports answer straight away instead of costing a full timeout. The defaults
+ * cover well known services, more can be added for services on other ports.
+ */
+public class UDPPayloads {
+
+    public static final int PORT_DNS = 53;
+    public static final int PORT_NTP = 123;
+    public static final int PORT_NETBIOS_NS = 137;
+    public static final int PORT_SNMP = 161;
+    public static final int PORT_SSDP = 1900;
+    public static final int PORT_MDNS = 5353;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Standard query for the NS records of the root zone, recursion desired
+    private static final byte[] DNS_QUERY = {
+            0x12, 0x34, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x02, 0x00, 0x01
+    };
+
+    // PTR query for the list of advertised service types
+    private static final byte[] MDNS_QUERY = buildMdnsQuery();
+
+    // NTP v3 client request, the rest of the 48 byte header is left as zero
+    private static final byte[] NTP_REQUEST = buildNtpRequest();
+
+    // Node status (NBSTAT) query for the wildcard name "*"
+    private static final byte[] NETBIOS_NS_QUERY = buildNetbiosNodeStatusQuery();
+
+    // SNMP v1 GetRequest for sysDescr.0 with the community "public"
+    private static final byte[] SNMP_GET_REQUEST = {
+            0x30, 0x29,
+            0x02, 0x01, 0x00,
+            0x04, 0x06, 'p', 'u', 'b', 'l', 'i', 'c',
+            (byte) 0xa0, 0x1c,
+            0x02, 0x04, 0x12, 0x34, 0x56, 0x78,
+            0x02, 0x01, 0x00,
+            0x02, 0x01, 0x00,
+            0x30, 0x0e,
+            0x30, 0x0c,
+            0x06, 0x08, 0x2b, 0x06, 0x01, 0x02, 0x01, 0x01, 0x01, 0x00,
+            0x05, 0x00
+    };
+
+    private static final byte[] SSDP_SEARCH = ("M-SEARCH * HTTP/1.1\r\n" +
+            "HOST: 239.255.255.250:1900\r\n" +
+            "MAN: \"ssdp:discover\"\r\n" +
+            "MX: 1\r\n" +
+            "ST: ssdp:all\r\n" +
+            "\r\n").getBytes(ASCII);
+
+    private final HashMap<Integer, byte[]> payloads = new HashMap<>();
+
+    /**
+     * Create an empty table, see {@link #defaults()} for the built in payloads
+     */
+    public UDPPayloads() {
+    }
+
+    /**
+     * @return a new table containing the payloads for DNS, mDNS, NTP, NetBIOS name service, SNMP
+     * and SSDP on their well known ports
+     */
+    public static UDPPayloads defaults() {
+        return new UDPPayloads()
+                .put(PORT_DNS, DNS_QUERY)
+                .put(PORT_MDNS, MDNS_QUERY)
+                .put(PORT_NTP, NTP_REQUEST)
+                .put(PORT_NETBIOS_NS, NETBIOS_NS_QUERY)
+                .put(PORT_SNMP, SNMP_GET_REQUEST)
+                .put(PORT_SSDP, SSDP_SEARCH);
+    }
+
+    /**
+     * Set the payload to send to a port, e.g. to probe a service on a non standard port with the
+     * payload for its usual one: {@code payloads.put(8053, payloads.get(UDPPayloads.PORT_DNS))}
+     *
+     * @param portNo  - the port
+     * @param payload - the datagram to send, or null to remove the port
+     * @return this object to allow chaining
+     */
+    public synchronized UDPPayloads put(int portNo, byte[] payload) {
+        if (portNo < PortSet.MIN_PORT || portNo > PortSet.MAX_PORT) {
+            throw new IllegalArgumentException("Invalid port " + portNo);
+        }
+        if (payload == null) {
+            payloads.remove(portNo);
+        } else {
+            payloads.put(portNo, payload.clone());
+        }
+        return this;
+    }
+
+    /**
+     * @param portNo - the port
+     * @return the payload to send to the port, or null if there isn't one. This must not be modified.
+     */
+    public synchronized byte[] get(int portNo) {
+        return payloads.get(portNo);
+    }
+
+    private static byte[] buildNtpRequest() {
+        byte[] request = new byte[48];
+        // Leap indicator 0, version 3, mode 3 (client)
+        request[0] = 0x1b;
+        return request;
+    }
+
+    private static byte[] buildMdnsQuery() {
+        String[] labels = {"_services", "_dns-sd", "_udp", "local"};
+        int length = 12 + 1 + 4;
+        for (String label : labels) {
+            length += 1 + label.length();
+        }
+        byte[] query = new byte[length];
+        // Id 0 and no flags as mDNS expects, one question
+        query[5] = 1;
+        int i = 12;
+        for (String label : labels) {
+            query[i++] = (byte) label.length();
+            byte[] bytes = label.getBytes(ASCII);
+            System.arraycopy(bytes, 0, query, i, bytes.length);
+            i += bytes.length;
+        }
+        query[i++] = 0;
+        // Type PTR, class IN
+        query[i++] = 0x00;
+        query[i++] = 0x0c;
+        query[i++] = 0x00;
+        query[i] = 0x01;
+        return query;
+    }
+
+    private static byte[] buildNetbiosNodeStatusQuery() {
+        byte[] query = new byte[50];
+        query[0] = 0x12;
+        query[1] = 0x34;
+        // One question
+        query[5] = 1;
+        // The name "*" padded with nulls to 16 bytes, first level encoded to 32 bytes
+        query[12] = 0x20;
+        query[13] = 'C';
+        query[14] = 'K';
+        for (int i = 15; i < 45; i++) {
+            query[i] = 'A';
+        }
+        query[45] = 0;
+        // Type NBSTAT, class IN
+        query[46] = 0x00;
+        query[47] = 0x21;
+        query[48] = 0x00;
+        query[49] = 0x01;
+        return query;
+    }
+}
@@ -13,6 +13,12 @@ public class Device {
         this.hostname = ip.getCanonicalHostName();
     }
 
+    // Used when restoring a device found earlier, to avoid looking the hostname up again
+    Device(String ip, String hostname) {
+        this.ip = ip;
+        this.hostname = hostname;
+    }
+
     @Override
     public String toString() {
         return "Device{" +
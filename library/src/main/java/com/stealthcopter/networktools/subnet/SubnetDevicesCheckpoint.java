@@ -0,0 +1,281 @@
+package com.stealthcopter.networktools.subnet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the progress of a subnet device scan on disk so that an interrupted scan can be resumed.
+ *
+ * Keeps the addresses already pinged and the devices found. Addresses in the scan's range are
+ * kept as a bitmap of their offsets from the start of the range, so even a /8 takes 2MB in memory
+ * and only the words with progress in them are written. Addresses listed outside of the range
+ * are kept as strings. The file is written in the same way as
+ * {@link com.stealthcopter.networktools.portscanning.PortScanCheckpoint}: at most once per save
+ * interval, to a temporary file which is then renamed over the previous checkpoint.
+ */
+public class SubnetDevicesCheckpoint {
+
+    public static final long DEFAULT_SAVE_INTERVAL_MILLIS = 10000;
+
+    private static final int MAGIC = 0x414e5444;
+    private static final int VERSION = 2;
+
+    private final File file;
+    private final int rangeStart;
+    private final int rangeSize;
+    private final AtomicLongArray rangeScanned;
+    private final Set<String> scanned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentLinkedQueue<Device> devices = new ConcurrentLinkedQueue<>();
+    private volatile long saveIntervalNanos = DEFAULT_SAVE_INTERVAL_MILLIS * 1000000L;
+    private final AtomicLong lastSaveNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * Create an empty checkpoint for a scan of listed addresses only, see {@link #load(File)} to
+     * resume from an existing one
+     *
+     * @param file - the file to save to
+     */
+    public SubnetDevicesCheckpoint(File file) {
+        this(file, 0, 0);
+    }
+
+    /**
+     * Create an empty checkpoint, see {@link #load(File)} to resume from an existing one
+     *
+     * @param file       - the file to save to
+     * @param rangeStart - the first IPv4 address of the scan's range, as an int
+     * @param rangeSize  - the number of addresses in the range, 0 for none
+     */
+    public SubnetDevicesCheckpoint(File file, int rangeStart, int rangeSize) {
+        if (file == null) throw new IllegalArgumentException("File cannot be null");
+        if (rangeSize < 0) throw new IllegalArgumentException("Range size cannot be less than 0");
+        this.file = file;
+        this.rangeStart = rangeStart;
+        this.rangeSize = rangeSize;
+        this.rangeScanned = new AtomicLongArray((int) ((rangeSize + 63L) >>> 6));
+    }
+
+    /**
+     * Load a checkpoint saved by an earlier scan, check it is for the same range with
+     * {@link #isForRange(int, int)}
+     *
+     * @param file - the file to load from and save to
+     * @return the checkpoint, empty and without a range if the file does not exist
+     * @throws IOException - if the file can't be read or is not a checkpoint
+     */
+    public static SubnetDevicesCheckpoint load(File file) throws IOException {
+        if (!file.exists()) return new SubnetDevicesCheckpoint(file);
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        SubnetDevicesCheckpoint checkpoint;
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a subnet devices checkpoint");
+            int version = in.readUnsignedByte();
+            if (version != VERSION) throw new IOException("Unsupported checkpoint version " + version);
+
+            int rangeStart = in.readInt();
+            int rangeSize = in.readInt();
+            if (rangeSize < 0) throw new IOException("Invalid range size " + rangeSize);
+            checkpoint = new SubnetDevicesCheckpoint(file, rangeStart, rangeSize);
+            int noUsedWords = in.readInt();
+            for (int i = 0; i < noUsedWords; i++) {
+                int word = in.readInt();
+                if (word < 0 || word >= checkpoint.rangeScanned.length()) throw new IOException("Invalid range bitmap");
+                checkpoint.rangeScanned.set(word, in.readLong());
+            }
+
+            int noScanned = in.readInt();
+            for (int i = 0; i < noScanned; i++) {
+                checkpoint.scanned.add(in.readUTF());
+            }
+            int noDevices = in.readInt();
+            for (int i = 0; i < noDevices; i++) {
+                String ip = in.readUTF();
+                Device device = new Device(ip, in.readBoolean() ? in.readUTF() : null);
+                device.mac = in.readBoolean() ? in.readUTF() : null;
+                device.time = in.readFloat();
+                checkpoint.devices.add(device);
+            }
+        } finally {
+            in.close();
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @param saveIntervalMillis - minimum time between saves while scanning
+     * @return this object to allow chaining
+     */
+    public SubnetDevicesCheckpoint setSaveIntervalMillis(long saveIntervalMillis) {
+        if (saveIntervalMillis < 0) throw new IllegalArgumentException("Save interval cannot be less than 0");
+        this.saveIntervalNanos = saveIntervalMillis * 1000000L;
+        return this;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param rangeStart - the first IPv4 address of the scan's range, as an int
+     * @param rangeSize  - the number of addresses in the range
+     * @return true if this checkpoint records the progress of a scan over the same range
+     */
+    public boolean isForRange(int rangeStart, int rangeSize) {
+        return this.rangeSize == rangeSize && (rangeSize == 0 || this.rangeStart == rangeStart);
+    }
+
+    /**
+     * Record that a listed address has been pinged, this is safe to call from many threads at once
+     *
+     * @param address - the address pinged
+     * @param device  - the device found at the address, or null if it did not reply
+     */
+    public void markScanned(String address, Device device) {
+        // Device first, so that a save which sees the address scanned also sees the device
+        if (device != null) devices.add(device);
+        scanned.add(address);
+    }
+
+    /**
+     * Record that an address in the range has been pinged, this is safe to call from many threads
+     * at once
+     *
+     * @param offset - the address pinged, as an offset from the start of the range
+     * @param device - the device found at the address, or null if it did not reply
+     */
+    public void markScanned(int offset, Device device) {
+        if (offset < 0 || offset >= rangeSize) throw new IllegalArgumentException("Offset " + offset + " is not in the range");
+        // Device first, so that a save which sees the address scanned also sees the device
+        if (device != null) devices.add(device);
+        int word = offset >>> 6;
+        long mask = 1L << offset;
+        while (true) {
+            long current = rangeScanned.get(word);
+            if ((current & mask) != 0 || rangeScanned.compareAndSet(word, current, current | mask)) return;
+        }
+    }
+
+    /**
+     * @param address - the address to check
+     * @return true if the address has already been pinged
+     */
+    public boolean isScanned(String address) {
+        return scanned.contains(address);
+    }
+
+    /**
+     * @param offset - the address to check, as an offset from the start of the range
+     * @return true if the address has already been pinged
+     */
+    public boolean isScanned(int offset) {
+        if (offset < 0 || offset >= rangeSize) return false;
+        return (rangeScanned.get(offset >>> 6) & (1L << offset)) != 0;
+    }
+
+    /**
+     * @return the devices already found
+     */
+    public ArrayList<Device> getDevices() {
+        return new ArrayList<>(devices);
+    }
+
+    /**
+     * Save the checkpoint if the save interval has passed since it was last saved. Errors are
+     * logged rather than thrown so that a full disk does not stop the scan.
+     */
+    public void saveIfDue() {
+        long last = lastSaveNanos.get();
+        long now = System.nanoTime();
+        if (now - last < saveIntervalNanos) return;
+        // Only one of the threads that notice the interval has passed saves
+        if (!lastSaveNanos.compareAndSet(last, now)) return;
+        try {
+            save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the checkpoint to its file now
+     *
+     * @throws IOException - if the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        lastSaveNanos.set(System.nanoTime());
+
+        // Addresses before devices, see markScanned
+        long[] rangeScanned = new long[this.rangeScanned.length()];
+        int noUsedWords = 0;
+        for (int i = 0; i < rangeScanned.length; i++) {
+            rangeScanned[i] = this.rangeScanned.get(i);
+            if (rangeScanned[i] != 0) noUsedWords++;
+        }
+        ArrayList<String> scanned = new ArrayList<>(this.scanned);
+        ArrayList<Device> devices = new ArrayList<>(this.devices);
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(rangeStart);
+            out.writeInt(rangeSize);
+            out.writeInt(noUsedWords);
+            for (int i = 0; i < rangeScanned.length; i++) {
+                if (rangeScanned[i] == 0) continue;
+                out.writeInt(i);
+                out.writeLong(rangeScanned[i]);
+            }
+            out.writeInt(scanned.size());
+            for (String address : scanned) {
+                out.writeUTF(address);
+            }
+            out.writeInt(devices.size());
+            for (Device device : devices) {
+                out.writeUTF(device.ip);
+                writeNullableUTF(out, device.hostname);
+                writeNullableUTF(out, device.mac);
+                out.writeFloat(device.time);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            // Some platforms won't rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not replace checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Delete the checkpoint file, e.g. once the scan has completed
+     *
+     * @return true if the file was deleted
+     */
+    public synchronized boolean delete() {
+        return file.delete();
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+}
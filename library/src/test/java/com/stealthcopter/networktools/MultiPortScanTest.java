@@ -0,0 +1,50 @@
+package com.stealthcopter.networktools;
+
+import com.stealthcopter.networktools.portscanning.PortSet;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MultiPortScanTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnNoAddresses() throws Exception {
+        MultiPortScan.onAddresses(new ArrayList<InetAddress>());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnInvalidMaxInFlightPerHost() throws Exception {
+        MultiPortScan.onAddressStrings(Arrays.asList("127.0.0.1")).setMaxInFlightPerHost(0);
+    }
+
+    @Test
+    public void testScanFindsOpenPortOnCorrectHost() throws Exception {
+        InetAddress listening = InetAddress.getByName("127.0.0.1");
+        InetAddress other = InetAddress.getByName("127.0.0.2");
+        ServerSocket serverSocket = new ServerSocket(0, 50, listening);
+        int openPort = serverSocket.getLocalPort();
+        try {
+            PortSet ports = PortSet.range(openPort, Math.min(openPort + 10, PortSet.MAX_PORT));
+
+            HashMap<InetAddress, PortSet> threaded = MultiPortScan.onAddresses(Arrays.asList(listening, other))
+                    .setPorts(ports).setMethodTCP().setNoThreads(4).doScan();
+            HashMap<InetAddress, PortSet> nio = MultiPortScan.onAddresses(Arrays.asList(listening, other))
+                    .setPorts(ports).setMethodTCPNio().setMaxInFlightPerHost(2).doScan();
+
+            for (HashMap<InetAddress, PortSet> results : Arrays.asList(threaded, nio)) {
+                assertEquals(Arrays.asList(openPort), results.get(listening).toList());
+                assertTrue(results.get(other).isEmpty());
+            }
+        } finally {
+            serverSocket.close();
+        }
+    }
+}
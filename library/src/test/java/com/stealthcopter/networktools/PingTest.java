@@ -23,4 +23,9 @@ public class PingTest {
         Ping.onAddress("127.0.0.1").setTimes(-1);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnInvalidPingMethod() throws Exception {
+        Ping.onAddress("127.0.0.1").setPingMethod(5);
+    }
+
 }
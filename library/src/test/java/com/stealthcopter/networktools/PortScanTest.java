@@ -1,7 +1,22 @@
 package com.stealthcopter.networktools;
 
+import com.stealthcopter.networktools.portscanning.PortResult;
+import com.stealthcopter.networktools.portscanning.PortResultIterator;
+import com.stealthcopter.networktools.portscanning.PortSet;
+import com.stealthcopter.networktools.portscanning.ServiceInfo;
+
 import org.junit.Test;
 
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * To work on unit tests, switch the Test Artifact in the Build Variants view.
  */
@@ -20,4 +35,132 @@ public class PortScanTest {
     public void testIllegalArgumentThrownOnInvalidPortHigh() throws Exception {
         PortScan.onAddress("127.0.0.1").setPort(65536);
     }
-}
\ No newline at end of file
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnInvalidMaxInFlight() throws Exception {
+        PortScan.onAddress("127.0.0.1").setMaxInFlight(0);
+    }
+
+    @Test
+    public void testNioScanFindsOpenPort() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        int openPort = serverSocket.getLocalPort();
+        try {
+            ArrayList<Integer> ports = new ArrayList<>();
+            ports.add(openPort);
+            for (int i = 1; i <= 20; i++) {
+                if (openPort + i <= 65535) ports.add(openPort + i);
+            }
+
+            ArrayList<Integer> openPorts = PortScan.onAddress("127.0.0.1").setPorts(ports).setMethodTCPNio().doScan();
+
+            assertEquals(1, openPorts.size());
+            assertEquals(openPort, (int) openPorts.get(0));
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testStreamReturnsEveryResultWithSmallBuffer() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        int openPort = serverSocket.getLocalPort();
+        try {
+            PortSet ports = PortSet.range(openPort, Math.min(openPort + 10, PortSet.MAX_PORT));
+
+            for (PortScan portScan : new PortScan[]{
+                    PortScan.onAddress("127.0.0.1").setPorts(ports).setMethodTCP(),
+                    PortScan.onAddress("127.0.0.1").setPorts(ports).setMethodTCPNio()}) {
+
+                PortResultIterator results = portScan.doScanStream(2);
+                int noResults = 0;
+                int noOpen = 0;
+                while (results.hasNext()) {
+                    PortResult result = results.next();
+                    noResults++;
+                    if (result.isOpen()) {
+                        noOpen++;
+                        assertEquals(openPort, result.getPortNo());
+                    }
+                }
+
+                assertEquals(ports.size(), noResults);
+                assertEquals(1, noOpen);
+            }
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void testClosingStreamStopsScan() throws Exception {
+        PortResultIterator results = PortScan.onAddress("127.0.0.1").setPortsAll().setMethodTCPNio().doScanStream(1);
+        results.next();
+        results.close();
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void testCancelAbortsProbesInFlight() throws Exception {
+        // Nothing is ever sent back, so without cancellation each probe waits the full timeout
+        DatagramSocket silentSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        try {
+            final PortScan portScan = PortScan.onAddress("127.0.0.1")
+                    .setPort(silentSocket.getLocalPort()).setMethodUDP().setTimeOutMillis(10000);
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ignored) {
+                    }
+                    portScan.cancel();
+                }
+            }).start();
+
+            long startMillis = System.currentTimeMillis();
+            ArrayList<Integer> openPorts = portScan.doScan();
+
+            assertTrue(System.currentTimeMillis() - startMillis < 2000);
+            assertTrue(openPorts.isEmpty());
+        } finally {
+            silentSocket.close();
+        }
+    }
+
+    @Test
+    public void testServiceDetectionReadsBanner() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        socket.getOutputStream().write("SSH-2.0-Test\r\n".getBytes("US-ASCII"));
+                        socket.close();
+                    }
+                } catch (Exception ignored) {
+                    // Closed at the end of the test
+                }
+            }
+        });
+        server.start();
+        try {
+            for (PortScan portScan : new PortScan[]{
+                    PortScan.onAddress("127.0.0.1").setPort(serverSocket.getLocalPort()).setMethodTCP(),
+                    PortScan.onAddress("127.0.0.1").setPort(serverSocket.getLocalPort()).setMethodTCPNio()}) {
+
+                portScan.setServiceDetection(true).doScan();
+
+                ArrayList<ServiceInfo> services = portScan.getServices();
+                assertEquals(1, services.size());
+                assertEquals(ServiceInfo.SERVICE_SSH, services.get(0).service);
+                assertEquals("SSH-2.0-Test", services.get(0).banner);
+            }
+        } finally {
+            serverSocket.close();
+        }
+    }
+}
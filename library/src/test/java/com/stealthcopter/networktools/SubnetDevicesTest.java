@@ -1,4 +1,50 @@
 package com.stealthcopter.networktools;
 
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+import com.stealthcopter.networktools.subnet.Device;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class SubnetDevicesTest {
+
+    @Test
+    public void testSocketPingsFinishWithATightDescriptorBudget() throws Exception {
+        DescriptorBudget previous = DescriptorBudget.getDefault();
+        // Only enough for a single process ping, which held it all while its socket ping waited
+        DescriptorBudget.setDefault(new DescriptorBudget(3));
+        try {
+            final CountDownLatch finished = new CountDownLatch(1);
+            final ArrayList<Device> found = new ArrayList<>();
+            SubnetDevices.fromIPList(Arrays.asList("127.0.0.1", "127.0.0.2", "127.0.0.3", "127.0.0.4"))
+                    .setPingMethod(Ping.PING_TCP)
+                    .setTimeOutMillis(500)
+                    .setNoThreads(4)
+                    .findDevices(new SubnetDevices.OnSubnetDeviceFound() {
+                        @Override
+                        public void onDeviceFound(Device device) {
+                        }
+
+                        @Override
+                        public void onFinished(ArrayList<Device> devicesFound) {
+                            found.addAll(devicesFound);
+                            finished.countDown();
+                        }
+                    });
+
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            // Whether port 80 accepts or refuses the connection each host is up
+            assertEquals(4, found.size());
+        } finally {
+            DescriptorBudget.setDefault(previous);
+        }
+    }
+
 }
@@ -0,0 +1,71 @@
+package com.stealthcopter.networktools.concurrency;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AIMDControllerTest {
+
+    private static final long RTT_NANOS = 2000000L;
+
+    private void completeEpoch(AIMDController controller, int timeouts) {
+        int window = controller.getWindow();
+        for (int i = 0; i < window; i++) {
+            assertTrue(controller.tryAcquire());
+        }
+        for (int i = 0; i < window; i++) {
+            controller.onCompleted(i < timeouts, RTT_NANOS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnInvalidWindow() {
+        new AIMDController(10, 20, 100);
+    }
+
+    @Test
+    public void testWindowLimitsInFlight() {
+        AIMDController controller = new AIMDController(2);
+        assertTrue(controller.tryAcquire());
+        assertTrue(controller.tryAcquire());
+        assertFalse(controller.tryAcquire());
+        controller.release();
+        assertTrue(controller.tryAcquire());
+        assertEquals(2, controller.getInFlight());
+    }
+
+    @Test
+    public void testWindowGrowsWhileLossFree() {
+        AIMDController controller = new AIMDController(10, 1, 100);
+        completeEpoch(controller, 0);
+        assertEquals(20, controller.getWindow());
+        completeEpoch(controller, 0);
+        assertEquals(40, controller.getWindow());
+    }
+
+    @Test
+    public void testWindowHalvesOnTimeoutSpike() {
+        AIMDController controller = new AIMDController(10, 1, 100);
+        completeEpoch(controller, 0);
+        completeEpoch(controller, 0);
+        assertEquals(40, controller.getWindow());
+
+        completeEpoch(controller, 20);
+        assertEquals(20, controller.getWindow());
+
+        // Out of slow start, so growth is now additive
+        completeEpoch(controller, 0);
+        assertEquals(21, controller.getWindow());
+    }
+
+    @Test
+    public void testSteadyTimeoutRateIsNotCongestion() {
+        AIMDController controller = new AIMDController(10, 1, 1000);
+        completeEpoch(controller, 5);
+        assertEquals(20, controller.getWindow());
+        completeEpoch(controller, 10);
+        assertEquals(40, controller.getWindow());
+    }
+}
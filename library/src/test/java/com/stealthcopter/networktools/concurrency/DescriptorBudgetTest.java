@@ -0,0 +1,73 @@
+package com.stealthcopter.networktools.concurrency;
+
+import com.stealthcopter.networktools.portscanning.PortResult;
+import com.stealthcopter.networktools.portscanning.PortScanTCPNio;
+import com.stealthcopter.networktools.portscanning.PortSet;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DescriptorBudgetTest {
+
+    @Test
+    public void testBudgetFromProcessLimit() {
+        DescriptorBudget budget = DescriptorBudget.fromProcessLimit();
+        assertTrue(budget.getDescriptors() >= 16);
+        assertEquals(budget.getDescriptors(), budget.getAvailable());
+    }
+
+    @Test
+    public void testCancelledWaitGivesUp() throws Exception {
+        DescriptorBudget budget = new DescriptorBudget(2);
+        Cancellation cancellation = new Cancellation();
+        assertTrue(budget.acquire(2, cancellation));
+        assertEquals(0, budget.getAvailable());
+
+        cancellation.cancel();
+        assertFalse(budget.acquire(1, cancellation));
+        budget.release(2);
+        assertEquals(2, budget.getAvailable());
+    }
+
+    @Test
+    public void testOutOfDescriptorsRecognised() {
+        assertTrue(DescriptorBudget.isOutOfDescriptors(new SocketException("Too many open files")));
+        assertFalse(DescriptorBudget.isOutOfDescriptors(new SocketException("Connection refused")));
+    }
+
+    @Test
+    public void testScanQueuesProbesWhenBudgetUsedUp() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket server = new ServerSocket(0, 50, localhost);
+        try {
+            PortSet ports = PortSet.range(1, 20);
+            ports.add(server.getLocalPort());
+
+            DescriptorBudget budget = new DescriptorBudget(1);
+            final HashMap<Integer, Integer> states = new HashMap<>();
+            PortScanTCPNio scanner = new PortScanTCPNio(1000, 50);
+            scanner.setDescriptorBudget(budget);
+            scanner.scan(localhost, ports, new PortScanTCPNio.PortResultListener() {
+                @Override
+                public void onResult(InetAddress ia, int portNo, int state) {
+                    states.put(portNo, state);
+                }
+            });
+
+            assertEquals(ports.size(), states.size());
+            assertEquals(PortResult.STATE_OPEN, (int) states.get(server.getLocalPort()));
+            assertEquals(1, budget.getAvailable());
+        } finally {
+            server.close();
+        }
+    }
+
+}
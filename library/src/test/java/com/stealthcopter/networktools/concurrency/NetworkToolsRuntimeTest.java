@@ -0,0 +1,183 @@
+package com.stealthcopter.networktools.concurrency;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NetworkToolsRuntimeTest {
+
+    @Test
+    public void testExecutorLimitsTasksRunningAtOnce() throws Exception {
+        NetworkToolsRuntime runtime = new NetworkToolsRuntime(16);
+        ExecutorService executor = runtime.newExecutor(3);
+
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int nowActive = active.incrementAndGet();
+                    synchronized (maxActive) {
+                        if (nowActive > maxActive.get()) maxActive.set(nowActive);
+                    }
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    active.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(50, completed.get());
+        assertTrue(maxActive.get() <= 3);
+        runtime.shutdown();
+    }
+
+    @Test
+    public void testShutdownNowReturnsWaitingTasksAndLeavesWorkersUsable() throws Exception {
+        NetworkToolsRuntime runtime = new NetworkToolsRuntime(4);
+        ExecutorService executor = runtime.newExecutor(1);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        Runnable waiting = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        executor.execute(waiting);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Runnable> neverRun = executor.shutdownNow();
+        assertEquals(1, neverRun.size());
+        assertTrue(neverRun.get(0) == waiting);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        // The shared workers carry on for other operations
+        final CountDownLatch ran = new CountDownLatch(1);
+        runtime.newExecutor(1).execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!Thread.currentThread().isInterrupted()) ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        runtime.shutdown();
+    }
+
+    @Test
+    public void testOperationCannotTakeEveryWorker() throws Exception {
+        NetworkToolsRuntime runtime = new NetworkToolsRuntime(4);
+        ExecutorService scan = runtime.newExecutor(1000);
+        ExecutorService stuck = runtime.newExecutor(4);
+
+        final CountDownLatch scanned = new CountDownLatch(40);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        for (int i = 0; i < 40; i++) {
+            scan.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // How many workers the other operation holds while the scan is running
+                    int nowActive = active.get();
+                    synchronized (maxActive) {
+                        if (nowActive > maxActive.get()) maxActive.set(nowActive);
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    scanned.countDown();
+                }
+            });
+        }
+
+        // Tasks that never finish by themselves, without a fair share they would take every worker
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            stuck.execute(new Runnable() {
+                @Override
+                public void run() {
+                    active.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    active.decrementAndGet();
+                }
+            });
+        }
+
+        assertTrue(scanned.await(5, TimeUnit.SECONDS));
+        assertTrue(maxActive.get() <= 2);
+
+        // Once the scan is done the other operation gets every worker
+        long deadline = System.currentTimeMillis() + 5000;
+        while (active.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, active.get());
+        release.countDown();
+        stuck.shutdown();
+        assertTrue(stuck.awaitTermination(5, TimeUnit.SECONDS));
+        scan.shutdown();
+        runtime.shutdown();
+    }
+
+    @Test
+    public void testVirtualThreadRuntimeRunsTasksOrIsUnsupported() throws Exception {
+        if (!NetworkToolsRuntime.isVirtualThreadsSupported()) {
+            try {
+                NetworkToolsRuntime.newVirtualThreadRuntime();
+                fail("Expected UnsupportedOperationException");
+            } catch (UnsupportedOperationException e) {
+                // Expected before JDK 21
+            }
+            return;
+        }
+
+        NetworkToolsRuntime runtime = NetworkToolsRuntime.newVirtualThreadRuntime();
+        ExecutorService executor = runtime.newExecutor(10000);
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        runtime.shutdown();
+    }
+
+}
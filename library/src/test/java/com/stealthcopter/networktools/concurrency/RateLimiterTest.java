@@ -0,0 +1,36 @@
+package com.stealthcopter.networktools.concurrency;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnInvalidRate() {
+        new RateLimiter(0);
+    }
+
+    @Test
+    public void testAcquireHoldsToRate() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(100, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 21; i++) {
+            rateLimiter.acquire();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        assertTrue("Took " + elapsedMillis + "ms", elapsedMillis >= 190);
+    }
+
+    @Test
+    public void testTryAcquireReportsWait() {
+        RateLimiter rateLimiter = new RateLimiter(10, 2);
+        assertEquals(0, rateLimiter.tryAcquire());
+        assertEquals(0, rateLimiter.tryAcquire());
+
+        long waitNanos = rateLimiter.tryAcquire();
+        assertTrue(waitNanos > 0);
+        assertTrue(waitNanos <= 100000000L);
+    }
+}
@@ -0,0 +1,48 @@
+package com.stealthcopter.networktools.concurrency;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResultDispatcherTest {
+
+    @Test
+    public void testHandlerCalledOnceAtATimeForEveryResult() throws Exception {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final int[] delivered = {0};
+
+        final ResultDispatcher<Integer> dispatcher = new ResultDispatcher<>(new ResultDispatcher.Handler<Integer>() {
+            @Override
+            public void onResult(Integer result) {
+                int nowActive = active.incrementAndGet();
+                if (nowActive > maxActive.get()) maxActive.set(nowActive);
+                delivered[0]++;
+                active.decrementAndGet();
+            }
+        });
+
+        final int noThreads = 8;
+        final int perThread = 5000;
+        final CountDownLatch done = new CountDownLatch(noThreads);
+        for (int t = 0; t < noThreads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        dispatcher.dispatch(i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        dispatcher.drain();
+
+        assertEquals(1, maxActive.get());
+        assertEquals(noThreads * perThread, delivered[0]);
+    }
+}
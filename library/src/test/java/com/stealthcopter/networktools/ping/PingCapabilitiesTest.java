@@ -0,0 +1,108 @@
+package com.stealthcopter.networktools.ping;
+
+import com.stealthcopter.networktools.Ping;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PingCapabilitiesTest {
+
+    @After
+    public void tearDown() {
+        PingCapabilities.set(null);
+    }
+
+    @Test
+    public void testDetectedOnceAndReused() {
+        PingCapabilities capabilities = PingCapabilities.get();
+        assertNotNull(capabilities);
+        assertSame(capabilities, PingCapabilities.get());
+    }
+
+    @Test
+    public void testNativeOnlyFailsStraightAwayWithoutBinary() throws Exception {
+        PingCapabilities.set(new PingCapabilities(null, null, true));
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        assertFalse(PingTools.hasNativePing(address));
+
+        PingResult pingResult = PingTools.doPing(address, new PingOptions(), null, Ping.PING_NATIVE);
+        assertFalse(pingResult.isReachable());
+        assertEquals("Native ping not available", pingResult.getError());
+    }
+
+    @Test
+    public void testFallsBackToTcpWithoutJavaPing() throws Exception {
+        PingCapabilities.set(new PingCapabilities(null, null, false));
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+
+        PingResult pingResult = PingTools.doPing(address, new PingOptions(), null, Ping.PING_JAVA);
+        assertFalse(pingResult.isReachable());
+        assertEquals("Java ping not available", pingResult.getError());
+
+        // Whether port 80 accepts or refuses the connection the host is up
+        pingResult = PingTools.doPing(address, new PingOptions(), null, Ping.PING_HYBRID);
+        assertTrue(pingResult.isReachable());
+    }
+
+    @Test
+    public void testBinaryChosenByAddressFamily() throws Exception {
+        PingCapabilities.set(new PingCapabilities("/system/bin/ping", null, true));
+        assertTrue(PingTools.hasNativePing(InetAddress.getByName("127.0.0.1")));
+        assertFalse(PingTools.hasNativePing(InetAddress.getByName("::1")));
+        assertEquals("/system/bin/ping", PingNative.getPingCommand("127.0.0.1"));
+        assertEquals("ping6", PingNative.getPingCommand("::1"));
+    }
+
+    /**
+     * @return whether a ping binary that prints the output and exits with the code given is
+     * counted as working
+     */
+    private static boolean isWorkingPing(String output, int exit) throws Exception {
+        File script = File.createTempFile("ping", ".sh");
+        try {
+            FileWriter writer = new FileWriter(script);
+            writer.write("#!/bin/sh\necho \"" + output + "\"\nexit " + exit + "\n");
+            writer.close();
+            assertTrue(script.setExecutable(true));
+            return PingCapabilities.isWorkingPing(script.getPath(), "127.0.0.1", "0.5");
+        } finally {
+            script.delete();
+        }
+    }
+
+    @Test
+    public void testPingThatRejectsTimeoutIsNotWorking() throws Exception {
+        // Busybox prints this and exits 1 for a fractional -W
+        assertFalse(isWorkingPing("ping: invalid number '0.5'", 1));
+    }
+
+    @Test
+    public void testPingWithoutPermissionIsNotWorking() throws Exception {
+        assertFalse(isWorkingPing("ping: permission denied (are you root?)", 1));
+        assertTrue(isWorkingPing("64 bytes from 127.0.0.1: seq=0 ttl=64 time=0.067 ms", 0));
+    }
+
+    @Test
+    public void testSubSecondTimeouts() {
+        PingOptions pingOptions = new PingOptions();
+        pingOptions.setTimeoutMillis(50);
+        assertEquals(50, pingOptions.getTimeoutMillis());
+
+        PingCapabilities.set(new PingCapabilities("ping", true, "ping6", false, true));
+        assertEquals("0.050", PingNative.getTimeoutArgument("127.0.0.1", 50));
+        // Rounded up for a binary that only takes whole seconds
+        assertEquals("1", PingNative.getTimeoutArgument("::1", 50));
+        assertEquals("2", PingNative.getTimeoutArgument("::1", 1500));
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.stealthcopter.networktools.ping;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PingNativeSessionTest {
+
+    private static PingNativeSession newSession(int count) throws Exception {
+        return new PingNativeSession(InetAddress.getByName("127.0.0.1"), new PingOptions(), 500, count);
+    }
+
+    private static List<PingResult> drain(PingNativeSession session) {
+        List<PingResult> results = new ArrayList<>();
+        PingResult pingResult;
+        while ((pingResult = session.poll()) != null) {
+            results.add(pingResult);
+        }
+        return results;
+    }
+
+    @Test
+    public void testRepliesParsedAsTheyArrive() throws Exception {
+        PingNativeSession session = newSession(0);
+        session.parseLine("PING 127.0.0.1 (127.0.0.1) 56(84) bytes of data.");
+        assertEquals(0, drain(session).size());
+
+        session.parseLine("64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=0.251 ms");
+        List<PingResult> results = drain(session);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isReachable());
+        assertEquals(0.251f, results.get(0).getTimeTaken(), 0.0001f);
+
+        session.parseLine("From 192.168.0.1 icmp_seq=2 Destination Host Unreachable");
+        results = drain(session);
+        assertEquals(1, results.size());
+        assertFalse(results.get(0).isReachable());
+        assertEquals("Destination Host Unreachable", results.get(0).getError());
+    }
+
+    @Test
+    public void testSkippedAndOverdueRepliesAreLost() throws Exception {
+        PingNativeSession session = newSession(0);
+        session.parseLine("64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=1.0 ms");
+        session.parseLine("64 bytes from 127.0.0.1: icmp_seq=4 ttl=64 time=1.0 ms");
+        List<PingResult> results = drain(session);
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).isReachable());
+        assertEquals("Timed Out", results.get(1).getError());
+        assertEquals("Timed Out", results.get(2).getError());
+        assertTrue(results.get(3).isReachable());
+
+        // Seq 5 is sent 2 seconds in and given a 1 second timeout
+        session.expire(session.startNanos + 2900 * 1000000L);
+        assertEquals(0, drain(session).size());
+        session.expire(session.startNanos + 3200 * 1000000L);
+        results = drain(session);
+        assertEquals(1, results.size());
+        assertEquals("Timed Out", results.get(0).getError());
+
+        // A reply after it was given up on is ignored
+        session.parseLine("64 bytes from 127.0.0.1: icmp_seq=5 ttl=64 time=1200 ms");
+        assertEquals(0, drain(session).size());
+    }
+
+    @Test
+    public void testCountedSessionAccountsForEveryPing() throws Exception {
+        PingNativeSession session = newSession(3);
+        session.parseLine("64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=1.0 ms");
+        session.endOfStream();
+        List<PingResult> results = drain(session);
+        assertEquals(3, results.size());
+        assertEquals("Timed Out", results.get(2).getError());
+    }
+
+    @Test
+    public void testSequenceNumbersWrapAround() throws Exception {
+        PingNativeSession session = newSession(0);
+        session.parseLine("64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=1.0 ms");
+        assertEquals(1, drain(session).size());
+        session.expire(session.startNanos + 70000L * 500 * 1000000L);
+        List<PingResult> lost = drain(session);
+        assertTrue(lost.size() > 65535);
+
+        // The next reply's icmp_seq has wrapped back past 0
+        int seq = (lost.size() + 2) & 0xFFFF;
+        session.parseLine("64 bytes from 127.0.0.1: icmp_seq=" + seq + " ttl=64 time=1.0 ms");
+        List<PingResult> results = drain(session);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isReachable());
+    }
+
+    @Test
+    public void testErrorsKept() throws Exception {
+        PingNativeSession session = newSession(0);
+        assertNull(session.getError());
+        session.parseLine("ping: unknown host 321321.");
+        assertEquals("ping: unknown host 321321.", session.getError());
+    }
+
+    @Test
+    public void testIntervalFormattedInSeconds() {
+        assertEquals("0.250", PingNative.formatSeconds(250));
+        assertEquals("1.000", PingNative.formatSeconds(1000));
+        assertEquals("2.005", PingNative.formatSeconds(2005));
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.stealthcopter.networktools.ping;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PingOutputParserTest {
+
+    private static final String IPUTILS = "PING 127.0.0.1 (127.0.0.1) 56(84) bytes of data.\n" +
+            "64 bytes from 127.0.0.1: icmp_seq=1 ttl=64 time=0.251 ms\n" +
+            "\n" +
+            "--- 127.0.0.1 ping statistics ---\n" +
+            "1 packets transmitted, 1 received, 0% packet loss, time 0ms\n" +
+            "rtt min/avg/max/mdev = 0.251/0.285/0.300/0.019 ms\n";
+
+    private static final String BUSYBOX = "PING 127.0.0.1 (127.0.0.1): 56 data bytes\n" +
+            "64 bytes from 127.0.0.1: seq=0 ttl=63 time=0.067 ms\n" +
+            "\n" +
+            "--- 127.0.0.1 ping statistics ---\n" +
+            "1 packets transmitted, 1 packets received, 0% packet loss\n" +
+            "round-trip min/avg/max = 0.067/0.067/0.067 ms\n";
+
+    private static InputStream stream(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private static PingResult parse(String s, boolean keepFullString) throws Exception {
+        PingResult pingResult = new PingResult(InetAddress.getByName("127.0.0.1"));
+        return new PingOutputParser(keepFullString).parse(stream(s), pingResult);
+    }
+
+    @Test
+    public void testIputilsOutput() throws Exception {
+        PingResult pingResult = parse(IPUTILS, true);
+        assertTrue(pingResult.isReachable());
+        assertNull(pingResult.getError());
+        assertEquals(0.285f, pingResult.getTimeTaken(), 0.0001f);
+        assertEquals(1, pingResult.getSequenceNumber());
+        assertEquals(64, pingResult.getTimeToLive());
+        assertEquals("0.251/0.285/0.300/0.019", pingResult.result);
+        assertEquals(IPUTILS, pingResult.fullString);
+    }
+
+    @Test
+    public void testBusyboxOutput() throws Exception {
+        PingResult pingResult = parse(BUSYBOX, false);
+        assertTrue(pingResult.isReachable());
+        assertEquals(0.067f, pingResult.getTimeTaken(), 0.0001f);
+        assertEquals(0, pingResult.getSequenceNumber());
+        assertEquals(63, pingResult.getTimeToLive());
+        assertNull(pingResult.fullString);
+        // Small enough to keep even without the full string
+        assertEquals("0.067/0.067/0.067", pingResult.result);
+    }
+
+    @Test
+    public void testLineByLine() throws Exception {
+        PingOutputParser parser = new PingOutputParser(false);
+        InputStream in = stream(IPUTILS);
+
+        assertEquals(PingOutputParser.LINE_OTHER, parser.readLine(in));
+        assertEquals(PingOutputParser.LINE_REPLY, parser.readLine(in));
+        assertEquals(1, parser.getSeq());
+        assertEquals(0.251f, parser.getTime(), 0.0001f);
+        assertEquals(PingOutputParser.LINE_OTHER, parser.readLine(in));
+        assertEquals(PingOutputParser.LINE_OTHER, parser.readLine(in));
+        assertEquals(PingOutputParser.LINE_SUMMARY, parser.readLine(in));
+        assertEquals(1, parser.getTransmitted());
+        assertEquals(1, parser.getReceived());
+        assertEquals(0f, parser.getPacketLoss(), 0f);
+        assertEquals(PingOutputParser.LINE_RTT, parser.readLine(in));
+        assertEquals(0.251f, parser.getMinTime(), 0.0001f);
+        assertEquals(0.300f, parser.getMaxTime(), 0.0001f);
+        assertEquals(0.019f, parser.getMdevTime(), 0.0001f);
+        assertEquals(PingOutputParser.LINE_END, parser.readLine(in));
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        PingResult pingResult = parse("PING 192.168.0.2 (192.168.0.2) 56(84) bytes of data.\n" +
+                "\n" +
+                "--- 192.168.0.2 ping statistics ---\n" +
+                "1 packets transmitted, 0 received, 100% packet loss, time 0ms\n", false);
+        assertFalse(pingResult.isReachable());
+        assertEquals("100% packet loss", pingResult.getError());
+
+        pingResult = parse("ping: unknown host 321321.\n", false);
+        assertEquals("unknown host", pingResult.getError());
+
+        pingResult = parse("ping: bad address '321321.'", false);
+        assertEquals("unknown host", pingResult.getError());
+
+        PingOutputParser parser = new PingOutputParser(false);
+        assertEquals(PingOutputParser.LINE_NO_REPLY, parser.readLine(stream("From 192.168.0.1 icmp_seq=2 Destination Host Unreachable\r\n")));
+        assertEquals(2, parser.getSeq());
+        assertEquals("Destination Host Unreachable", parser.getReason());
+    }
+
+    @Test
+    public void testLegacyStringParsing() throws Exception {
+        PingResult pingResult = PingNative.getPingStats(new PingResult(InetAddress.getByName("127.0.0.1")), IPUTILS);
+        assertTrue(pingResult.isReachable());
+        assertEquals(0.285f, pingResult.getTimeTaken(), 0.0001f);
+        assertEquals(IPUTILS, pingResult.fullString);
+    }
+
+    @Test
+    public void testOverlongLineSkipped() throws Exception {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 2000; i++) longLine.append('x');
+        PingOutputParser parser = new PingOutputParser(false);
+        InputStream in = stream(longLine + "\n64 bytes from 127.0.0.1: icmp_seq=7 ttl=64 time=1.5 ms\n");
+
+        assertEquals(PingOutputParser.LINE_OTHER, parser.readLine(in));
+        assertEquals(PingOutputParser.LINE_REPLY, parser.readLine(in));
+        assertEquals(7, parser.getSeq());
+        assertEquals(PingOutputParser.LINE_END, parser.readLine(in));
+    }
+
+}
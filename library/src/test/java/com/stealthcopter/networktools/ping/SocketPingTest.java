@@ -0,0 +1,106 @@
+package com.stealthcopter.networktools.ping;
+
+import com.stealthcopter.networktools.Ping;
+import com.stealthcopter.networktools.concurrency.DescriptorBudget;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SocketPingTest {
+
+    private static int getClosedPort() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        int port = serverSocket.getLocalPort();
+        serverSocket.close();
+        return port;
+    }
+
+    @Test
+    public void testTcpConnectionAcceptedOrRefusedIsReachable() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket serverSocket = new ServerSocket(0, 50, localhost);
+        try {
+            PingResult pingResult = new SocketPing(SocketPing.PROTOCOL_TCP, serverSocket.getLocalPort(), 1000).ping(localhost);
+            assertTrue(pingResult.isReachable());
+            assertNull(pingResult.getError());
+            assertTrue(pingResult.getTimeTaken() >= 0);
+        } finally {
+            serverSocket.close();
+        }
+
+        PingResult pingResult = new SocketPing(SocketPing.PROTOCOL_TCP, getClosedPort(), 1000).ping(localhost);
+        assertTrue(pingResult.isReachable());
+    }
+
+    @Test
+    public void testUdpPortUnreachableIsReachable() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        DatagramSocket closed = new DatagramSocket(0, localhost);
+        int closedPort = closed.getLocalPort();
+        closed.close();
+        PingResult pingResult = new SocketPing(SocketPing.PROTOCOL_UDP, closedPort, 1000).ping(localhost);
+        assertTrue(pingResult.isReachable());
+    }
+
+    @Test
+    public void testUdpSilenceTimesOut() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        DatagramSocket silent = new DatagramSocket(0, localhost);
+        try {
+            long start = System.nanoTime();
+            PingResult pingResult = new SocketPing(SocketPing.PROTOCOL_UDP, silent.getLocalPort(), 100).ping(localhost);
+            assertFalse(pingResult.isReachable());
+            assertEquals("Timed Out", pingResult.getError());
+            assertTrue(System.nanoTime() - start < 1000000000L);
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testGivesUpWaitingForDescriptorsAfterTimeout() throws Exception {
+        DescriptorBudget budget = new DescriptorBudget(1);
+        budget.acquire();
+        long start = System.nanoTime();
+        PingResult pingResult = new SocketPing(SocketPing.PROTOCOL_TCP, getClosedPort(), 100).setDescriptorBudget(budget).ping(InetAddress.getByName("127.0.0.1"));
+        assertFalse(pingResult.isReachable());
+        assertEquals("Out of file descriptors", pingResult.getError());
+        assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+
+    @Test
+    public void testManyHostsInFlight() throws Exception {
+        final List<PingResult> results = new ArrayList<>();
+        List<InetAddress> addresses = Arrays.asList(InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.3"));
+        new SocketPing(SocketPing.PROTOCOL_TCP, getClosedPort(), 1000).setMaxInFlight(2).ping(addresses, new SocketPing.PingResultListener() {
+            @Override
+            public void onResult(PingResult pingResult) {
+                results.add(pingResult);
+            }
+        });
+        assertEquals(3, results.size());
+    }
+
+    @Test
+    public void testRoutedFromPing() throws Exception {
+        PingResult pingResult = Ping.onAddress("127.0.0.1").setPingMethod(Ping.PING_TCP).setPort(getClosedPort()).doPing();
+        assertTrue(pingResult.isReachable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnInvalidProtocol() throws Exception {
+        new SocketPing(2, 0, 1000);
+    }
+
+}
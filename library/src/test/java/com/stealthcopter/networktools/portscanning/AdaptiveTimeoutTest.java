@@ -0,0 +1,46 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveTimeoutTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void testInitialTimeoutUsedUntilFirstSample() {
+        AdaptiveTimeout adaptiveTimeout = new AdaptiveTimeout(2500);
+        assertFalse(adaptiveTimeout.hasSamples());
+        assertEquals(2500, adaptiveTimeout.getTimeoutMillis());
+    }
+
+    @Test
+    public void testTimeoutShrinksForNearbyHost() {
+        AdaptiveTimeout adaptiveTimeout = new AdaptiveTimeout(2500);
+        for (int i = 0; i < 20; i++) {
+            adaptiveTimeout.addSample((i % 2 == 0 ? 18 : 22) * MILLIS);
+        }
+        int timeout = adaptiveTimeout.getTimeoutMillis();
+        assertTrue(timeout >= AdaptiveTimeout.MIN_TIMEOUT_MILLIS);
+        assertTrue(timeout < 250);
+        assertEquals(20, adaptiveTimeout.getSmoothedRttMillis(), 2);
+    }
+
+    @Test
+    public void testTimeoutGrowsForSlowHost() {
+        AdaptiveTimeout adaptiveTimeout = new AdaptiveTimeout(1000);
+        adaptiveTimeout.addSample(1500 * MILLIS);
+        assertTrue(adaptiveTimeout.getTimeoutMillis() > 1500);
+        assertTrue(adaptiveTimeout.getTimeoutMillis() <= AdaptiveTimeout.MAX_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void testShortInitialTimeoutIsTheFloor() {
+        AdaptiveTimeout adaptiveTimeout = new AdaptiveTimeout(25);
+        adaptiveTimeout.addSample(50000);
+        assertEquals(25, adaptiveTimeout.getTimeoutMillis());
+    }
+}
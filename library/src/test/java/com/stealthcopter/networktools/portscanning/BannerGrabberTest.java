@@ -0,0 +1,37 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BannerGrabberTest {
+
+    private static ServiceInfo identify(int portNo, String reply) throws Exception {
+        byte[] data = reply.getBytes("US-ASCII");
+        return BannerGrabber.identify(InetAddress.getByName("127.0.0.1"), portNo, data, data.length);
+    }
+
+    @Test
+    public void testIdentifiesGreetings() throws Exception {
+        ServiceInfo ssh = identify(2222, "SSH-2.0-OpenSSH_8.9\r\n");
+        assertEquals(ServiceInfo.SERVICE_SSH, ssh.service);
+        assertEquals("SSH-2.0-OpenSSH_8.9", ssh.banner);
+
+        assertEquals(ServiceInfo.SERVICE_FTP, identify(2121, "220 ProFTPD Server ready.\r\n").service);
+        assertEquals(ServiceInfo.SERVICE_SMTP, identify(2525, "220 mail.example.com ESMTP Postfix\r\n").service);
+        assertEquals(ServiceInfo.SERVICE_FTP, identify(21, "220 Welcome\r\n").service);
+        assertEquals(ServiceInfo.SERVICE_HTTP, identify(8080, "HTTP/1.1 200 OK\r\nServer: test\r\n").service);
+        assertEquals(ServiceInfo.SERVICE_UNKNOWN, identify(1234, "hello\n").service);
+    }
+
+    @Test
+    public void testIdentifiesTlsRecord() throws Exception {
+        byte[] alert = {0x15, 0x03, 0x03, 0x00, 0x02, 0x02, 0x28};
+        ServiceInfo tls = BannerGrabber.identify(InetAddress.getByName("127.0.0.1"), 443, alert, alert.length);
+        assertEquals(ServiceInfo.SERVICE_TLS, tls.service);
+        assertNull(tls.banner);
+    }
+}
@@ -0,0 +1,36 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentPortSetTest {
+
+    @Test
+    public void testAddsFromManyThreadsAreAllKept() throws Exception {
+        final ConcurrentPortSet portSet = new ConcurrentPortSet();
+        final int noThreads = 8;
+        final CountDownLatch done = new CountDownLatch(noThreads);
+        for (int t = 0; t < noThreads; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int port = PortSet.MIN_PORT + offset; port <= PortSet.MAX_PORT; port += noThreads) {
+                        portSet.add(port);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        assertEquals(65535, portSet.snapshot().size());
+        assertTrue(portSet.contains(80));
+        assertFalse(portSet.add(80));
+    }
+}
@@ -0,0 +1,71 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FilteredHostPolicyTest {
+
+    @Test
+    public void testHostAbandonedAfterConsecutiveFilteredPorts() throws Exception {
+        InetAddress filtered = InetAddress.getByName("10.0.0.1");
+        InetAddress answering = InetAddress.getByName("10.0.0.2");
+        HostPortScheduler scheduler = new HostPortScheduler(Arrays.asList(filtered, answering), PortSet.parse("1-100"), 1);
+        scheduler.setFilteredHostPolicy(FilteredHostPolicy.abandonAfter(3));
+
+        int scanned = 0;
+        long probe;
+        while ((probe = scheduler.poll()) != HostPortScheduler.NONE) {
+            int hostIndex = HostPortScheduler.getHostIndex(probe);
+            scheduler.report(hostIndex, hostIndex == 0 ? PortResult.STATE_FILTERED : PortResult.STATE_CLOSED);
+            scheduler.complete(probe);
+            if (hostIndex == 0) scanned++;
+        }
+
+        assertEquals(3, scanned);
+        assertTrue(scheduler.isAbandoned(0));
+        assertFalse(scheduler.isAbandoned(1));
+        assertTrue(scheduler.isFinished());
+    }
+
+    @Test
+    public void testFilteredHostSampledUntilItAnswers() throws Exception {
+        InetAddress host = InetAddress.getByName("10.0.0.1");
+        HostPortScheduler scheduler = new HostPortScheduler(Arrays.asList(host), PortSet.parse("1-100"), 1);
+        scheduler.setFilteredHostPolicy(FilteredHostPolicy.sampleAfter(2, 10));
+
+        // Ports 1 and 2 are filtered, so only every 10th port is scanned from then on
+        for (int port = 1; port <= 2; port++) {
+            long probe = scheduler.poll();
+            assertEquals(port, HostPortScheduler.getPort(probe));
+            scheduler.report(0, PortResult.STATE_FILTERED);
+            scheduler.complete(probe);
+        }
+        long probe = scheduler.poll();
+        assertEquals(3, HostPortScheduler.getPort(probe));
+        scheduler.complete(probe);
+        probe = scheduler.poll();
+        assertEquals(13, HostPortScheduler.getPort(probe));
+
+        // An answer puts the host back to being scanned in full
+        scheduler.report(0, PortResult.STATE_OPEN);
+        scheduler.complete(probe);
+        assertEquals(23, HostPortScheduler.getPort(scheduler.poll()));
+        assertFalse(scheduler.isAbandoned(0));
+    }
+
+    @Test
+    public void testTCPFailuresClassified() {
+        assertEquals(PortResult.STATE_FILTERED, PortScanTCP.getState(new SocketTimeoutException("connect timed out")));
+        assertEquals(PortResult.STATE_FILTERED, PortScanTCP.getState(new ConnectException("Connection timed out")));
+        assertEquals(PortResult.STATE_CLOSED, PortScanTCP.getState(new ConnectException("Connection refused")));
+    }
+
+}
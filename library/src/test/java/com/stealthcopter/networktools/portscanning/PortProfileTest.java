@@ -0,0 +1,50 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PortProfileTest {
+
+    @Test
+    public void testBundledProfilesAreRankedAndUnique() throws Exception {
+        assertEquals(PortProfile.MAX_TOP_TCP, PortProfile.topTCP(PortProfile.MAX_TOP_TCP).toPortSet().size());
+        assertEquals(PortProfile.MAX_TOP_UDP, PortProfile.topUDP(PortProfile.MAX_TOP_UDP).toPortSet().size());
+        assertArrayEquals(new int[]{80, 23, 443}, PortProfile.topTCP(3).getPorts());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnTooManyPorts() throws Exception {
+        PortProfile.topTCP(PortProfile.MAX_TOP_TCP + 1);
+    }
+
+    @Test
+    public void testNmapServicesSortedByFrequency() throws Exception {
+        String services = "# comment\n" +
+                "ftp\t21/tcp\t0.197667\t# File Transfer [Control]\n" +
+                "http\t80/tcp\t0.484143\t# World Wide Web HTTP\n" +
+                "domain\t53/udp\t0.213496\t# Domain Name Server\n" +
+                "ssh\t22/tcp\t0.182286\t# Secure Shell Login\n";
+
+        PortProfile profile = PortProfile.fromNmapServices(new StringReader(services), "tcp", 2);
+
+        assertArrayEquals(new int[]{80, 21}, profile.getPorts());
+    }
+
+    @Test
+    public void testSchedulerFollowsProfileOrder() throws Exception {
+        int[] order = {443, 22, 80};
+        HostPortScheduler scheduler = new HostPortScheduler(
+                Collections.singletonList(InetAddress.getByName("127.0.0.1")), order, 10);
+
+        for (int port : order) {
+            assertEquals(port, HostPortScheduler.getPort(scheduler.poll()));
+        }
+        assertEquals(HostPortScheduler.NONE, scheduler.poll());
+    }
+}
@@ -0,0 +1,37 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PortResultIteratorTest {
+
+    @Test
+    public void testCloseUnblocksScanWithoutOverfillingPermits() throws Exception {
+        PortResultIterator iterator = new PortResultIterator(2, null);
+        final Semaphore permits = iterator.getPermits();
+        // The scan has filled the buffer and is waiting for the consumer
+        permits.acquire(2);
+        Thread scan = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // Ends the thread
+                }
+            }
+        });
+        scan.start();
+
+        iterator.close();
+        scan.join(1000);
+        assertFalse(scan.isAlive());
+        assertTrue(permits.availablePermits() <= 2);
+        assertFalse(iterator.hasNext());
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PortScanCheckpointTest {
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("checkpoint", ".bin");
+        InetAddress host = InetAddress.getByName("127.0.0.1");
+
+        PortScanCheckpoint checkpoint = new PortScanCheckpoint(file);
+        checkpoint.markScanned(host, 21, false);
+        checkpoint.markScanned(host, 22, true);
+        checkpoint.markScanned(host, 65535, false);
+        checkpoint.save();
+
+        PortScanCheckpoint loaded = PortScanCheckpoint.load(file);
+        assertEquals(PortSet.parse("21-22,65535"), loaded.getScanned(host));
+        assertEquals(PortSet.parse("22"), loaded.getOpen(host));
+        assertTrue(loaded.isScanned(host, PortSet.parse("21,22")));
+        assertFalse(loaded.isScanned(host, PortSet.parse("21-23")));
+
+        assertTrue(loaded.delete());
+        assertTrue(PortScanCheckpoint.load(file).getScanned(host).isEmpty());
+    }
+
+    @Test
+    public void testStatesAndFilteredRunSurviveResume() throws Exception {
+        File file = File.createTempFile("checkpoint", ".bin");
+        InetAddress host = InetAddress.getByName("127.0.0.1");
+
+        PortScanCheckpoint checkpoint = new PortScanCheckpoint(file);
+        checkpoint.markScanned(host, 22, PortResult.STATE_OPEN);
+        checkpoint.markScanned(host, 23, PortResult.STATE_CLOSED);
+        checkpoint.markScanned(host, 24, PortResult.STATE_FILTERED);
+        checkpoint.markScanned(host, 25, PortResult.STATE_FILTERED);
+        checkpoint.markScanned(host, 26, PortResult.STATE_ERROR);
+        checkpoint.save();
+
+        PortScanCheckpoint loaded = PortScanCheckpoint.load(file);
+        assertEquals(PortSet.parse("22-25"), loaded.getScanned(host));
+        assertEquals(PortSet.parse("22"), loaded.getOpen(host));
+        assertEquals(PortSet.parse("23"), loaded.getClosed(host));
+        assertEquals(PortSet.parse("24-25"), loaded.getFiltered(host));
+        assertEquals(2, loaded.getConsecutiveFiltered(host));
+        assertTrue(loaded.delete());
+
+        // Two filtered before the interruption and one after is enough to give up
+        HostPortScheduler scheduler = new HostPortScheduler(Collections.singletonList(host), PortSet.parse("1-100"), 10);
+        scheduler.setFilteredHostPolicy(FilteredHostPolicy.abandonAfter(3));
+        scheduler.restoreConsecutiveFiltered(0, loaded.getConsecutiveFiltered(host));
+        assertFalse(scheduler.isAbandoned(0));
+        scheduler.report(0, PortResult.STATE_FILTERED);
+        assertTrue(scheduler.isAbandoned(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testIOExceptionThrownOnInvalidFile() throws Exception {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+        PortScanCheckpoint.load(file);
+    }
+
+    @Test
+    public void testSchedulerSkipsScannedPorts() throws Exception {
+        InetAddress host = InetAddress.getByName("127.0.0.1");
+        HostPortScheduler scheduler = new HostPortScheduler(Collections.singletonList(host), new int[]{80, 22, 443}, 10);
+        scheduler.skip(0, PortSet.parse("22,80"));
+
+        assertEquals(443, HostPortScheduler.getPort(scheduler.poll()));
+        assertEquals(HostPortScheduler.NONE, scheduler.poll());
+        assertFalse(scheduler.hasRemaining());
+
+        scheduler = new HostPortScheduler(Collections.singletonList(host), PortSet.parse("1-3"), 10);
+        scheduler.skip(0, PortSet.parse("1-3"));
+        assertFalse(scheduler.hasRemaining());
+    }
+
+}
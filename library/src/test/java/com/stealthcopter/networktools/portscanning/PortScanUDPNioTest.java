@@ -0,0 +1,60 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class PortScanUDPNioTest {
+
+    @Test
+    public void testReplyUnreachableAndSilenceAreDistinguished() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+
+        final DatagramSocket echoSocket = new DatagramSocket(0, localhost);
+        DatagramSocket silentSocket = new DatagramSocket(0, localhost);
+        DatagramSocket closedSocket = new DatagramSocket(0, localhost);
+        int closedPort = closedSocket.getLocalPort();
+        closedSocket.close();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+                    echoSocket.receive(packet);
+                    echoSocket.send(new DatagramPacket(new byte[]{1}, 1, packet.getSocketAddress()));
+                } catch (Exception ignored) {
+                    // Closed at the end of the test
+                }
+            }
+        }).start();
+
+        try {
+            PortSet ports = new PortSet();
+            ports.add(echoSocket.getLocalPort());
+            ports.add(silentSocket.getLocalPort());
+            ports.add(closedPort);
+
+            final HashMap<Integer, Integer> states = new HashMap<>();
+            new PortScanUDPNio(500, 10).scan(localhost, ports, new PortScanUDPNio.PortResultListener() {
+                @Override
+                public void onResult(InetAddress ia, int portNo, int state) {
+                    states.put(portNo, state);
+                }
+            });
+
+            assertEquals(3, states.size());
+            assertEquals(PortScanUDPNio.STATE_OPEN, (int) states.get(echoSocket.getLocalPort()));
+            assertEquals(PortScanUDPNio.STATE_OPEN_FILTERED, (int) states.get(silentSocket.getLocalPort()));
+            assertEquals(PortScanUDPNio.STATE_CLOSED, (int) states.get(closedPort));
+        } finally {
+            echoSocket.close();
+            silentSocket.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PortSetTest {
+
+    @Test
+    public void testPortsIteratedInAscendingOrder() {
+        PortSet portSet = new PortSet();
+        portSet.add(443);
+        portSet.add(22);
+        portSet.add(65535);
+        portSet.add(1);
+        portSet.add(22);
+
+        assertEquals(4, portSet.size());
+        assertEquals(Arrays.asList(1, 22, 443, 65535), portSet.toList());
+    }
+
+    @Test
+    public void testRangeCoversAllPorts() {
+        PortSet portSet = PortSet.range(PortSet.MIN_PORT, PortSet.MAX_PORT);
+
+        assertEquals(65535, portSet.size());
+        assertFalse(portSet.contains(0));
+        assertTrue(portSet.contains(65535));
+
+        int count = 0;
+        for (int port = portSet.nextPort(0); port != -1; port = portSet.nextPort(port + 1)) {
+            count++;
+        }
+        assertEquals(65535, count);
+    }
+
+    @Test
+    public void testRemoveAndAddAll() {
+        PortSet portSet = PortSet.range(20, 25);
+        assertTrue(portSet.remove(21));
+        assertFalse(portSet.remove(21));
+
+        PortSet other = PortSet.of(new ArrayList<>(Arrays.asList(21, 80)));
+        portSet.addAll(other);
+
+        assertEquals(Arrays.asList(20, 21, 22, 23, 24, 25, 80), portSet.toList());
+        assertEquals(7, portSet.size());
+        assertEquals(-1, portSet.nextPort(81));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalArgumentThrownOnInvalidPort() {
+        new PortSet().add(65536);
+    }
+}
@@ -0,0 +1,92 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProbeSocketsTest {
+
+    @Test
+    public void testProbesBoundToSourcePortsAndCounted() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket server = new ServerSocket(0, 50, localhost);
+        try {
+            ProbeSockets sockets = new ProbeSockets().setAbortiveClose(true).setSourcePorts(40000, 40999);
+
+            assertEquals(PortResult.STATE_OPEN, PortScanTCP.scanPort(localhost, server.getLocalPort(), 1000, null, sockets));
+            Socket accepted = server.accept();
+            int sourcePort = accepted.getPort();
+            accepted.close();
+
+            assertTrue(sourcePort >= 40000 && sourcePort <= 40999);
+            assertEquals(0, sockets.getOutstanding());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNioScanClosesEverySocket() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        ServerSocket server = new ServerSocket(0, 50, localhost);
+        ServerSocket closed = new ServerSocket(0, 50, localhost);
+        int closedPort = closed.getLocalPort();
+        closed.close();
+        try {
+            ProbeSockets sockets = new ProbeSockets().setAbortiveClose(true);
+            PortSet ports = new PortSet();
+            ports.add(server.getLocalPort());
+            ports.add(closedPort);
+
+            final HashMap<Integer, Integer> states = new HashMap<>();
+            PortScanTCPNio scanner = new PortScanTCPNio(1000, 10);
+            scanner.setProbeSockets(sockets);
+            scanner.scan(localhost, ports, new PortScanTCPNio.PortResultListener() {
+                @Override
+                public void onResult(InetAddress ia, int portNo, int state) {
+                    states.put(portNo, state);
+                }
+            });
+
+            assertEquals(PortResult.STATE_OPEN, (int) states.get(server.getLocalPort()));
+            assertEquals(PortResult.STATE_CLOSED, (int) states.get(closedPort));
+            assertEquals(0, sockets.getOutstanding());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testOutOfLocalPortsIsNotReportedClosed() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        ProbeSockets sockets = new ProbeSockets() {
+            @Override
+            public Socket openSocket() {
+                attempts.incrementAndGet();
+                return new Socket() {
+                    @Override
+                    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                        throw new BindException("Cannot assign requested address");
+                    }
+                };
+            }
+        };
+
+        long start = System.nanoTime();
+        assertEquals(PortResult.STATE_ERROR, PortScanTCP.scanPort(InetAddress.getByName("127.0.0.1"), 80, 1000, null, sockets));
+        assertEquals(ProbeSockets.MAX_CONNECT_ATTEMPTS, attempts.get());
+        // Backed off between attempts rather than trying again straight away
+        assertTrue(System.nanoTime() - start >= 20 * 1000000L);
+    }
+
+}
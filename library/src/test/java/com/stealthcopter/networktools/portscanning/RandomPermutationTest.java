@@ -0,0 +1,87 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RandomPermutationTest {
+
+    @Test
+    public void testEveryIndexVisitedOnce() {
+        long[] sizes = {0, 1, 2, 3, 255, 1000, 65543};
+        for (long size : sizes) {
+            RandomPermutation permutation = new RandomPermutation(size, 42);
+            BitSet seen = new BitSet((int) size);
+            for (long i = 0; i < size; i++) {
+                int index = (int) permutation.get(i);
+                assertFalse(seen.get(index));
+                seen.set(index);
+            }
+            assertEquals(size, seen.cardinality());
+        }
+    }
+
+    @Test
+    public void testOrderDependsOnSeed() {
+        RandomPermutation first = new RandomPermutation(1000, 1);
+        RandomPermutation same = new RandomPermutation(1000, 1);
+        RandomPermutation other = new RandomPermutation(1000, 2);
+
+        int inPlace = 0;
+        boolean differs = false;
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(first.get(i), same.get(i));
+            if (first.get(i) != other.get(i)) differs = true;
+            if (first.get(i) == i) inPlace++;
+        }
+        assertTrue(differs);
+        assertTrue(inPlace < 50);
+    }
+
+    @Test
+    public void testLargeSpaceNeedsNoTable() {
+        // Every port on a /8, far too many to shuffle a list of
+        RandomPermutation permutation = new RandomPermutation((1L << 24) * 65535, 7);
+        HashSet<Long> seen = new HashSet<>();
+        for (long i = 0; i < 10000; i++) {
+            long index = permutation.get(i);
+            assertTrue(index >= 0 && index < permutation.size());
+            assertTrue(seen.add(index));
+        }
+    }
+
+    @Test
+    public void testSchedulerHandsOutEveryProbeInRandomOrder() throws Exception {
+        InetAddress first = InetAddress.getByName("10.0.0.1");
+        InetAddress second = InetAddress.getByName("10.0.0.2");
+        HostPortScheduler scheduler = new HostPortScheduler(Arrays.asList(first, second), PortSet.parse("1-100"), 100);
+        scheduler.skip(1, PortSet.parse("1-50"));
+        scheduler.setRandomOrder(3);
+
+        HashSet<Long> probes = new HashSet<>();
+        long previous = -1;
+        boolean ascending = true;
+        long probe;
+        while ((probe = scheduler.poll()) != HostPortScheduler.NONE) {
+            assertTrue(probes.add(probe));
+            if (HostPortScheduler.getHostIndex(probe) == 1) {
+                assertTrue(HostPortScheduler.getPort(probe) > 50);
+            }
+            if (previous != -1 && HostPortScheduler.getPort(probe) < HostPortScheduler.getPort(previous)) ascending = false;
+            previous = probe;
+            scheduler.complete(probe);
+        }
+
+        assertEquals(150, probes.size());
+        assertFalse(ascending);
+        assertTrue(scheduler.isFinished());
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.stealthcopter.networktools.portscanning;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UDPPayloadsTest {
+
+    private interface RequestValidator {
+        boolean isValid(byte[] data, int length);
+    }
+
+    /**
+     * A stand-in for a UDP service that only answers requests it understands
+     */
+    private static DatagramSocket startStandInServer(final RequestValidator validator) throws Exception {
+        final DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+                        socket.receive(packet);
+                        if (validator.isValid(packet.getData(), packet.getLength())) {
+                            socket.send(new DatagramPacket(new byte[]{1}, 1, packet.getSocketAddress()));
+                        }
+                    }
+                } catch (Exception ignored) {
+                    // Closed at the end of the test
+                }
+            }
+        }).start();
+        return socket;
+    }
+
+    private static boolean isDnsQuery(byte[] data, int length) {
+        // Query with one question
+        if (length < 17 || (data[2] & 0x80) != 0 || data[4] != 0 || data[5] != 1) return false;
+        int i = 12;
+        while (i < length && data[i] != 0) {
+            i += 1 + data[i];
+        }
+        // Name terminator then type and class
+        return i + 5 == length;
+    }
+
+    private static String ascii(byte[] data, int length) throws Exception {
+        return new String(data, 0, length, "US-ASCII");
+    }
+
+    @Test
+    public void testStandInServicesAnswerDefaultPayloads() throws Exception {
+        HashMap<Integer, RequestValidator> validators = new HashMap<>();
+        validators.put(UDPPayloads.PORT_DNS, new RequestValidator() {
+            @Override
+            public boolean isValid(byte[] data, int length) {
+                return isDnsQuery(data, length);
+            }
+        });
+        validators.put(UDPPayloads.PORT_MDNS, new RequestValidator() {
+            @Override
+            public boolean isValid(byte[] data, int length) {
+                return isDnsQuery(data, length);
+            }
+        });
+        validators.put(UDPPayloads.PORT_NTP, new RequestValidator() {
+            @Override
+            public boolean isValid(byte[] data, int length) {
+                // Client mode
+                return length == 48 && (data[0] & 0x07) == 3;
+            }
+        });
+        validators.put(UDPPayloads.PORT_NETBIOS_NS, new RequestValidator() {
+            @Override
+            public boolean isValid(byte[] data, int length) {
+                // NBSTAT question for an encoded 16 byte name
+                return length == 50 && data[5] == 1 && data[12] == 0x20 && data[45] == 0 && data[47] == 0x21;
+            }
+        });
+        validators.put(UDPPayloads.PORT_SNMP, new RequestValidator() {
+            @Override
+            public boolean isValid(byte[] data, int length) {
+                try {
+                    // A BER sequence covering the whole datagram with the community string
+                    return data[0] == 0x30 && data[1] == length - 2 && ascii(data, length).contains("public");
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+        });
+        validators.put(UDPPayloads.PORT_SSDP, new RequestValidator() {
+            @Override
+            public boolean isValid(byte[] data, int length) {
+                try {
+                    String request = ascii(data, length);
+                    return request.startsWith("M-SEARCH * HTTP/1.1\r\n") && request.endsWith("\r\n\r\n");
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+        });
+
+        UDPPayloads defaults = UDPPayloads.defaults();
+        UDPPayloads payloads = new UDPPayloads();
+        PortSet ports = new PortSet();
+        ArrayList<DatagramSocket> servers = new ArrayList<>();
+        try {
+            for (Integer wellKnownPort : validators.keySet()) {
+                DatagramSocket server = startStandInServer(validators.get(wellKnownPort));
+                servers.add(server);
+                // The stand-in runs on a different port, so send it the payload for the real one
+                payloads.put(server.getLocalPort(), defaults.get(wellKnownPort));
+                ports.add(server.getLocalPort());
+            }
+
+            final HashMap<Integer, Integer> states = new HashMap<>();
+            PortScanUDPNio scanner = new PortScanUDPNio(5000, 10);
+            scanner.setPayloads(payloads);
+            long startMillis = System.currentTimeMillis();
+            scanner.scan(InetAddress.getByName("127.0.0.1"), ports, new PortScanUDPNio.PortResultListener() {
+                @Override
+                public void onResult(InetAddress ia, int portNo, int state) {
+                    states.put(portNo, state);
+                }
+            });
+
+            // Every service answered so nothing waited for the timeout
+            assertTrue(System.currentTimeMillis() - startMillis < 5000);
+            assertEquals(validators.size(), states.size());
+            for (Integer state : states.values()) {
+                assertEquals(PortScanUDPNio.STATE_OPEN, (int) state);
+            }
+        } finally {
+            for (DatagramSocket server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyScanReportsReplyAsOpen() throws Exception {
+        DatagramSocket server = startStandInServer(new RequestValidator() {
+            @Override
+            public boolean isValid(byte[] data, int length) {
+                return length == 48 && (data[0] & 0x07) == 3;
+            }
+        });
+        try {
+            byte[] payload = UDPPayloads.defaults().get(UDPPayloads.PORT_NTP);
+            assertTrue(PortScanUDP.scanAddress(InetAddress.getByName("127.0.0.1"), server.getLocalPort(), 5000, payload, null));
+        } finally {
+            server.close();
+        }
+    }
+}
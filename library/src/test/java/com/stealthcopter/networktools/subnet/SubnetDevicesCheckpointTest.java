@@ -0,0 +1,42 @@
+package com.stealthcopter.networktools.subnet;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubnetDevicesCheckpointTest {
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("checkpoint", ".bin");
+        // 10.0.0.1 to 10.255.255.254
+        int rangeStart = 0x0A000001;
+        int rangeSize = (1 << 24) - 2;
+
+        SubnetDevicesCheckpoint checkpoint = new SubnetDevicesCheckpoint(file, rangeStart, rangeSize);
+        checkpoint.markScanned(0, null);
+        checkpoint.markScanned(rangeSize - 1, new Device("10.255.255.254", null));
+        checkpoint.markScanned("192.168.0.1", null);
+        checkpoint.save();
+        // Only the words with progress in them are written
+        assertTrue(file.length() < 1024);
+
+        SubnetDevicesCheckpoint loaded = SubnetDevicesCheckpoint.load(file);
+        assertTrue(loaded.isForRange(rangeStart, rangeSize));
+        assertFalse(loaded.isForRange(rangeStart + 256, rangeSize));
+        assertTrue(loaded.isScanned(0));
+        assertTrue(loaded.isScanned(rangeSize - 1));
+        assertFalse(loaded.isScanned(1));
+        assertTrue(loaded.isScanned("192.168.0.1"));
+        assertEquals(1, loaded.getDevices().size());
+        assertEquals("10.255.255.254", loaded.getDevices().get(0).ip);
+
+        assertTrue(loaded.delete());
+        assertFalse(SubnetDevicesCheckpoint.load(file).isScanned(0));
+    }
+
+}